@@ -0,0 +1,95 @@
+/*
+ * Copyright 2014-2017 Groupon, Inc
+ * Copyright 2014-2017 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.api;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+import javax.annotation.Nullable;
+
+import org.killbill.billing.util.entity.Pagination;
+
+import com.google.common.base.Function;
+
+public class PluginPagination<T> implements Pagination<T> {
+
+    private final Long currentOffset;
+    private final Long nextOffset;
+    private final Long totalNbRecords;
+    private final Long maxNbRecords;
+    private final List<T> elements;
+
+    public PluginPagination(final Long currentOffset,
+                            @Nullable final Long nextOffset,
+                            @Nullable final Long totalNbRecords,
+                            @Nullable final Long maxNbRecords,
+                            final List<T> elements) {
+        this.currentOffset = currentOffset;
+        this.nextOffset = nextOffset;
+        this.totalNbRecords = totalNbRecords;
+        this.maxNbRecords = maxNbRecords;
+        this.elements = elements;
+    }
+
+    // Convert each element once, keeping the offsets
+    public <F> PluginPagination<F> transform(final Function<? super T, F> function) {
+        final List<F> transformed = new ArrayList<F>(elements.size());
+        for (final T element : elements) {
+            transformed.add(function.apply(element));
+        }
+        return new PluginPagination<F>(currentOffset, nextOffset, totalNbRecords, maxNbRecords, transformed);
+    }
+
+    @Override
+    public Long getCurrentOffset() {
+        return currentOffset;
+    }
+
+    @Override
+    public Long getNextOffset() {
+        return nextOffset;
+    }
+
+    @Override
+    public Long getMaxNbRecords() {
+        return maxNbRecords;
+    }
+
+    @Override
+    public Long getTotalNbRecords() {
+        return totalNbRecords;
+    }
+
+    @Override
+    public Iterator<T> iterator() {
+        return elements.iterator();
+    }
+
+    @Override
+    public String toString() {
+        final StringBuilder sb = new StringBuilder("PluginPagination{");
+        sb.append("currentOffset=").append(currentOffset);
+        sb.append(", nextOffset=").append(nextOffset);
+        sb.append(", totalNbRecords=").append(totalNbRecords);
+        sb.append(", maxNbRecords=").append(maxNbRecords);
+        sb.append(", nbElements=").append(elements.size());
+        sb.append('}');
+        return sb.toString();
+    }
+}
@@ -17,25 +17,256 @@
 
 package org.killbill.billing.plugin.api.notification;
 
+import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.UUID;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.annotation.Nullable;
+
 import org.killbill.billing.notification.plugin.api.ExtBusEvent;
 import org.killbill.billing.notification.plugin.api.ExtBusEventType;
 import org.killbill.billing.osgi.libs.killbill.OSGIKillbillEventDispatcher;
 
-public class PluginConfigurationEventHandler implements OSGIKillbillEventDispatcher.OSGIKillbillEventHandler {
+import com.google.common.base.Preconditions;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+public class PluginConfigurationEventHandler implements OSGIKillbillEventDispatcher.OSGIKillbillEventHandler, Closeable {
 
     private final PluginConfigurationHandler[] pluginConfigurationHandlers;
 
+    // Reconfigurations scheduled or running: at most one runs at a time for a given tenant and key (guarded by this)
+    private final Map<ReconfigurationKey, ReconfigurationState> pendingReconfigurations = new HashMap<ReconfigurationKey, ReconfigurationState>();
+    private final AtomicLong nbCoalescedEvents = new AtomicLong();
+    private final AtomicLong nbReconfigurations = new AtomicLong();
+
+    private volatile long debounceDelayMillis;
+    // Guarded by this
+    private ScheduledThreadPoolExecutor reconfigurationExecutor;
+
     public PluginConfigurationEventHandler(final PluginConfigurationHandler... pluginConfigurationHandlers) {
         this.pluginConfigurationHandlers = pluginConfigurationHandlers;
     }
 
+    /**
+     * Reconfigure off the bus thread. Events for the same tenant and key received within the debounce delay
+     * trigger a single reconfiguration, which reads the latest tenant configuration.
+     *
+     * @param nbThreads     number of tenants reconfigured concurrently
+     * @param debounceDelay delay between the first event and the reconfiguration
+     * @param unit          unit of debounceDelay
+     */
+    public void enableBackgroundReconfiguration(final int nbThreads, final long debounceDelay, final TimeUnit unit) {
+        Preconditions.checkArgument(nbThreads > 0, "nbThreads must be positive");
+        Preconditions.checkArgument(debounceDelay >= 0, "debounceDelay must not be negative");
+
+        final ScheduledThreadPoolExecutor executor = new ScheduledThreadPoolExecutor(nbThreads,
+                                                                                     new ThreadFactoryBuilder().setDaemon(true)
+                                                                                                               .setNameFormat(getClass().getSimpleName() + "-reconfiguration-%d")
+                                                                                                               .build());
+        // Debounced reconfigurations are flushed on the closing thread instead
+        executor.setExecuteExistingDelayedTasksAfterShutdownPolicy(false);
+        final ScheduledThreadPoolExecutor previousExecutor;
+        synchronized (this) {
+            previousExecutor = reconfigurationExecutor;
+            debounceDelayMillis = unit.toMillis(debounceDelay);
+            reconfigurationExecutor = executor;
+        }
+        shutdown(previousExecutor);
+        flushPendingReconfigurations();
+    }
+
+    // Go back to synchronous reconfigurations, once the pending ones are done
+    public void disableBackgroundReconfiguration() {
+        close();
+    }
+
     @Override
     public void handleKillbillEvent(final ExtBusEvent extBusEvent) {
         if (ExtBusEventType.TENANT_CONFIG_CHANGE.equals(extBusEvent.getEventType()) ||
             ExtBusEventType.TENANT_CONFIG_DELETION.equals(extBusEvent.getEventType())) {
-            for (final PluginConfigurationHandler pluginConfigurationHandler : pluginConfigurationHandlers) {
-                pluginConfigurationHandler.configure(extBusEvent.getMetaData(), extBusEvent.getTenantId());
+            final ReconfigurationKey key = new ReconfigurationKey(extBusEvent.getMetaData(), extBusEvent.getTenantId());
+            if (!scheduleReconfiguration(key)) {
+                reconfigure(key);
+            }
+        }
+    }
+
+    // Number of (tenant, key) pairs waiting to be or being reconfigured
+    public synchronized int getNbPendingReconfigurations() {
+        return pendingReconfigurations.size();
+    }
+
+    // Number of events absorbed by an already pending reconfiguration
+    public long getNbCoalescedEvents() {
+        return nbCoalescedEvents.get();
+    }
+
+    public long getNbReconfigurations() {
+        return nbReconfigurations.get();
+    }
+
+    // Pending reconfigurations are run before returning
+    @Override
+    public void close() {
+        final ScheduledThreadPoolExecutor executor;
+        synchronized (this) {
+            executor = reconfigurationExecutor;
+            reconfigurationExecutor = null;
+        }
+        shutdown(executor);
+        flushPendingReconfigurations();
+    }
+
+    private synchronized boolean scheduleReconfiguration(final ReconfigurationKey key) {
+        if (reconfigurationExecutor == null) {
+            return false;
+        }
+
+        final ReconfigurationState state = pendingReconfigurations.get(key);
+        if (state == ReconfigurationState.RUNNING) {
+            // The running reconfiguration may have read the previous tenant configuration
+            pendingReconfigurations.put(key, ReconfigurationState.RERUN);
+            return true;
+        } else if (state != null) {
+            nbCoalescedEvents.incrementAndGet();
+            return true;
+        }
+
+        pendingReconfigurations.put(key, ReconfigurationState.SCHEDULED);
+        try {
+            reconfigurationExecutor.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    if (start(key)) {
+                        runReconfiguration(key);
+                    }
+                }
+            }, debounceDelayMillis, TimeUnit.MILLISECONDS);
+            return true;
+        } catch (final RejectedExecutionException e) {
+            pendingReconfigurations.remove(key);
+            return false;
+        }
+    }
+
+    // Whoever moves a scheduled reconfiguration to RUNNING runs it (the executor or a flush)
+    private synchronized boolean start(final ReconfigurationKey key) {
+        if (pendingReconfigurations.get(key) != ReconfigurationState.SCHEDULED) {
+            return false;
+        }
+        pendingReconfigurations.put(key, ReconfigurationState.RUNNING);
+        return true;
+    }
+
+    // Re-run once more if events were received in the meantime, so that the latest tenant configuration wins
+    private void runReconfiguration(final ReconfigurationKey key) {
+        boolean finished = false;
+        try {
+            while (!finished) {
+                reconfigure(key);
+                finished = finish(key);
+            }
+        } finally {
+            // Errors only (handler exceptions are logged): a key left RUNNING would drop all later events
+            if (!finished) {
+                abort(key);
+            }
+        }
+    }
+
+    private synchronized boolean finish(final ReconfigurationKey key) {
+        if (pendingReconfigurations.get(key) == ReconfigurationState.RERUN) {
+            pendingReconfigurations.put(key, ReconfigurationState.RUNNING);
+            return false;
+        }
+        pendingReconfigurations.remove(key);
+        return true;
+    }
+
+    private synchronized void abort(final ReconfigurationKey key) {
+        pendingReconfigurations.remove(key);
+    }
+
+    // Each handler swaps its configurable in, readers see either the old or the new one. A failing handler
+    // keeps its current configurable and doesn't prevent the others from being reconfigured
+    private void reconfigure(final ReconfigurationKey key) {
+        nbReconfigurations.incrementAndGet();
+        for (final PluginConfigurationHandler pluginConfigurationHandler : pluginConfigurationHandlers) {
+            try {
+                pluginConfigurationHandler.configure(key.configKeyName, key.kbTenantId);
+            } catch (final RuntimeException e) {
+                pluginConfigurationHandler.logReconfigurationFailure(key.kbTenantId, e);
+            }
+        }
+    }
+
+    // Run the reconfigurations whose delayed task was dropped by a shutdown
+    private void flushPendingReconfigurations() {
+        final List<ReconfigurationKey> keys;
+        synchronized (this) {
+            keys = new ArrayList<ReconfigurationKey>(pendingReconfigurations.keySet());
+        }
+        for (final ReconfigurationKey key : keys) {
+            if (start(key)) {
+                runReconfiguration(key);
+            }
+        }
+    }
+
+    private void shutdown(@Nullable final ScheduledThreadPoolExecutor executor) {
+        if (executor == null) {
+            return;
+        }
+
+        executor.shutdown();
+        try {
+            executor.awaitTermination(1, TimeUnit.MINUTES);
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private enum ReconfigurationState {
+        SCHEDULED,
+        RUNNING,
+        // Running, and events were received since it started
+        RERUN
+    }
+
+    private static final class ReconfigurationKey {
+
+        private final String configKeyName;
+        private final UUID kbTenantId;
+
+        private ReconfigurationKey(final String configKeyName, @Nullable final UUID kbTenantId) {
+            this.configKeyName = configKeyName;
+            this.kbTenantId = kbTenantId;
+        }
+
+        @Override
+        public boolean equals(final Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (o == null || getClass() != o.getClass()) {
+                return false;
             }
+            final ReconfigurationKey that = (ReconfigurationKey) o;
+            return Objects.equals(configKeyName, that.configKeyName) &&
+                   Objects.equals(kbTenantId, that.kbTenantId);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(configKeyName, kbTenantId);
         }
     }
 }
@@ -19,9 +19,15 @@ package org.killbill.billing.plugin.api.notification;
 
 import java.io.IOException;
 import java.io.StringReader;
+import java.nio.charset.StandardCharsets;
 import java.util.List;
 import java.util.Properties;
 import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
 
 import javax.annotation.Nullable;
 
@@ -33,12 +39,28 @@ import org.killbill.billing.tenant.api.TenantUserApi;
 import org.killbill.billing.util.callcontext.TenantContext;
 import org.osgi.service.log.LogService;
 
+import com.google.common.base.Preconditions;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.hash.HashCode;
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hashing;
+
 public abstract class PluginConfigurationHandler {
 
+    public static final long DEFAULT_MAX_CONFIGURATION_HASHES = 10000;
+
+    private static final HashFunction CONFIGURATION_HASH_FUNCTION = Hashing.sha256();
+
     private final String configKeyName;
     private final OSGIKillbillAPI osgiKillbillAPI;
     private final OSGIKillbillLogService osgiKillbillLogService;
 
+    // Initial configuration of each tenant, completed once done
+    private final ConcurrentMap<UUID, CompletableFuture<Void>> initialConfigurations = new ConcurrentHashMap<UUID, CompletableFuture<Void>>();
+    // Hash of the raw configuration each tenant configurable was last built from
+    private volatile Cache<UUID, HashCode> configurationHashes = buildConfigurationHashes(DEFAULT_MAX_CONFIGURATION_HASHES);
+
     public PluginConfigurationHandler(final String pluginName, final OSGIKillbillAPI osgiKillbillAPI, final OSGIKillbillLogService osgiKillbillLogService) {
         this.configKeyName = "PLUGIN_CONFIG_" + pluginName;
         this.osgiKillbillAPI = osgiKillbillAPI;
@@ -53,12 +75,100 @@ public abstract class PluginConfigurationHandler {
         }
     }
 
+    void logReconfigurationFailure(@Nullable final UUID kbTenantId, final RuntimeException e) {
+        osgiKillbillLogService.log(LogService.LOG_WARNING, "Reconfiguration failed for key " + configKeyName + " and kbTenantId " + kbTenantId, e);
+    }
+
+    void logWarmUpFailure(final UUID kbTenantId, final RuntimeException e) {
+        osgiKillbillLogService.log(LogService.LOG_WARNING, "Configuration warm-up failed for key " + configKeyName + " and kbTenantId " + kbTenantId + ", it will be configured on first use", e);
+    }
+
+    /**
+     * Configure the tenant on first use. Tenants are configured in parallel, and once configured this is a single,
+     * lock-free, map lookup. Concurrent first uses for the same tenant wait for the configuring thread.
+     *
+     * @param kbTenantId Kill Bill tenant id
+     */
+    protected void configureIfNeeded(@Nullable final UUID kbTenantId) {
+        if (kbTenantId == null) {
+            return;
+        }
+
+        CompletableFuture<Void> initialConfiguration = initialConfigurations.get(kbTenantId);
+        if (initialConfiguration == null) {
+            final CompletableFuture<Void> newInitialConfiguration = new CompletableFuture<Void>();
+            initialConfiguration = initialConfigurations.putIfAbsent(kbTenantId, newInitialConfiguration);
+            if (initialConfiguration == null) {
+                try {
+                    configure(kbTenantId);
+                    newInitialConfiguration.complete(null);
+                } catch (final RuntimeException e) {
+                    // Retried on next use
+                    initialConfigurations.remove(kbTenantId, newInitialConfiguration);
+                    newInitialConfiguration.completeExceptionally(e);
+                    throw e;
+                }
+                return;
+            }
+        }
+
+        if (!initialConfiguration.isDone()) {
+            try {
+                initialConfiguration.join();
+            } catch (final CompletionException e) {
+                osgiKillbillLogService.log(LogService.LOG_WARNING, "Initial configuration failed for kbTenantId " + kbTenantId, e.getCause());
+            }
+        }
+    }
+
+    /**
+     * Bound the number of tenants for which unchanged configurations are detected. When a tenant is evicted,
+     * its next configuration is simply parsed again.
+     *
+     * @param maximumSize maximum number of tenants tracked
+     */
+    public void configureConfigurationHashes(final long maximumSize) {
+        configurationHashes = buildConfigurationHashes(maximumSize);
+    }
+
+    /**
+     * @param kbTenantId       Kill Bill tenant id
+     * @param rawConfiguration raw tenant configuration
+     * @return the hash of the configuration, or null if the tenant configurable was already built from this configuration
+     */
+    @Nullable
+    protected HashCode hashIfChanged(final UUID kbTenantId, final String rawConfiguration) {
+        final HashCode hash = CONFIGURATION_HASH_FUNCTION.hashString(rawConfiguration, StandardCharsets.UTF_8);
+        return hash.equals(configurationHashes.getIfPresent(kbTenantId)) ? null : hash;
+    }
+
+    // To call once the tenant configurable has been built from the configuration
+    protected void markConfigured(final UUID kbTenantId, final HashCode rawConfigurationHash) {
+        configurationHashes.put(kbTenantId, rawConfigurationHash);
+    }
+
+    /**
+     * Configure the given tenants in the background, typically at plugin startup.
+     *
+     * @param kbTenantIds tenants to configure (e.g. the tenants found in the plugin tables), iterated lazily
+     * @param nbThreads   number of tenants configured concurrently
+     * @param timeBudget  time after which the remaining tenants are left to be configured on first use
+     * @param unit        unit of timeBudget
+     * @return the warm-up progress, which can be registered as healthcheck
+     */
+    public PluginConfigurationWarmUp warmUp(final Iterable<UUID> kbTenantIds, final int nbThreads, final long timeBudget, final TimeUnit unit) {
+        return new PluginConfigurationWarmUp(this, kbTenantIds, nbThreads, timeBudget, unit);
+    }
+
     protected Properties getTenantConfigurationAsProperties(@Nullable final UUID kbTenantId) {
         final String tenantConfigurationAsString = getTenantConfigurationAsString(kbTenantId);
         if (tenantConfigurationAsString == null) {
             return null;
         }
+        return toProperties(tenantConfigurationAsString);
+    }
 
+    protected Properties toProperties(final String tenantConfigurationAsString) {
         final Properties properties = new Properties();
         try {
             properties.load(new StringReader(tenantConfigurationAsString));
@@ -89,4 +199,11 @@ public abstract class PluginConfigurationHandler {
             return null;
         }
     }
+
+    private static Cache<UUID, HashCode> buildConfigurationHashes(final long maximumSize) {
+        Preconditions.checkArgument(maximumSize >= 0, "maximumSize must not be negative");
+        return CacheBuilder.newBuilder()
+                           .maximumSize(maximumSize)
+                           .build();
+    }
 }
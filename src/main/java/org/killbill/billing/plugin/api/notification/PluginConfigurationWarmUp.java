@@ -0,0 +1,191 @@
+/*
+ * Copyright 2014-2017 Groupon, Inc
+ * Copyright 2014-2017 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.api.notification;
+
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import javax.annotation.Nullable;
+
+import org.killbill.billing.plugin.service.Healthcheck;
+import org.killbill.billing.tenant.api.Tenant;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+/**
+ * Background configuration of a set of tenants, to avoid paying the configuration cost on the first call for each tenant.
+ * Reported as unhealthy until done or until the time budget is spent (even if a tenant configuration hangs), so that traffic
+ * can be held back while warming up. Tenants not configured within the time budget (or which failed) are configured lazily, as usual.
+ *
+ * @see PluginConfigurationHandler#warmUp(Iterable, int, long, TimeUnit)
+ */
+public class PluginConfigurationWarmUp implements Healthcheck {
+
+    // Bound on the failed tenant ids reported by the healthcheck
+    private static final int MAX_REPORTED_FAILED_TENANTS = 100;
+
+    private final AtomicInteger nbConfigured = new AtomicInteger();
+    private final AtomicInteger nbFailed = new AtomicInteger();
+    private final Queue<UUID> failedTenantIds = new ConcurrentLinkedQueue<UUID>();
+    private final AtomicReference<String> lastError = new AtomicReference<String>();
+    private final AtomicBoolean timedOut = new AtomicBoolean();
+    private final long deadlineNanos;
+    private final CompletableFuture<Void> completion;
+
+    PluginConfigurationWarmUp(final PluginConfigurationHandler pluginConfigurationHandler,
+                              final Iterable<UUID> kbTenantIds,
+                              final int nbThreads,
+                              final long timeBudget,
+                              final TimeUnit unit) {
+        Preconditions.checkArgument(nbThreads > 0, "nbThreads must be positive");
+
+        this.deadlineNanos = System.nanoTime() + unit.toNanos(timeBudget);
+        // Shared by the workers: tenants can be streamed
+        final Iterator<UUID> kbTenantIdsIterator = kbTenantIds.iterator();
+        final ExecutorService executor = Executors.newFixedThreadPool(nbThreads,
+                                                                      new ThreadFactoryBuilder().setDaemon(true)
+                                                                                                .setNameFormat(pluginConfigurationHandler.getClass().getSimpleName() + "-warmup-%d")
+                                                                                                .build());
+        final CompletableFuture<?>[] workers = new CompletableFuture<?>[nbThreads];
+        for (int i = 0; i < nbThreads; i++) {
+            workers[i] = CompletableFuture.runAsync(new Runnable() {
+                @Override
+                public void run() {
+                    UUID kbTenantId;
+                    while ((kbTenantId = next(kbTenantIdsIterator)) != null) {
+                        if (isPastDeadline()) {
+                            timedOut.set(true);
+                            return;
+                        }
+
+                        try {
+                            pluginConfigurationHandler.configureIfNeeded(kbTenantId);
+                            nbConfigured.incrementAndGet();
+                        } catch (final RuntimeException e) {
+                            pluginConfigurationHandler.logWarmUpFailure(kbTenantId, e);
+                            if (nbFailed.incrementAndGet() <= MAX_REPORTED_FAILED_TENANTS) {
+                                failedTenantIds.add(kbTenantId);
+                            }
+                            lastError.set(e.toString());
+                        }
+                    }
+                }
+            }, executor);
+        }
+        this.completion = CompletableFuture.allOf(workers);
+        completion.whenComplete((result, throwable) -> executor.shutdown());
+    }
+
+    public boolean isDone() {
+        return completion.isDone();
+    }
+
+    /**
+     * @param timeout maximum time to wait
+     * @param unit    unit of timeout
+     * @return true if the warm-up is done
+     */
+    public boolean awaitCompletion(final long timeout, final TimeUnit unit) throws InterruptedException {
+        try {
+            completion.get(timeout, unit);
+        } catch (final TimeoutException e) {
+            return false;
+        } catch (final ExecutionException e) {
+            // Failures are counted by the workers
+        }
+        return true;
+    }
+
+    public int getNbConfigured() {
+        return nbConfigured.get();
+    }
+
+    public int getNbFailed() {
+        return nbFailed.get();
+    }
+
+    // The first failed tenants (up to 100), see getNbFailed for the total
+    public List<UUID> getFailedTenantIds() {
+        return ImmutableList.<UUID>copyOf(failedTenantIds);
+    }
+
+    @Nullable
+    public String getLastError() {
+        return lastError.get();
+    }
+
+    // True if some tenants were left to be configured lazily, or are still being configured past the time budget
+    public boolean isTimedOut() {
+        return timedOut.get() || (!isDone() && isPastDeadline());
+    }
+
+    @Override
+    public HealthStatus getHealthStatus(@Nullable final Tenant tenant, @Nullable final Map properties) {
+        final boolean done = isDone();
+        final boolean timedOut = isTimedOut();
+        final String message;
+        if (!done && !timedOut) {
+            message = "Configuration warm-up in progress";
+        } else if (!done) {
+            message = "Configuration warm-up incomplete";
+        } else if (timedOut) {
+            message = "Configuration warm-up timed out";
+        } else {
+            message = "Configuration warm-up done";
+        }
+
+        final ImmutableMap.Builder<String, Object> details = ImmutableMap.<String, Object>builder().put("message", message)
+                                                                                                  .put("configured", getNbConfigured())
+                                                                                                  .put("failed", getNbFailed())
+                                                                                                  .put("timedOut", timedOut);
+        final String lastError = getLastError();
+        if (lastError != null) {
+            details.put("failedTenantIds", getFailedTenantIds())
+                   .put("lastError", lastError);
+        }
+        // Healthy once the time budget is spent, whatever the workers are still doing
+        return new HealthStatus(done || timedOut, details.build());
+    }
+
+    private boolean isPastDeadline() {
+        return System.nanoTime() - deadlineNanos > 0;
+    }
+
+    @Nullable
+    private static UUID next(final Iterator<UUID> kbTenantIdsIterator) {
+        synchronized (kbTenantIdsIterator) {
+            return kbTenantIdsIterator.hasNext() ? kbTenantIdsIterator.next() : null;
+        }
+    }
+}
@@ -22,16 +22,37 @@ import java.io.IOException;
 import java.util.Map;
 import java.util.UUID;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
 
 import javax.annotation.Nullable;
 
 import com.google.common.base.MoreObjects;
+import com.google.common.base.Preconditions;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 
+/**
+ * Per-tenant configurables. When a Closeable configurable is replaced, it is closed once all its leases (see acquire) have
+ * been released and the retirement grace period has elapsed: callers of get() don't hold a lease, the grace period lets their
+ * in-flight calls (e.g. HTTP requests) complete.
+ */
 public class PluginTenantConfigurable<C> {
 
-    private static final String MONO_TENANT = "MONO_TENANT";
+    public static final long DEFAULT_RETIREMENT_GRACE_PERIOD_MILLIS = 60000L;
+
+    // Keyed by the UUID itself: lookups don't allocate
+    private final Map<UUID, Version<C>> perTenantConfigurable = new ConcurrentHashMap<UUID, Version<C>>();
+    // The null tenant (ConcurrentHashMap doesn't support null keys)
+    private final AtomicReference<Version<C>> monoTenantConfigurable = new AtomicReference<Version<C>>();
+    private final AtomicLong versions = new AtomicLong();
 
-    private final Map<String, C> perTenantConfigurable = new ConcurrentHashMap<String, C>();
+    private volatile long retirementGracePeriodMillis = DEFAULT_RETIREMENT_GRACE_PERIOD_MILLIS;
+    // Created on first retirement, its thread exits once idle (guarded by this)
+    private ScheduledThreadPoolExecutor retirementExecutor;
 
     private C defaultConfigurable;
 
@@ -52,26 +73,152 @@ public class PluginTenantConfigurable<C> {
         this.defaultConfigurable = defaultConfigurable;
     }
 
+    /**
+     * @param gracePeriod how long a replaced Closeable configurable stays open once its leases are released (0 to close it right away)
+     * @param unit        unit of gracePeriod
+     */
+    public void configureRetirementGracePeriod(final long gracePeriod, final TimeUnit unit) {
+        Preconditions.checkArgument(gracePeriod >= 0, "gracePeriod must not be negative");
+        retirementGracePeriodMillis = unit.toMillis(gracePeriod);
+    }
+
+    // Note: a Closeable configurable replaced by a concurrent put is closed after the retirement grace period, see acquire for longer uses
     public C get(@Nullable final UUID kbTenantId) {
-        final String key = getKey(kbTenantId);
-        final C configurableForTenant = perTenantConfigurable.get(key);
-        return MoreObjects.firstNonNull(configurableForTenant, defaultConfigurable);
+        final Version<C> version = getVersion(kbTenantId);
+        return MoreObjects.firstNonNull(version == null ? null : version.configurable, defaultConfigurable);
+    }
+
+    /**
+     * Lease the current configurable of the tenant: if it is replaced in the meantime, it won't be closed
+     * until all leases have been released.
+     *
+     * @param kbTenantId Kill Bill tenant id
+     * @return the lease, to release (close) once done with the configurable
+     */
+    public Lease<C> acquire(@Nullable final UUID kbTenantId) {
+        while (true) {
+            final Version<C> version = getVersion(kbTenantId);
+            if (version == null) {
+                return new Lease<C>(null, defaultConfigurable);
+            }
+            if (version.retain()) {
+                return new Lease<C>(version, version.configurable);
+            }
+            // Retired concurrently, the new version is already visible
+        }
     }
 
     public void put(@Nullable final UUID kbTenantId, @Nullable final C configurableForTenant) {
-        final String key = getKey(kbTenantId);
-        final C oldConfigurable = perTenantConfigurable.put(key, MoreObjects.firstNonNull(configurableForTenant, defaultConfigurable));
-
-        // Cleanup the old value
-        if (oldConfigurable != null && oldConfigurable instanceof Closeable && oldConfigurable != defaultConfigurable) {
-            try {
-                ((Closeable) oldConfigurable).close();
-            } catch (final IOException ignored) {
+        final C newConfigurable = MoreObjects.firstNonNull(configurableForTenant, defaultConfigurable);
+        // The default configurable is shared, it is never closed
+        final Version<C> newVersion = new Version<C>(this, versions.incrementAndGet(), newConfigurable, newConfigurable != defaultConfigurable);
+        final Version<C> oldVersion = kbTenantId == null ? monoTenantConfigurable.getAndSet(newVersion) : perTenantConfigurable.put(kbTenantId, newVersion);
+
+        // Cleanup the old value, once no longer in use
+        if (oldVersion != null) {
+            oldVersion.release();
+        }
+    }
+
+    private Version<C> getVersion(@Nullable final UUID kbTenantId) {
+        return kbTenantId == null ? monoTenantConfigurable.get() : perTenantConfigurable.get(kbTenantId);
+    }
+
+    private void retire(final Closeable configurable) {
+        final long gracePeriodMillis = retirementGracePeriodMillis;
+        if (gracePeriodMillis == 0) {
+            closeQuietly(configurable);
+            return;
+        }
+
+        getRetirementExecutor().schedule(new Runnable() {
+            @Override
+            public void run() {
+                closeQuietly(configurable);
+            }
+        }, gracePeriodMillis, TimeUnit.MILLISECONDS);
+    }
+
+    private synchronized ScheduledThreadPoolExecutor getRetirementExecutor() {
+        if (retirementExecutor == null) {
+            retirementExecutor = new ScheduledThreadPoolExecutor(1,
+                                                                 new ThreadFactoryBuilder().setDaemon(true)
+                                                                                           .setNameFormat(getClass().getSimpleName() + "-retirement-%d")
+                                                                                           .build());
+            // No lifecycle to hook into: don't keep a thread around between reconfigurations
+            retirementExecutor.setKeepAliveTime(1, TimeUnit.SECONDS);
+            retirementExecutor.allowCoreThreadTimeOut(true);
+        }
+        return retirementExecutor;
+    }
+
+    private static void closeQuietly(final Closeable configurable) {
+        try {
+            configurable.close();
+        } catch (final IOException ignored) {
+        }
+    }
+
+    public static final class Lease<C> implements Closeable {
+
+        private final Version<C> version;
+        private final C configurable;
+        private final AtomicBoolean released = new AtomicBoolean();
+
+        private Lease(@Nullable final Version<C> version, final C configurable) {
+            this.version = version;
+            this.configurable = configurable;
+        }
+
+        public C get() {
+            return configurable;
+        }
+
+        // Increases with each reconfiguration (0 for the default configurable)
+        public long getVersion() {
+            return version == null ? 0 : version.number;
+        }
+
+        @Override
+        public void close() {
+            if (version != null && released.compareAndSet(false, true)) {
+                version.release();
             }
         }
     }
 
-    private String getKey(@Nullable final UUID kbTenantId) {
-        return kbTenantId == null ? MONO_TENANT : kbTenantId.toString();
+    private static final class Version<C> {
+
+        private final PluginTenantConfigurable<C> owner;
+        private final long number;
+        private final C configurable;
+        private final boolean closeable;
+        // One reference held by the map, plus one per lease
+        private final AtomicInteger references = new AtomicInteger(1);
+
+        private Version(final PluginTenantConfigurable<C> owner, final long number, final C configurable, final boolean closeable) {
+            this.owner = owner;
+            this.number = number;
+            this.configurable = configurable;
+            this.closeable = closeable && configurable instanceof Closeable;
+        }
+
+        private boolean retain() {
+            while (true) {
+                final int current = references.get();
+                if (current == 0) {
+                    return false;
+                }
+                if (references.compareAndSet(current, current + 1)) {
+                    return true;
+                }
+            }
+        }
+
+        private void release() {
+            if (references.decrementAndGet() == 0 && closeable) {
+                owner.retire((Closeable) configurable);
+            }
+        }
     }
 }
@@ -17,19 +17,19 @@
 
 package org.killbill.billing.plugin.api.notification;
 
-import java.util.Collection;
-import java.util.HashSet;
 import java.util.Properties;
 import java.util.UUID;
+import java.util.concurrent.TimeUnit;
 
 import javax.annotation.Nullable;
 
 import org.killbill.billing.osgi.libs.killbill.OSGIKillbillAPI;
 import org.killbill.billing.osgi.libs.killbill.OSGIKillbillLogService;
 
+import com.google.common.hash.HashCode;
+
 public abstract class PluginTenantConfigurableConfigurationHandler<C> extends PluginConfigurationHandler {
 
-    private final Collection<UUID> configuredTenants = new HashSet<UUID>();
     private final PluginTenantConfigurable<C> pluginTenantConfigurable = new PluginTenantConfigurable<C>();
 
     public PluginTenantConfigurableConfigurationHandler(final String pluginName,
@@ -47,27 +47,44 @@ public abstract class PluginTenantConfigurableConfigurationHandler<C> extends Pl
 
     @Override
     protected void configure(@Nullable final UUID kbTenantId) {
-        final Properties properties = getTenantConfigurationAsProperties(kbTenantId);
+        final String rawConfiguration = getTenantConfigurationAsString(kbTenantId);
+        if (rawConfiguration == null) {
+            // Tenant not configured, we will default to the global configurable (or previous configuration)
+            return;
+        }
+
+        final HashCode rawConfigurationHash = hashIfChanged(kbTenantId, rawConfiguration);
+        if (rawConfigurationHash == null) {
+            // Unchanged, keep the current configurable
+            return;
+        }
+
+        final Properties properties = toProperties(rawConfiguration);
         if (properties == null) {
-            // Invalid configuration or tenant not configured, we will default to the global configurable (or previous configuration)
+            // Invalid configuration, we will default to the global configurable (or previous configuration)
             return;
         }
 
         final C configurable = createConfigurable(properties);
         pluginTenantConfigurable.put(kbTenantId, configurable);
+        markConfigured(kbTenantId, rawConfigurationHash);
+    }
+
+    // Configurables returned by getConfigurable stay open that long after being replaced, see PluginTenantConfigurable
+    public void configureRetirementGracePeriod(final long gracePeriod, final TimeUnit unit) {
+        pluginTenantConfigurable.configureRetirementGracePeriod(gracePeriod, unit);
     }
 
     public C getConfigurable(@Nullable final UUID kbTenantId) {
         // Initial configuration
-        if (kbTenantId != null && !configuredTenants.contains(kbTenantId)) {
-            // Make sure to initialize the value for the tenant once
-            synchronized (configuredTenants) {
-                if (!configuredTenants.contains(kbTenantId)) {
-                    configure(kbTenantId);
-                    configuredTenants.add(kbTenantId);
-                }
-            }
-        }
+        configureIfNeeded(kbTenantId);
         return pluginTenantConfigurable.get(kbTenantId);
     }
+
+    // For configurables used across calls (e.g. clients): not closed by a reconfiguration until the lease is released
+    public PluginTenantConfigurable.Lease<C> acquireConfigurable(@Nullable final UUID kbTenantId) {
+        // Initial configuration
+        configureIfNeeded(kbTenantId);
+        return pluginTenantConfigurable.acquire(kbTenantId);
+    }
 }
@@ -20,7 +20,6 @@ package org.killbill.billing.plugin.api.payment;
 import java.sql.SQLException;
 import java.util.List;
 import java.util.Map;
-import java.util.Set;
 import java.util.UUID;
 
 import org.joda.time.DateTime;
@@ -36,6 +35,7 @@ import org.killbill.billing.payment.plugin.api.PaymentPluginApi;
 import org.killbill.billing.payment.plugin.api.PaymentPluginApiException;
 import org.killbill.billing.payment.plugin.api.PaymentTransactionInfoPlugin;
 import org.killbill.billing.plugin.api.PluginApi;
+import org.killbill.billing.plugin.api.PluginPagination;
 import org.killbill.billing.plugin.api.PluginProperties;
 import org.killbill.billing.plugin.dao.payment.PluginPaymentDao;
 import org.killbill.billing.util.callcontext.CallContext;
@@ -44,8 +44,6 @@ import org.killbill.billing.util.entity.Pagination;
 import org.killbill.clock.Clock;
 
 import com.google.common.base.Function;
-import com.google.common.collect.ImmutableSet;
-import com.google.common.collect.Iterables;
 import com.google.common.collect.Lists;
 
 public abstract class PluginPaymentPluginApi<RESP_R extends UpdatableRecord<RESP_R>, RESP_T extends Table<RESP_R>, PM_R extends UpdatableRecord<PM_R>, PM_T extends Table<PM_R>> extends PluginApi implements PaymentPluginApi {
@@ -72,6 +70,8 @@ public abstract class PluginPaymentPluginApi<RESP_R extends UpdatableRecord<RESP
     public static final String PROPERTY_AMOUNT = "amount";
     public static final String PROPERTY_CURRENCY = "currency";
 
+    protected static final int MAX_SEARCH_LIMIT = 1000;
+
     protected final PluginPaymentDao<RESP_R, RESP_T, PM_R, PM_T> dao;
 
     public PluginPaymentPluginApi(final OSGIKillbillAPI killbillAPI,
@@ -95,25 +95,32 @@ public abstract class PluginPaymentPluginApi<RESP_R extends UpdatableRecord<RESP
 
     @Override
     public List<PaymentTransactionInfoPlugin> getPaymentInfo(final UUID kbAccountId, final UUID kbPaymentId, final Iterable<PluginProperty> properties, final TenantContext context) throws PaymentPluginApiException {
-        final List<RESP_R> records;
         try {
-            records = dao.getResponses(kbPaymentId, context.getTenantId());
+            // Each row is converted once, after the connection has been released
+            return dao.getResponses(kbPaymentId, context.getTenantId(), this::buildPaymentTransactionInfoPlugin);
         } catch (final SQLException e) {
             throw new PaymentPluginApiException("Unable to retrieve payments for kbPaymentId " + kbPaymentId, e);
         }
-
-        return Lists.<RESP_R, PaymentTransactionInfoPlugin>transform(records,
-                                                                     new Function<RESP_R, PaymentTransactionInfoPlugin>() {
-                                                                         @Override
-                                                                         public PaymentTransactionInfoPlugin apply(final RESP_R record) {
-                                                                             return buildPaymentTransactionInfoPlugin(record);
-                                                                         }
-                                                                     });
     }
 
+    // Note: offsets returned by the search APIs are record ids (keyset pagination), see PluginPaymentDao#searchResponses
     @Override
     public Pagination<PaymentTransactionInfoPlugin> searchPayments(final String searchKey, final Long offset, final Long limit, final Iterable<PluginProperty> properties, final TenantContext context) throws PaymentPluginApiException {
-        throw new PaymentPluginApiException(null, "SEARCH: unsupported operation");
+        final PluginPagination<RESP_R> records;
+        try {
+            records = dao.searchResponses(searchKey, offset, getSearchLimit(limit), context.getTenantId());
+        } catch (final SQLException e) {
+            throw new PaymentPluginApiException("Unable to search payments for searchKey " + searchKey, e);
+        }
+        return records.transform(this::buildPaymentTransactionInfoPlugin);
+    }
+
+    // Page size of the search APIs: null defaults to MAX_SEARCH_LIMIT, larger limits are lowered to it and non-positive ones return an empty page
+    protected int getSearchLimit(final Long limit) {
+        if (limit == null) {
+            return MAX_SEARCH_LIMIT;
+        }
+        return limit <= 0 ? 0 : (int) Math.min(limit, MAX_SEARCH_LIMIT);
     }
 
     // Payment methods
@@ -183,35 +190,22 @@ public abstract class PluginPaymentPluginApi<RESP_R extends UpdatableRecord<RESP
 
     @Override
     public Pagination<PaymentMethodPlugin> searchPaymentMethods(final String searchKey, final Long offset, final Long limit, final Iterable<PluginProperty> properties, final TenantContext context) throws PaymentPluginApiException {
-        throw new PaymentPluginApiException(null, "SEARCH: unsupported operation");
+        final PluginPagination<PM_R> records;
+        try {
+            records = dao.searchPaymentMethods(searchKey, offset, getSearchLimit(limit), context.getTenantId());
+        } catch (final SQLException e) {
+            throw new PaymentPluginApiException("Unable to search payment methods for searchKey " + searchKey, e);
+        }
+        return records.transform(this::buildPaymentMethodPlugin);
     }
 
     @Override
     public void resetPaymentMethods(final UUID kbAccountId, final List<PaymentMethodInfoPlugin> paymentMethods, final Iterable<PluginProperty> properties, final CallContext context) throws PaymentPluginApiException {
-        final List<PM_R> records;
+        final DateTime utcNow = clock.getUTCNow();
         try {
-            records = dao.getPaymentMethods(kbAccountId, context.getTenantId());
+            dao.resetPaymentMethods(kbAccountId, paymentMethods, PluginProperties.toStringMap(properties), utcNow, context.getTenantId());
         } catch (final SQLException e) {
-            throw new PaymentPluginApiException("Unable to retrieve payment methods for kbAccountId " + kbAccountId, e);
-        }
-
-        final Set<UUID> existingPaymentMethodIds = ImmutableSet.<UUID>copyOf(Iterables.<PM_R, UUID>transform(records,
-                                                                                                             new Function<PM_R, UUID>() {
-                                                                                                                 @Override
-                                                                                                                 public UUID apply(final PM_R input) {
-                                                                                                                     return UUID.fromString(getPaymentMethodId(input));
-                                                                                                                 }
-                                                                                                             }));
-
-        final DateTime utcNow = clock.getUTCNow();
-        for (final PaymentMethodInfoPlugin existingPaymentMethod : paymentMethods) {
-            if (!existingPaymentMethodIds.contains(existingPaymentMethod.getPaymentMethodId())) {
-                try {
-                    dao.addPaymentMethod(kbAccountId, existingPaymentMethod.getPaymentMethodId(), existingPaymentMethod.isDefault(), PluginProperties.toStringMap(properties), utcNow, context.getTenantId());
-                } catch (final SQLException e) {
-                    throw new PaymentPluginApiException("Unable to add payment method for kbPaymentMethodId " + existingPaymentMethod.getPaymentMethodId(), e);
-                }
-            }
+            throw new PaymentPluginApiException("Unable to reset payment methods for kbAccountId " + kbAccountId, e);
         }
     }
 }
@@ -18,12 +18,11 @@
 package org.killbill.billing.plugin.core.config;
 
 import java.io.IOException;
-import java.util.Collection;
 import java.util.Collections;
-import java.util.HashSet;
 import java.util.Map;
 import java.util.Properties;
 import java.util.UUID;
+import java.util.concurrent.TimeUnit;
 
 import javax.annotation.Nullable;
 
@@ -38,12 +37,14 @@ import com.fasterxml.jackson.databind.ObjectReader;
 import com.fasterxml.jackson.databind.type.MapType;
 import com.fasterxml.jackson.databind.type.TypeFactory;
 import com.fasterxml.jackson.dataformat.yaml.YAMLFactory;
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Splitter;
+import com.google.common.hash.HashCode;
 
 public abstract class PaymentPluginTenantConfigurationHandler<T> extends PluginConfigurationHandler {
 
     private static ObjectMapper yamlObjectMapper = new ObjectMapper(new YAMLFactory());
 
-    private final Collection<UUID> configuredTenants = new HashSet<>();
     private final PluginTenantConfigurable<T> pluginTenantConfigurable = new PluginTenantConfigurable<>();
 
     private final ObjectReader yamlObjectReader;
@@ -75,39 +76,80 @@ public abstract class PaymentPluginTenantConfigurationHandler<T> extends PluginC
     @Override
     protected void configure(@Nullable final UUID kbTenantId) {
         final String rawConfiguration = getTenantConfigurationAsString(kbTenantId);
-        if (rawConfiguration != null) {
-            try {
-                final Map<String, Map<String, Object>> configObject = yamlObjectReader.readValue(rawConfiguration);
-                final T configurable = createConfigurable(configObject.getOrDefault(configurationKey, Collections
-                        .emptyMap()));
-                pluginTenantConfigurable.put(kbTenantId, configurable);
-            } catch (IOException e) {
-                osgiKillbillLogService.log(LogService.LOG_INFO, "Error while parsing YAML configuration, falling back to parsing Properties", e);
-
-                final Properties properties = getTenantConfigurationAsProperties(kbTenantId);
-                if (properties != null) {
-                    final T configurable = createConfigurable(properties);
-                    pluginTenantConfigurable.put(kbTenantId, configurable);
-                }
+        if (rawConfiguration == null) {
+            return;
+        }
+
+        final HashCode rawConfigurationHash = hashIfChanged(kbTenantId, rawConfiguration);
+        if (rawConfigurationHash == null) {
+            // Unchanged, keep the current configurable
+            return;
+        }
+
+        final T configurable = isProperties(rawConfiguration) ? createConfigurableFromProperties(rawConfiguration) : createConfigurableFromYaml(rawConfiguration);
+        if (configurable != null) {
+            pluginTenantConfigurable.put(kbTenantId, configurable);
+            markConfigured(kbTenantId, rawConfigurationHash);
+        }
+    }
+
+    private T createConfigurableFromYaml(final String rawConfiguration) {
+        final Map<String, Map<String, Object>> configObject;
+        try {
+            configObject = yamlObjectReader.readValue(rawConfiguration);
+        } catch (final IOException e) {
+            // e.g. Properties using whitespace separators
+            osgiKillbillLogService.log(LogService.LOG_INFO, "Error while parsing YAML configuration, falling back to parsing Properties", e);
+            return createConfigurableFromProperties(rawConfiguration);
+        }
+        return createConfigurable(configObject.getOrDefault(configurationKey, Collections.emptyMap()));
+    }
+
+    private T createConfigurableFromProperties(final String rawConfiguration) {
+        final Properties properties = toProperties(rawConfiguration);
+        return properties == null ? null : createConfigurable(properties);
+    }
+
+    // Properties use key=value or key: value lines, while the YAML configuration is a map of maps (key: followed by
+    // an indented block, or key: {...}): a top-level scalar value can only be a Properties file
+    @VisibleForTesting
+    static boolean isProperties(final String rawConfiguration) {
+        for (final String line : Splitter.on('\n').trimResults().omitEmptyStrings().split(rawConfiguration)) {
+            if (line.startsWith("#") || line.startsWith("!") || line.equals("---")) {
+                continue;
+            }
+
+            final int equalsIndex = line.indexOf('=');
+            final int colonIndex = line.indexOf(':');
+            if (colonIndex == -1 || (equalsIndex != -1 && equalsIndex < colonIndex)) {
+                return equalsIndex != -1;
             }
+
+            final String value = line.substring(colonIndex + 1).trim();
+            return !value.isEmpty() && !value.startsWith("{") && !value.startsWith("#");
         }
+        return false;
     }
 
     protected abstract T createConfigurable(final Properties properties);
 
     protected abstract T createConfigurable(final Map<String, ?> configObject);
 
+    // Configurables returned by getConfigurable stay open that long after being replaced, see PluginTenantConfigurable
+    public void configureRetirementGracePeriod(final long gracePeriod, final TimeUnit unit) {
+        pluginTenantConfigurable.configureRetirementGracePeriod(gracePeriod, unit);
+    }
+
     public T getConfigurable(@Nullable final UUID kbTenantId) {
         // Initial configuration
-        if (kbTenantId != null && !configuredTenants.contains(kbTenantId)) {
-            // Make sure to initialize the value for the tenant once
-            synchronized (configuredTenants) {
-                if (!configuredTenants.contains(kbTenantId)) {
-                    configure(kbTenantId);
-                    configuredTenants.add(kbTenantId);
-                }
-            }
-        }
+        configureIfNeeded(kbTenantId);
         return pluginTenantConfigurable.get(kbTenantId);
     }
+
+    // For configurables used across calls (e.g. clients): not closed by a reconfiguration until the lease is released
+    public PluginTenantConfigurable.Lease<T> acquireConfigurable(@Nullable final UUID kbTenantId) {
+        // Initial configuration
+        configureIfNeeded(kbTenantId);
+        return pluginTenantConfigurable.acquire(kbTenantId);
+    }
 }
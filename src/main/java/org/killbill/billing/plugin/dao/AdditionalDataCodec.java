@@ -0,0 +1,47 @@
+/*
+ * Copyright 2014-2017 Groupon, Inc
+ * Copyright 2014-2017 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.dao;
+
+import java.io.IOException;
+
+import javax.annotation.Nullable;
+
+/**
+ * Alternative encoding of ADDITIONAL_DATA columns. Encoded values are stored as {@code <name>:<encoded>}, while plain JSON
+ * values (starting with '{') are stored as-is: rows written with different codecs can coexist in the same table.
+ *
+ * @see PluginDao#setAdditionalDataCodec(AdditionalDataCodec)
+ */
+public interface AdditionalDataCodec {
+
+    // Must not contain ':' nor start with '{'
+    public String getName();
+
+    /**
+     * @param json UTF-8 JSON
+     * @return the text to store (without header), or null to store the plain JSON
+     */
+    @Nullable
+    public String encode(final byte[] json) throws IOException;
+
+    /**
+     * @param encoded text returned by encode
+     * @return the UTF-8 JSON
+     */
+    public byte[] decode(final String encoded) throws IOException;
+}
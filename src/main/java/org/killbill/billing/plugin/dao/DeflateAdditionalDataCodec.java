@@ -0,0 +1,81 @@
+/*
+ * Copyright 2014-2017 Groupon, Inc
+ * Copyright 2014-2017 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.dao;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Base64;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
+
+import com.google.common.base.Preconditions;
+import com.google.common.io.ByteStreams;
+
+// Deflate-compressed JSON, Base64 encoded to fit in text columns
+public class DeflateAdditionalDataCodec implements AdditionalDataCodec {
+
+    public static final String NAME = "deflate";
+
+    // Below this size, the Base64 overhead outweighs the compression gains
+    public static final int DEFAULT_MIN_SIZE = 512;
+
+    private final int minSize;
+
+    public DeflateAdditionalDataCodec() {
+        this(DEFAULT_MIN_SIZE);
+    }
+
+    public DeflateAdditionalDataCodec(final int minSize) {
+        Preconditions.checkArgument(minSize >= 0, "minSize must not be negative");
+        this.minSize = minSize;
+    }
+
+    @Override
+    public String getName() {
+        return NAME;
+    }
+
+    @Override
+    public String encode(final byte[] json) throws IOException {
+        if (json.length < minSize) {
+            return null;
+        }
+
+        final ByteArrayOutputStream compressed = new ByteArrayOutputStream(json.length / 4);
+        final Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+        try (final OutputStream out = new DeflaterOutputStream(compressed, deflater)) {
+            out.write(json);
+        } finally {
+            deflater.end();
+        }
+        return Base64.getEncoder().encodeToString(compressed.toByteArray());
+    }
+
+    @Override
+    public byte[] decode(final String encoded) throws IOException {
+        try (final InputStream in = new InflaterInputStream(new ByteArrayInputStream(Base64.getDecoder().decode(encoded)))) {
+            return ByteStreams.toByteArray(in);
+        } catch (final IllegalArgumentException e) {
+            throw new IOException("Invalid Base64 data", e);
+        }
+    }
+}
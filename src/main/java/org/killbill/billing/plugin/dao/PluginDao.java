@@ -17,37 +17,104 @@
 
 package org.killbill.billing.plugin.dao;
 
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
 import java.sql.Connection;
 import java.sql.SQLException;
 import java.sql.Timestamp;
+import java.util.ArrayList;
 import java.util.Date;
+import java.util.List;
 import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 import javax.annotation.Nullable;
 import javax.sql.DataSource;
 
 import org.joda.time.DateTime;
+import org.jooq.Configuration;
+import org.jooq.DSLContext;
 import org.jooq.SQLDialect;
+import org.jooq.TransactionalCallable;
 import org.jooq.conf.MappedSchema;
 import org.jooq.conf.RenderMapping;
 import org.jooq.conf.Settings;
+import org.jooq.exception.DataAccessException;
+import org.jooq.impl.DSL;
 
 import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.core.util.ByteArrayBuilder;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectReader;
+import com.fasterxml.jackson.databind.ObjectWriter;
+import com.google.common.base.Preconditions;
 import com.google.common.base.Strings;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.RemovalCause;
+import com.google.common.cache.RemovalListener;
+import com.google.common.cache.RemovalNotification;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 
-public class PluginDao {
+public class PluginDao implements Closeable {
 
     public static final byte TRUE = (byte) '1';
     public static final byte FALSE = (byte) '0';
 
     protected static final String DEFAULT_SCHEMA_NAME = "killbill";
 
+    private static final char ADDITIONAL_DATA_HEADER_SEPARATOR = ':';
+
+    private static final int DEFAULT_ASYNC_NB_THREADS = 10;
+    private static final int DEFAULT_ASYNC_QUEUE_CAPACITY = 100;
+
+    private static final long DEFAULT_MAX_RECENT_WRITES = 100000;
+
     protected static final ObjectMapper objectMapper = new ObjectMapper();
+    // Typed writer for additional data, its root serializer is resolved once
+    protected static final ObjectWriter additionalDataWriter = objectMapper.writerFor(Map.class);
+    protected static final ObjectReader additionalDataReader = objectMapper.readerFor(Map.class);
+
+    // Codecs which can be read back, by name
+    private static final Map<String, AdditionalDataCodec> additionalDataCodecs = new ConcurrentHashMap<String, AdditionalDataCodec>();
+
+    static {
+        registerAdditionalDataCodec(new DeflateAdditionalDataCodec());
+    }
 
     protected final DataSource dataSource;
     protected final SQLDialect dialect;
     protected final Settings settings;
+    // Thread-safe and bound to the DataSource: connections are acquired and released for each query
+    protected final DSLContext dslContext;
+
+    // Reset (but not released) after each use: a thread keeps at most its largest block. Not static, so that entries left
+    // on Kill Bill's threads don't pin the bundle classloader once the DAO is gone
+    private final ThreadLocal<ByteArrayBuilder> serializationBuffers = ThreadLocal.withInitial(ByteArrayBuilder::new);
+
+    // Current transaction scope, if any
+    private final ThreadLocal<TransactionScope> transactionScope = new ThreadLocal<TransactionScope>();
+
+    // Null for plain JSON
+    private volatile AdditionalDataCodec additionalDataCodec;
+
+    // Null if reads aren't routed to a replica
+    private volatile ReadReplica readReplica;
+
+    // Created on first use, see configureAsyncExecutor (guarded by this)
+    private ThreadPoolExecutor asyncExecutor;
+    // Once closed, async calls are rejected (guarded by this)
+    private boolean closed;
 
     public PluginDao(final DataSource dataSource) throws SQLException {
         this(dataSource, SQLDialect.MYSQL);
@@ -68,6 +135,266 @@ public class PluginDao {
             }
         }
         this.settings = new Settings().withRenderMapping(new RenderMapping().withSchemata(new MappedSchema().withInput(DEFAULT_SCHEMA_NAME).withOutput(schema)));
+        this.dslContext = DSL.using(dataSource, dialect, settings);
+    }
+
+    public enum Propagation {
+        // Join the transaction of the current thread, or start one
+        REQUIRED,
+        // Always start a new transaction, on its own connection (the current one, if any, is suspended)
+        REQUIRES_NEW
+    }
+
+    public interface TransactionCallback<T> {
+
+        public T doInTransaction() throws SQLException;
+    }
+
+    public <T> T inTransaction(final TransactionCallback<T> callback) throws SQLException {
+        return inTransaction(Propagation.REQUIRED, callback);
+    }
+
+    /**
+     * Run several DAO calls on a single connection and transaction: calls made by the current thread within the callback
+     * share it. The transaction is committed when the callback returns, and rolled back if it throws.
+     *
+     * @param propagation whether to join the transaction of the current thread
+     * @param callback    DAO calls to run
+     * @return the value returned by the callback
+     */
+    public <T> T inTransaction(final Propagation propagation, final TransactionCallback<T> callback) throws SQLException {
+        final TransactionScope current = transactionScope.get();
+        if (current != null && propagation == Propagation.REQUIRED) {
+            return callback.doInTransaction();
+        }
+
+        final List<Runnable> afterCommitActions = new ArrayList<Runnable>();
+        final T result;
+        try {
+            result = dslContext.transactionResult(new TransactionalCallable<T>() {
+                @Override
+                public T run(final Configuration configuration) throws Exception {
+                    transactionScope.set(new TransactionScope(DSL.using(configuration), afterCommitActions));
+                    try {
+                        return callback.doInTransaction();
+                    } finally {
+                        // Resume the suspended transaction, if any
+                        if (current == null) {
+                            transactionScope.remove();
+                        } else {
+                            transactionScope.set(current);
+                        }
+                    }
+                }
+            });
+        } catch (final DataAccessException e) {
+            // Checked exceptions are wrapped by jOOQ on rollback
+            if (e.getCause() instanceof SQLException) {
+                throw (SQLException) e.getCause();
+            }
+            throw e;
+        }
+
+        for (final Runnable afterCommitAction : afterCommitActions) {
+            afterCommitAction.run();
+        }
+        return result;
+    }
+
+    protected boolean isInTransaction() {
+        return transactionScope.get() != null;
+    }
+
+    protected DSLContext dsl() {
+        final TransactionScope scope = transactionScope.get();
+        return scope == null ? dslContext : scope.dslContext;
+    }
+
+    /**
+     * Run an action once the writes of the current transaction scope are visible to other connections, e.g. to invalidate
+     * a cache (invalidated earlier, other threads could re-load the previous rows until the commit). Actions are run right
+     * away outside of a transaction scope, and dropped if the transaction is rolled back.
+     *
+     * @param action action to run after the commit
+     */
+    protected void afterCommit(final Runnable action) {
+        final TransactionScope scope = transactionScope.get();
+        if (scope == null) {
+            action.run();
+        } else {
+            scope.afterCommitActions.add(action);
+        }
+    }
+
+    public void enableReadOnlyDataSource(final DataSource readOnlyDataSource, final long readYourWritesWindow, final TimeUnit unit) {
+        enableReadOnlyDataSource(readOnlyDataSource, readYourWritesWindow, unit, DEFAULT_MAX_RECENT_WRITES);
+    }
+
+    /**
+     * Route reads not needing the latest data to a replica. To still read their own writes, DAOs record the ids they
+     * write (see recordWrite): reads of these ids keep going to the primary for the given window, which should exceed the replication lag.
+     * <p/>
+     * If more ids are written within the window than can be remembered, the oldest ones are forgotten: all reads are then
+     * routed to the primary for a whole window, so that the guarantee holds (size maxRecentWrites to the write rate times the window).
+     *
+     * @param readOnlyDataSource   replica
+     * @param readYourWritesWindow how long reads of a written id are routed to the primary
+     * @param unit                 unit of the window
+     * @param maxRecentWrites      maximum number of written ids remembered
+     */
+    public void enableReadOnlyDataSource(final DataSource readOnlyDataSource, final long readYourWritesWindow, final TimeUnit unit, final long maxRecentWrites) {
+        Preconditions.checkArgument(maxRecentWrites > 0, "maxRecentWrites must be positive");
+
+        readReplica = new ReadReplica(DSL.using(readOnlyDataSource, dialect, settings), readYourWritesWindow, unit, maxRecentWrites);
+    }
+
+    public void disableReadOnlyDataSource() {
+        readReplica = null;
+    }
+
+    // Ids are typically the Kill Bill payment, payment method, account or tenant ids
+    protected void recordWrite(final UUID... ids) {
+        final ReadReplica replica = readReplica;
+        if (replica == null) {
+            return;
+        }
+        for (final UUID id : ids) {
+            if (id != null) {
+                replica.recentWrites.put(id, Boolean.TRUE);
+            }
+        }
+    }
+
+    /**
+     * @param ids ids of the rows read
+     * @return the replica context, unless there is none, the current thread is in a transaction scope or one of the ids was written recently
+     */
+    protected DSLContext readDsl(final UUID... ids) {
+        final ReadReplica replica = readReplica;
+        if (replica == null || isInTransaction() || System.nanoTime() - replica.primaryOnlyUntilNanos < 0) {
+            return dsl();
+        }
+        for (final UUID id : ids) {
+            if (id != null && replica.recentWrites.getIfPresent(id) != null) {
+                return dsl();
+            }
+        }
+        return replica.dslContext;
+    }
+
+    /**
+     * Size the executor running the *Async DAO calls, typically to the number of connections the plugin can use.
+     * When the queue is full, calls are run on the calling thread, which throttles producers.
+     *
+     * @param nbThreads     number of threads (i.e. of concurrent connections)
+     * @param queueCapacity maximum number of pending calls
+     */
+    public void configureAsyncExecutor(final int nbThreads, final int queueCapacity) {
+        final ThreadPoolExecutor previousAsyncExecutor;
+        synchronized (this) {
+            Preconditions.checkState(!closed, "DAO is closed");
+            previousAsyncExecutor = asyncExecutor;
+            asyncExecutor = newAsyncExecutor(nbThreads, queueCapacity);
+        }
+        shutdown(previousAsyncExecutor);
+    }
+
+    private ThreadPoolExecutor newAsyncExecutor(final int nbThreads, final int queueCapacity) {
+        Preconditions.checkArgument(nbThreads > 0, "nbThreads must be positive");
+        Preconditions.checkArgument(queueCapacity > 0, "queueCapacity must be positive");
+
+        return new ThreadPoolExecutor(nbThreads,
+                                      nbThreads,
+                                      0L,
+                                      TimeUnit.MILLISECONDS,
+                                      new ArrayBlockingQueue<Runnable>(queueCapacity),
+                                      new ThreadFactoryBuilder().setDaemon(true)
+                                                                .setNameFormat(getClass().getSimpleName() + "-async-%d")
+                                                                .build(),
+                                      new RejectedExecutionHandler() {
+                                          @Override
+                                          public void rejectedExecution(final Runnable runnable, final ThreadPoolExecutor executor) {
+                                              if (executor.isShutdown()) {
+                                                  throw new RejectedExecutionException("Async executor is shut down");
+                                              }
+                                              runOutsideOfTransaction(runnable);
+                                          }
+                                      });
+    }
+
+    /**
+     * Run a DAO call on the async executor. The call doesn't take part in the transaction scope of the calling thread, if any.
+     * Once the DAO is closed, the returned future fails with a RejectedExecutionException.
+     *
+     * @param callable DAO call
+     * @return future completed with the result of the call
+     */
+    protected <T> CompletableFuture<T> executeAsync(final Callable<T> callable) {
+        final CompletableFuture<T> future = new CompletableFuture<T>();
+        try {
+            getAsyncExecutor().execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        future.complete(callable.call());
+                    } catch (final Exception e) {
+                        future.completeExceptionally(e);
+                    }
+                }
+            });
+        } catch (final RejectedExecutionException e) {
+            future.completeExceptionally(e);
+        }
+        return future;
+    }
+
+    private synchronized ThreadPoolExecutor getAsyncExecutor() {
+        if (closed) {
+            throw new RejectedExecutionException("DAO is closed");
+        }
+        if (asyncExecutor == null) {
+            asyncExecutor = newAsyncExecutor(DEFAULT_ASYNC_NB_THREADS, DEFAULT_ASYNC_QUEUE_CAPACITY);
+        }
+        return asyncExecutor;
+    }
+
+    private void runOutsideOfTransaction(final Runnable runnable) {
+        final TransactionScope suspended = transactionScope.get();
+        transactionScope.remove();
+        try {
+            runnable.run();
+        } finally {
+            if (suspended != null) {
+                transactionScope.set(suspended);
+            }
+        }
+    }
+
+    // Pending async calls are completed before returning
+    private void shutdown(@Nullable final ThreadPoolExecutor executor) {
+        if (executor == null) {
+            return;
+        }
+
+        executor.shutdown();
+        try {
+            executor.awaitTermination(1, TimeUnit.MINUTES);
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    // Release any background resource (the DataSource itself is owned by the caller). The async executor isn't re-created afterwards
+    @Override
+    public void close() throws IOException {
+        final ThreadPoolExecutor executor;
+        synchronized (this) {
+            closed = true;
+            executor = asyncExecutor;
+            asyncExecutor = null;
+        }
+        shutdown(executor);
+        serializationBuffers.remove();
     }
 
     protected static byte fromBoolean(final Boolean bool) {
@@ -86,11 +413,95 @@ public class PluginDao {
         return Strings.emptyToNull(additionalData == null || additionalData.get(key) == null ? null : String.valueOf(additionalData.get(key)));
     }
 
+    /**
+     * Encode additional data written by this DAO from now on. Existing rows stay readable through fromAdditionalData,
+     * whatever codec they were written with (the codec is also registered for reads).
+     *
+     * @param additionalDataCodec codec to use, null for plain JSON (the default)
+     */
+    public void setAdditionalDataCodec(@Nullable final AdditionalDataCodec additionalDataCodec) {
+        if (additionalDataCodec != null) {
+            registerAdditionalDataCodec(additionalDataCodec);
+        }
+        this.additionalDataCodec = additionalDataCodec;
+    }
+
+    public static void registerAdditionalDataCodec(final AdditionalDataCodec additionalDataCodec) {
+        Preconditions.checkArgument(!additionalDataCodec.getName().isEmpty() &&
+                                    additionalDataCodec.getName().indexOf(ADDITIONAL_DATA_HEADER_SEPARATOR) == -1 &&
+                                    additionalDataCodec.getName().charAt(0) != '{',
+                                    "Invalid codec name: %s", additionalDataCodec.getName());
+        additionalDataCodecs.put(additionalDataCodec.getName(), additionalDataCodec);
+    }
+
+    /**
+     * Decode an ADDITIONAL_DATA column, whether it was written as plain JSON or through a registered codec.
+     *
+     * @param additionalData column value
+     * @return the additional data (empty if null)
+     */
+    @SuppressWarnings("unchecked")
+    public static Map<String, Object> fromAdditionalData(@Nullable final String additionalData) throws SQLException {
+        if (Strings.isNullOrEmpty(additionalData)) {
+            return ImmutableMap.<String, Object>of();
+        }
+
+        try {
+            if (additionalData.charAt(0) == '{') {
+                return additionalDataReader.readValue(additionalData);
+            }
+
+            final int separatorIndex = additionalData.indexOf(ADDITIONAL_DATA_HEADER_SEPARATOR);
+            final AdditionalDataCodec codec = separatorIndex > 0 ? additionalDataCodecs.get(additionalData.substring(0, separatorIndex)) : null;
+            if (codec == null) {
+                throw new SQLException("Unknown additional data format: " + additionalData.substring(0, Math.min(additionalData.length(), 16)));
+            }
+            return additionalDataReader.readValue(codec.decode(additionalData.substring(separatorIndex + 1)));
+        } catch (final IOException e) {
+            throw new SQLException(e);
+        }
+    }
+
     protected String asString(final Map additionalData) throws SQLException {
         if (additionalData == null || additionalData.isEmpty()) {
             return null;
         }
-        return asString((Object) additionalData);
+
+        final AdditionalDataCodec codec = additionalDataCodec;
+        if (codec != null) {
+            final byte[] json = asBytes(additionalData);
+            final String encoded;
+            try {
+                encoded = codec.encode(json);
+            } catch (final IOException e) {
+                throw new SQLException(e);
+            }
+            return encoded == null ? new String(json, StandardCharsets.UTF_8) : codec.getName() + ADDITIONAL_DATA_HEADER_SEPARATOR + encoded;
+        }
+
+        try {
+            // Char buffers are recycled by Jackson itself
+            return additionalDataWriter.writeValueAsString(additionalData);
+        } catch (final JsonProcessingException e) {
+            throw new SQLException(e);
+        }
+    }
+
+    // UTF-8 JSON, for BLOB columns
+    protected byte[] asBytes(final Map additionalData) throws SQLException {
+        if (additionalData == null || additionalData.isEmpty()) {
+            return null;
+        }
+
+        final ByteArrayBuilder buffer = serializationBuffers.get();
+        try {
+            additionalDataWriter.writeValue(buffer, additionalData);
+            return buffer.toByteArray();
+        } catch (final IOException e) {
+            throw new SQLException(e);
+        } finally {
+            buffer.reset();
+        }
     }
 
     protected String asString(final Object additionalData) throws SQLException {
@@ -113,4 +524,42 @@ public class PluginDao {
             conn.close();
         }
     }
+
+    private static final class TransactionScope {
+
+        // Bound to the connection of the transaction
+        private final DSLContext dslContext;
+        private final List<Runnable> afterCommitActions;
+
+        private TransactionScope(final DSLContext dslContext, final List<Runnable> afterCommitActions) {
+            this.dslContext = dslContext;
+            this.afterCommitActions = afterCommitActions;
+        }
+    }
+
+    private static final class ReadReplica {
+
+        private final DSLContext dslContext;
+        private final Cache<UUID, Boolean> recentWrites;
+        // While in the future, recent writes may have been forgotten: reads go to the primary
+        private volatile long primaryOnlyUntilNanos = System.nanoTime();
+
+        private ReadReplica(final DSLContext dslContext, final long readYourWritesWindow, final TimeUnit unit, final long maxRecentWrites) {
+            this.dslContext = dslContext;
+            final long readYourWritesWindowNanos = unit.toNanos(readYourWritesWindow);
+            this.recentWrites = CacheBuilder.newBuilder()
+                                            .maximumSize(maxRecentWrites)
+                                            .expireAfterWrite(readYourWritesWindow, unit)
+                                            .removalListener(new RemovalListener<UUID, Boolean>() {
+                                                @Override
+                                                public void onRemoval(final RemovalNotification<UUID, Boolean> notification) {
+                                                    // Evicted before the end of its window
+                                                    if (notification.getCause() == RemovalCause.SIZE) {
+                                                        primaryOnlyUntilNanos = System.nanoTime() + readYourWritesWindowNanos;
+                                                    }
+                                                }
+                                            })
+                                            .build();
+        }
+    }
 }
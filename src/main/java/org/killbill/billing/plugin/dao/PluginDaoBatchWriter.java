@@ -0,0 +1,182 @@
+/*
+ * Copyright 2014-2017 Groupon, Inc
+ * Copyright 2014-2017 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.dao;
+
+import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableList;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+// Coalesces concurrent writes into batches, flushed either when maxBatchSize elements are pending
+// or when the oldest pending element has waited maxDelayMillis. Futures are completed once the batch
+// has been written, i.e. once the rows are durable.
+public class PluginDaoBatchWriter<T> implements Closeable {
+
+    private static final long IDLE_POLL_MILLIS = 100;
+
+    public interface BatchCallback<T> {
+
+        public void write(final List<T> batch) throws Exception;
+    }
+
+    private final BlockingQueue<PendingWrite<T>> queue = new LinkedBlockingQueue<PendingWrite<T>>();
+    private final int maxBatchSize;
+    private final long maxDelayNanos;
+    private final BatchCallback<T> callback;
+    private final ExecutorService flusher;
+
+    private volatile boolean running = true;
+
+    public PluginDaoBatchWriter(final String name, final int maxBatchSize, final long maxDelayMillis, final BatchCallback<T> callback) {
+        Preconditions.checkArgument(maxBatchSize > 0, "maxBatchSize must be positive");
+        Preconditions.checkArgument(maxDelayMillis >= 0, "maxDelayMillis must not be negative");
+
+        this.maxBatchSize = maxBatchSize;
+        this.maxDelayNanos = TimeUnit.MILLISECONDS.toNanos(maxDelayMillis);
+        this.callback = callback;
+        this.flusher = Executors.newSingleThreadExecutor(new ThreadFactoryBuilder().setDaemon(true)
+                                                                                   .setNameFormat(name + "-%d")
+                                                                                   .build());
+        this.flusher.submit(new Runnable() {
+            @Override
+            public void run() {
+                flushLoop();
+            }
+        });
+    }
+
+    public CompletableFuture<Void> submit(final T element) {
+        final PendingWrite<T> pendingWrite = new PendingWrite<T>(element);
+        if (!running) {
+            pendingWrite.future.completeExceptionally(new IllegalStateException("Batch writer is closed"));
+            return pendingWrite.future;
+        }
+
+        queue.add(pendingWrite);
+        if (!running && queue.remove(pendingWrite)) {
+            // Raced with close()
+            pendingWrite.future.completeExceptionally(new IllegalStateException("Batch writer is closed"));
+        }
+        return pendingWrite.future;
+    }
+
+    public int getPendingCount() {
+        return queue.size();
+    }
+
+    // Pending writes are flushed before returning
+    @Override
+    public void close() {
+        running = false;
+        flusher.shutdown();
+        try {
+            flusher.awaitTermination(1, TimeUnit.MINUTES);
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+
+        // Writes which raced with the shutdown
+        PendingWrite<T> pendingWrite;
+        while ((pendingWrite = queue.poll()) != null) {
+            pendingWrite.future.completeExceptionally(new IllegalStateException("Batch writer is closed"));
+        }
+    }
+
+    private void flushLoop() {
+        final List<PendingWrite<T>> batch = new ArrayList<PendingWrite<T>>(maxBatchSize);
+        while (running || !queue.isEmpty()) {
+            try {
+                final PendingWrite<T> first = queue.poll(IDLE_POLL_MILLIS, TimeUnit.MILLISECONDS);
+                if (first == null) {
+                    continue;
+                }
+                batch.add(first);
+
+                // Wait for more writes, up to the deadline of the first one
+                final long deadline = System.nanoTime() + maxDelayNanos;
+                while (batch.size() < maxBatchSize) {
+                    final long remaining = deadline - System.nanoTime();
+                    final PendingWrite<T> next = remaining > 0 ? queue.poll(remaining, TimeUnit.NANOSECONDS) : queue.poll();
+                    if (next == null) {
+                        break;
+                    }
+                    batch.add(next);
+                }
+
+                flush(batch);
+            } catch (final InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            } finally {
+                batch.clear();
+            }
+        }
+    }
+
+    private void flush(final List<PendingWrite<T>> batch) {
+        try {
+            final ImmutableList.Builder<T> elements = ImmutableList.builder();
+            for (final PendingWrite<T> pendingWrite : batch) {
+                elements.add(pendingWrite.element);
+            }
+            callback.write(elements.build());
+            for (final PendingWrite<T> pendingWrite : batch) {
+                pendingWrite.future.complete(null);
+            }
+        } catch (final Exception e) {
+            if (batch.size() == 1) {
+                batch.get(0).future.completeExceptionally(e);
+                return;
+            }
+
+            // Retry one by one, so that a single bad element doesn't fail the whole batch
+            for (final PendingWrite<T> pendingWrite : batch) {
+                try {
+                    callback.write(ImmutableList.<T>of(pendingWrite.element));
+                    pendingWrite.future.complete(null);
+                } catch (final Throwable individualThrowable) {
+                    pendingWrite.future.completeExceptionally(individualThrowable);
+                }
+            }
+        } catch (final Throwable t) {
+            // E.g. an OutOfMemoryError: fail the batch rather than the flusher thread, which is the only one
+            for (final PendingWrite<T> pendingWrite : batch) {
+                pendingWrite.future.completeExceptionally(t);
+            }
+        }
+    }
+
+    private static final class PendingWrite<T> {
+
+        private final T element;
+        private final CompletableFuture<Void> future = new CompletableFuture<Void>();
+
+        private PendingWrite(final T element) {
+            this.element = element;
+        }
+    }
+}
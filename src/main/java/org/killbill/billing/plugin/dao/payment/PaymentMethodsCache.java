@@ -0,0 +1,207 @@
+/*
+ * Copyright 2014-2017 Groupon, Inc
+ * Copyright 2014-2017 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.dao.payment;
+
+import java.sql.SQLException;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.function.UnaryOperator;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
+import com.google.common.collect.ImmutableList;
+
+// Read-through cache of payment method rows, keyed by tenant. Callers get their own copy of the cached records.
+//
+// Each entry is stamped with the versions of its key and of its tenant, read before the rows were loaded: invalidations
+// bump them, so that an entry loaded before a concurrent write is never served, even if it is put after the invalidation.
+final class PaymentMethodsCache<PM_R> {
+
+    // Versions of keys are striped: two keys sharing a stripe only cause spurious misses, never stale hits
+    private static final int NB_KEY_VERSIONS = 4096;
+
+    interface Loader<T> {
+
+        T load() throws SQLException;
+    }
+
+    private final Cache<Key, Entry> cache;
+    private final UnaryOperator<PM_R> copier;
+    private final AtomicLongArray keyVersions = new AtomicLongArray(NB_KEY_VERSIONS);
+    private final ConcurrentMap<UUID, AtomicLong> tenantVersions = new ConcurrentHashMap<UUID, AtomicLong>();
+
+    PaymentMethodsCache(final long maximumSize, final long ttl, final TimeUnit ttlUnit, final UnaryOperator<PM_R> copier) {
+        this.cache = CacheBuilder.newBuilder()
+                                 .maximumSize(maximumSize)
+                                 .expireAfterWrite(ttl, ttlUnit)
+                                 .recordStats()
+                                 .build();
+        this.copier = copier;
+    }
+
+    @SuppressWarnings("unchecked")
+    PM_R getPaymentMethod(final UUID kbTenantId, final UUID kbPaymentMethodId, final Loader<PM_R> loader) throws SQLException {
+        final Key key = new Key(false, kbTenantId, kbPaymentMethodId);
+        final PM_R cached = (PM_R) getIfCurrent(key);
+        if (cached != null) {
+            return copier.apply(cached);
+        }
+
+        final long keyVersion = keyVersions.get(keyVersionIndex(key));
+        final long tenantVersion = tenantVersion(kbTenantId).get();
+        final PM_R record = loader.load();
+        if (record != null) {
+            putIfCurrent(key, new Entry(copier.apply(record), keyVersion, tenantVersion));
+        }
+        return record;
+    }
+
+    @SuppressWarnings("unchecked")
+    List<PM_R> getPaymentMethods(final UUID kbTenantId, final UUID kbAccountId, final Loader<List<PM_R>> loader) throws SQLException {
+        final Key key = new Key(true, kbTenantId, kbAccountId);
+        final List<PM_R> cached = (List<PM_R>) getIfCurrent(key);
+        if (cached != null) {
+            return copy(cached);
+        }
+
+        final long keyVersion = keyVersions.get(keyVersionIndex(key));
+        final long tenantVersion = tenantVersion(kbTenantId).get();
+        final List<PM_R> records = loader.load();
+        putIfCurrent(key, new Entry(copy(records), keyVersion, tenantVersion));
+        return records;
+    }
+
+    // To be called once the write is visible to other connections (i.e. committed)
+    void invalidatePaymentMethod(final UUID kbTenantId, final UUID kbPaymentMethodId) {
+        invalidate(new Key(false, kbTenantId, kbPaymentMethodId));
+    }
+
+    // To be called once the write is visible to other connections (i.e. committed)
+    void invalidatePaymentMethods(final UUID kbTenantId, final UUID kbAccountId) {
+        invalidate(new Key(true, kbTenantId, kbAccountId));
+    }
+
+    // To be called once the write is visible to other connections (i.e. committed)
+    void invalidateTenant(final UUID kbTenantId) {
+        tenantVersion(kbTenantId).incrementAndGet();
+        cache.asMap().keySet().removeIf(key -> key.kbTenantId.equals(kbTenantId));
+    }
+
+    CacheStats stats() {
+        return cache.stats();
+    }
+
+    private void invalidate(final Key key) {
+        keyVersions.incrementAndGet(keyVersionIndex(key));
+        cache.invalidate(key);
+    }
+
+    private Object getIfCurrent(final Key key) {
+        final Entry entry = cache.getIfPresent(key);
+        if (entry == null) {
+            return null;
+        } else if (isCurrent(key, entry)) {
+            return entry.value;
+        } else {
+            // Loaded before an invalidation, and put after it
+            cache.asMap().remove(key, entry);
+            return null;
+        }
+    }
+
+    private void putIfCurrent(final Key key, final Entry entry) {
+        // Entries are checked again on read: this only avoids caching entries known to be stale
+        if (isCurrent(key, entry)) {
+            cache.put(key, entry);
+        }
+    }
+
+    private boolean isCurrent(final Key key, final Entry entry) {
+        return keyVersions.get(keyVersionIndex(key)) == entry.keyVersion &&
+               tenantVersion(key.kbTenantId).get() == entry.tenantVersion;
+    }
+
+    private int keyVersionIndex(final Key key) {
+        return (key.hashCode() & Integer.MAX_VALUE) % NB_KEY_VERSIONS;
+    }
+
+    private AtomicLong tenantVersion(final UUID kbTenantId) {
+        // Avoid computeIfAbsent on the hot path, it locks the bin even when the tenant is already known
+        final AtomicLong tenantVersion = tenantVersions.get(kbTenantId);
+        return tenantVersion != null ? tenantVersion : tenantVersions.computeIfAbsent(kbTenantId, id -> new AtomicLong());
+    }
+
+    private List<PM_R> copy(final List<PM_R> records) {
+        final ImmutableList.Builder<PM_R> copies = ImmutableList.builder();
+        for (final PM_R record : records) {
+            copies.add(copier.apply(record));
+        }
+        return copies.build();
+    }
+
+    private static final class Entry {
+
+        private final Object value;
+        private final long keyVersion;
+        private final long tenantVersion;
+
+        private Entry(final Object value, final long keyVersion, final long tenantVersion) {
+            this.value = value;
+            this.keyVersion = keyVersion;
+            this.tenantVersion = tenantVersion;
+        }
+    }
+
+    private static final class Key {
+
+        private final boolean isAccountKey;
+        private final UUID kbTenantId;
+        private final UUID id;
+
+        private Key(final boolean isAccountKey, final UUID kbTenantId, final UUID id) {
+            this.isAccountKey = isAccountKey;
+            this.kbTenantId = kbTenantId;
+            this.id = id;
+        }
+
+        @Override
+        public boolean equals(final Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (o == null || getClass() != o.getClass()) {
+                return false;
+            }
+            final Key key = (Key) o;
+            return isAccountKey == key.isAccountKey &&
+                   kbTenantId.equals(key.kbTenantId) &&
+                   id.equals(key.id);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * (31 * id.hashCode() + kbTenantId.hashCode()) + (isAccountKey ? 1 : 0);
+        }
+    }
+}
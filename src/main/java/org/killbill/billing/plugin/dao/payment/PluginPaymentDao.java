@@ -17,26 +17,61 @@
 
 package org.killbill.billing.plugin.dao.payment;
 
+import java.io.IOException;
 import java.math.BigDecimal;
-import java.sql.Connection;
 import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.TreeMap;
 import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.Consumer;
+import java.util.function.Function;
+
+import javax.annotation.Nullable;
 
 import javax.sql.DataSource;
 
 import org.joda.time.DateTime;
+import org.jooq.Condition;
 import org.jooq.Configuration;
+import org.jooq.Cursor;
+import org.jooq.DSLContext;
+import org.jooq.Field;
+import org.jooq.InsertValuesStepN;
+import org.jooq.Record;
+import org.jooq.Record1;
+import org.jooq.ResultQuery;
+import org.jooq.SQLDialect;
+import org.jooq.Select;
 import org.jooq.Table;
+import org.jooq.TransactionalCallable;
 import org.jooq.TransactionalRunnable;
 import org.jooq.UpdatableRecord;
 import org.jooq.impl.DSL;
 import org.killbill.billing.catalog.api.Currency;
 import org.killbill.billing.payment.api.TransactionType;
+import org.killbill.billing.payment.plugin.api.PaymentMethodInfoPlugin;
+import org.killbill.billing.plugin.api.PluginPagination;
 import org.killbill.billing.plugin.api.payment.PluginPaymentPluginApi;
 import org.killbill.billing.plugin.dao.PluginDao;
+import org.killbill.billing.plugin.dao.PluginDaoBatchWriter;
+import org.killbill.billing.plugin.dao.PluginDaoBatchWriter.BatchCallback;
+
+import com.google.common.base.Preconditions;
+import com.google.common.cache.CacheStats;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Iterables;
 
 public abstract class PluginPaymentDao<RESP_R extends UpdatableRecord<RESP_R>, RESP_T extends Table<RESP_R>, PM_R extends UpdatableRecord<PM_R>, PM_T extends Table<PM_R>> extends PluginDao {
 
@@ -75,11 +110,18 @@ public abstract class PluginPaymentDao<RESP_R extends UpdatableRecord<RESP_R>, R
     protected static final String UPDATED_DATE = "UPDATED_DATE";
     protected static final String KB_TENANT_ID = "KB_TENANT_ID";
 
+    private static final long DEFAULT_RESPONSES_BATCH_WRITE_TIMEOUT_MILLIS = 30000L;
+
     protected final RESP_T responsesTable;
     protected final PM_T paymentMethodsTable;
 
     private final String recordIdFieldName;
 
+    private volatile PluginDaoBatchWriter<Object[]> responsesBatchWriter;
+    private volatile long responsesBatchWriteTimeoutMillis = DEFAULT_RESPONSES_BATCH_WRITE_TIMEOUT_MILLIS;
+    private volatile PaymentMethodsCache<PM_R> paymentMethodsCache;
+    private volatile PreRenderedQueries preRenderedQueries;
+
     public PluginPaymentDao(final RESP_T responsesTable,
                             final PM_T paymentMethodsTable,
                             final DataSource dataSource,
@@ -94,8 +136,68 @@ public abstract class PluginPaymentDao<RESP_R extends UpdatableRecord<RESP_R>, R
         this(responsesTable, paymentMethodsTable, dataSource, RECORD_ID);
     }
 
+    /**
+     * Render the SQL of the queries run on every payment call (responses of a payment, successful authorization, payment method by id)
+     * once, instead of on each call. Statements are still prepared on each call: to avoid re-parsing them, enable statement
+     * caching in the pool or the driver (e.g. cachePrepStmts for MySQL Connector/J).
+     */
+    public void enablePreRenderedQueries() {
+        // Only the bind variables placeholders are rendered
+        final UUID placeholder = new UUID(0L, 0L);
+        preRenderedQueries = new PreRenderedQueries(dslContext.render(selectResponses(dslContext, placeholder, null, placeholder)),
+                                                    dslContext.render(selectSuccessfulAuthorizationResponse(dslContext, placeholder, null, placeholder)),
+                                                    dslContext.render(selectPaymentMethod(dslContext, placeholder, placeholder)));
+    }
+
+    public void disablePreRenderedQueries() {
+        preRenderedQueries = null;
+    }
+
     // Responses
 
+    public void enableResponsesBatching(final int maxBatchSize, final long maxDelayMillis) {
+        enableResponsesBatching(maxBatchSize, maxDelayMillis, DEFAULT_RESPONSES_BATCH_WRITE_TIMEOUT_MILLIS);
+    }
+
+    /**
+     * Coalesce concurrent addResponse calls into multi-row INSERTs. Each call still returns only once its row has been written.
+     *
+     * @param maxBatchSize       maximum number of rows per INSERT
+     * @param maxDelayMillis     maximum time a row waits for other rows to be batched with
+     * @param writeTimeoutMillis maximum time addResponse waits for its row to be written, before failing (the row may still be written afterwards)
+     */
+    public synchronized void enableResponsesBatching(final int maxBatchSize, final long maxDelayMillis, final long writeTimeoutMillis) {
+        Preconditions.checkArgument(writeTimeoutMillis > 0, "writeTimeoutMillis must be positive");
+
+        disableResponsesBatching();
+        // Published by the volatile write of responsesBatchWriter below
+        responsesBatchWriteTimeoutMillis = writeTimeoutMillis;
+        responsesBatchWriter = new PluginDaoBatchWriter<Object[]>(responsesTable.getName() + "-batch-writer",
+                                                                  maxBatchSize,
+                                                                  maxDelayMillis,
+                                                                  new BatchCallback<Object[]>() {
+                                                                      @Override
+                                                                      public void write(final List<Object[]> batch) {
+                                                                          insertResponses(dsl(), batch);
+                                                                      }
+                                                                  });
+    }
+
+    // Pending responses are flushed before returning
+    public synchronized void disableResponsesBatching() {
+        final PluginDaoBatchWriter<Object[]> batchWriter = responsesBatchWriter;
+        responsesBatchWriter = null;
+        if (batchWriter != null) {
+            batchWriter.close();
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        disableResponsesBatching();
+        super.close();
+    }
+
     public void addResponse(final UUID kbAccountId,
                             final UUID kbPaymentId,
                             final UUID kbPaymentTransactionId,
@@ -105,245 +207,767 @@ public abstract class PluginPaymentDao<RESP_R extends UpdatableRecord<RESP_R>, R
                             final Map additionalData,
                             final DateTime utcNow,
                             final UUID kbTenantId) throws SQLException {
-        execute(dataSource.getConnection(),
-                new WithConnectionCallback<Void>() {
-                    @Override
-                    public Void withConnection(final Connection conn) throws SQLException {
-                        DSL.using(conn, dialect, settings)
-                           .insertInto(responsesTable,
-                                       DSL.field(responsesTable.getName() + "." + KB_ACCOUNT_ID),
-                                       DSL.field(responsesTable.getName() + "." + KB_PAYMENT_ID),
-                                       DSL.field(responsesTable.getName() + "." + KB_PAYMENT_TRANSACTION_ID),
-                                       DSL.field(responsesTable.getName() + "." + TRANSACTION_TYPE),
-                                       DSL.field(responsesTable.getName() + "." + AMOUNT),
-                                       DSL.field(responsesTable.getName() + "." + CURRENCY),
-                                       DSL.field(responsesTable.getName() + "." + ADDITIONAL_DATA),
-                                       DSL.field(responsesTable.getName() + "." + CREATED_DATE),
-                                       DSL.field(responsesTable.getName() + "." + KB_TENANT_ID))
-                           .values(kbAccountId.toString(),
-                                   kbPaymentId.toString(),
-                                   kbPaymentTransactionId.toString(),
-                                   transactionType.toString(),
-                                   amount,
-                                   currency == null ? null : currency.name(),
-                                   asString(additionalData),
-                                   toTimestamp(utcNow),
-                                   kbTenantId.toString())
-                           .execute();
-                        return null;
-                    }
-                });
+        final Object[] values = new Object[]{kbAccountId.toString(),
+                                             kbPaymentId.toString(),
+                                             kbPaymentTransactionId.toString(),
+                                             transactionType.toString(),
+                                             amount,
+                                             currency == null ? null : currency.name(),
+                                             asString(additionalData),
+                                             toTimestamp(utcNow),
+                                             kbTenantId.toString()};
+
+        recordWrite(kbPaymentId);
+
+        final PluginDaoBatchWriter<Object[]> batchWriter = responsesBatchWriter;
+        // Within a transaction scope, the row must be written on its connection
+        if (batchWriter == null || isInTransaction()) {
+            insertResponses(dsl(), ImmutableList.<Object[]>of(values));
+            return;
+        }
+
+        final long writeTimeoutMillis = responsesBatchWriteTimeoutMillis;
+        try {
+            batchWriter.submit(values).get(writeTimeoutMillis, TimeUnit.MILLISECONDS);
+        } catch (final TimeoutException e) {
+            throw new SQLException("Timed out after " + writeTimeoutMillis + "ms waiting for response of kbPaymentTransactionId " + kbPaymentTransactionId + " to be written", e);
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SQLException("Interrupted while waiting for response of kbPaymentTransactionId " + kbPaymentTransactionId + " to be written", e);
+        } catch (final ExecutionException e) {
+            if (e.getCause() instanceof SQLException) {
+                throw (SQLException) e.getCause();
+            } else if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            } else {
+                throw new SQLException(e.getCause());
+            }
+        }
+    }
+
+    public CompletableFuture<Void> addResponseAsync(final UUID kbAccountId,
+                                                    final UUID kbPaymentId,
+                                                    final UUID kbPaymentTransactionId,
+                                                    final TransactionType transactionType,
+                                                    final BigDecimal amount,
+                                                    final Currency currency,
+                                                    final Map additionalData,
+                                                    final DateTime utcNow,
+                                                    final UUID kbTenantId) {
+        return executeAsync(() -> {
+            addResponse(kbAccountId, kbPaymentId, kbPaymentTransactionId, transactionType, amount, currency, additionalData, utcNow, kbTenantId);
+            return null;
+        });
+    }
+
+    private void insertResponses(final DSLContext dslContext, final List<Object[]> rows) {
+        final InsertValuesStepN<RESP_R> insert = dslContext.insertInto(responsesTable, responsesInsertFields());
+        for (final Object[] row : rows) {
+            insert.values(row);
+        }
+        insert.execute();
+    }
+
+    private List<Field<Object>> responsesInsertFields() {
+        return ImmutableList.<Field<Object>>of(DSL.field(responsesTable.getName() + "." + KB_ACCOUNT_ID),
+                                               DSL.field(responsesTable.getName() + "." + KB_PAYMENT_ID),
+                                               DSL.field(responsesTable.getName() + "." + KB_PAYMENT_TRANSACTION_ID),
+                                               DSL.field(responsesTable.getName() + "." + TRANSACTION_TYPE),
+                                               DSL.field(responsesTable.getName() + "." + AMOUNT),
+                                               DSL.field(responsesTable.getName() + "." + CURRENCY),
+                                               DSL.field(responsesTable.getName() + "." + ADDITIONAL_DATA),
+                                               DSL.field(responsesTable.getName() + "." + CREATED_DATE),
+                                               DSL.field(responsesTable.getName() + "." + KB_TENANT_ID));
     }
 
     public List<RESP_R> getResponses(final UUID kbPaymentId, final UUID kbTenantId) throws SQLException {
-        return execute(dataSource.getConnection(),
-                       new WithConnectionCallback<List<RESP_R>>() {
-                           @Override
-                           public List<RESP_R> withConnection(final Connection conn) throws SQLException {
-                               return DSL.using(conn, dialect, settings)
-                                         .selectFrom(responsesTable)
-                                         .where(DSL.field(responsesTable.getName() + "." + KB_PAYMENT_ID).equal(kbPaymentId.toString()))
-                                         .and(DSL.field(responsesTable.getName() + "." + KB_TENANT_ID).equal(kbTenantId.toString()))
-                                         .orderBy(DSL.field(responsesTable.getName() + "." + recordIdFieldName).asc())
-                                         .fetch();
-                           }
-                       });
+        final PreRenderedQueries queries = preRenderedQueries;
+        if (queries == null) {
+            return selectResponses(readDsl(kbPaymentId, kbTenantId), kbPaymentId, null, kbTenantId).fetch();
+        } else {
+            return readDsl(kbPaymentId, kbTenantId).resultQuery(queries.selectResponses, kbPaymentId.toString(), kbTenantId.toString()).fetchInto(responsesTable);
+        }
+    }
+
+    public CompletableFuture<List<RESP_R>> getResponsesAsync(final UUID kbPaymentId, final UUID kbTenantId) {
+        return executeAsync(() -> getResponses(kbPaymentId, kbTenantId));
+    }
+
+    /**
+     * Read the responses of a payment and convert each row exactly once. Rows are fetched with the driver default fetch size,
+     * then converted after the connection has been released: the heap usage is proportional to the number of rows
+     * (see streamResponses to consume them as they are read).
+     *
+     * @param kbPaymentId Kill Bill payment id
+     * @param kbTenantId  Kill Bill tenant id
+     * @param converter   row converter
+     * @return the converted rows, in insertion order
+     */
+    public <T> List<T> getResponses(final UUID kbPaymentId, final UUID kbTenantId, final Function<? super RESP_R, T> converter) throws SQLException {
+        final List<RESP_R> records = getResponses(kbPaymentId, kbTenantId);
+
+        final List<T> converted = new ArrayList<T>(records.size());
+        for (final RESP_R record : records) {
+            converted.add(converter.apply(record));
+        }
+        return converted;
+    }
+
+    /**
+     * Hand the responses of a payment to a callback as they are read from a cursor, without retaining them. The callback
+     * runs while the cursor holds its connection: it should be fast and must not query the database.
+     * <p/>
+     * The fetch size is passed as-is to the driver. MySQL Connector/J buffers the whole result set by default: it streams
+     * rows one at a time with Integer.MIN_VALUE, and only honours positive fetch sizes with useCursorFetch=true (server-side cursor).
+     *
+     * @param kbPaymentId Kill Bill payment id
+     * @param kbTenantId  Kill Bill tenant id
+     * @param fetchSize   JDBC fetch size (0 for the driver default)
+     * @param callback    invoked for each row, in insertion order
+     */
+    public void streamResponses(final UUID kbPaymentId, final UUID kbTenantId, final int fetchSize, final Consumer<? super RESP_R> callback) throws SQLException {
+        final PreRenderedQueries queries = preRenderedQueries;
+        final ResultQuery<? extends Record> query = queries == null ?
+                                                    selectResponses(readDsl(kbPaymentId, kbTenantId), kbPaymentId, null, kbTenantId) :
+                                                    readDsl(kbPaymentId, kbTenantId).resultQuery(queries.selectResponses, kbPaymentId.toString(), kbTenantId.toString());
+
+        try (final Cursor<? extends Record> cursor = query.fetchSize(fetchSize).fetchLazy()) {
+            while (cursor.hasNext()) {
+                callback.accept(asResponse(cursor.fetchOne()));
+            }
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private RESP_R asResponse(final Record record) {
+        // Plain SQL queries return generic records
+        return responsesTable.getRecordType().isInstance(record) ? (RESP_R) record : record.into(responsesTable);
+    }
+
+    /**
+     * Same as getResponses, with a lower bound on CREATED_DATE. On tables partitioned by CREATED_DATE (and/or KB_TENANT_ID),
+     * the bound lets MySQL prune the partitions older than the payment.
+     *
+     * @param kbPaymentId    Kill Bill payment id
+     * @param minCreatedDate lower bound (inclusive) on CREATED_DATE, typically the creation date of the payment
+     * @param kbTenantId     Kill Bill tenant id
+     * @return the responses, in insertion order
+     */
+    public List<RESP_R> getResponses(final UUID kbPaymentId, final DateTime minCreatedDate, final UUID kbTenantId) throws SQLException {
+        return selectResponses(readDsl(kbPaymentId, kbTenantId), kbPaymentId, minCreatedDate, kbTenantId).fetch();
+    }
+
+    private ResultQuery<RESP_R> selectResponses(final DSLContext dslContext, final UUID kbPaymentId, @Nullable final DateTime minCreatedDate, final UUID kbTenantId) {
+        return dslContext.selectFrom(responsesTable)
+                         .where(DSL.field(responsesTable.getName() + "." + KB_PAYMENT_ID).equal(kbPaymentId.toString()))
+                         .and(responsesCreatedDateCondition(minCreatedDate))
+                         .and(DSL.field(responsesTable.getName() + "." + KB_TENANT_ID).equal(kbTenantId.toString()))
+                         .orderBy(DSL.field(responsesTable.getName() + "." + recordIdFieldName).asc());
+    }
+
+    private Condition responsesCreatedDateCondition(@Nullable final DateTime minCreatedDate) {
+        return minCreatedDate == null ? DSL.trueCondition() : DSL.field(responsesTable.getName() + "." + CREATED_DATE).greaterOrEqual(toTimestamp(minCreatedDate));
     }
 
     // Assumes that the last auth was successful
     public RESP_R getSuccessfulAuthorizationResponse(final UUID kbPaymentId, final UUID kbTenantId) throws SQLException {
-        return execute(dataSource.getConnection(),
-                       new WithConnectionCallback<RESP_R>() {
-                           @Override
-                           public RESP_R withConnection(final Connection conn) throws SQLException {
-                               return DSL.using(conn, dialect, settings)
-                                         .selectFrom(responsesTable)
-                                         .where(DSL.field(responsesTable.getName() + "." + KB_PAYMENT_ID).equal(kbPaymentId.toString()))
-                                         .and(DSL.field(responsesTable.getName() + "." + TRANSACTION_TYPE).equal(TransactionType.AUTHORIZE.toString()))
-                                         .and(DSL.field(responsesTable.getName() + "." + KB_TENANT_ID).equal(kbTenantId.toString()))
-                                         .orderBy(DSL.field(responsesTable.getName() + "." + recordIdFieldName).desc())
-                                         .limit(1)
-                                         .fetchOne();
-                           }
-                       });
+        final PreRenderedQueries queries = preRenderedQueries;
+        if (queries == null) {
+            return selectSuccessfulAuthorizationResponse(readDsl(kbPaymentId, kbTenantId), kbPaymentId, null, kbTenantId).fetchOne();
+        } else {
+            return readDsl(kbPaymentId, kbTenantId).resultQuery(queries.selectSuccessfulAuthorizationResponse, kbPaymentId.toString(), kbTenantId.toString()).fetchOneInto(responsesTable);
+        }
+    }
+
+    // See getResponses(UUID, DateTime, UUID)
+    public RESP_R getSuccessfulAuthorizationResponse(final UUID kbPaymentId, final DateTime minCreatedDate, final UUID kbTenantId) throws SQLException {
+        return selectSuccessfulAuthorizationResponse(readDsl(kbPaymentId, kbTenantId), kbPaymentId, minCreatedDate, kbTenantId).fetchOne();
+    }
+
+    // Constants are inlined, so that the only bind variables are the ids (see enablePreRenderedQueries)
+    private ResultQuery<RESP_R> selectSuccessfulAuthorizationResponse(final DSLContext dslContext, final UUID kbPaymentId, @Nullable final DateTime minCreatedDate, final UUID kbTenantId) {
+        return dslContext.selectFrom(responsesTable)
+                         .where(DSL.field(responsesTable.getName() + "." + KB_PAYMENT_ID).equal(kbPaymentId.toString()))
+                         .and(DSL.field(responsesTable.getName() + "." + TRANSACTION_TYPE).equal(DSL.inline((Object) TransactionType.AUTHORIZE.toString())))
+                         .and(responsesCreatedDateCondition(minCreatedDate))
+                         .and(DSL.field(responsesTable.getName() + "." + KB_TENANT_ID).equal(kbTenantId.toString()))
+                         .orderBy(DSL.field(responsesTable.getName() + "." + recordIdFieldName).desc())
+                         .limit(DSL.inline(1));
+    }
+
+    public CompletableFuture<RESP_R> getSuccessfulAuthorizationResponseAsync(final UUID kbPaymentId, final UUID kbTenantId) {
+        return executeAsync(() -> getSuccessfulAuthorizationResponse(kbPaymentId, kbTenantId));
+    }
+
+    /**
+     * Move responses created before a given date to an archive table with the same structure (e.g. created with
+     * CREATE TABLE ... LIKE). Rows are moved in ranges of consecutive record ids, each range in its own short transaction,
+     * so that locks are only held on the rows (and gaps) of the range being moved. It cannot be called within a transaction scope
+     * (see inTransaction), as the locks would then be held until the enclosing transaction commits.
+     *
+     * @param archiveTable   destination table
+     * @param maxCreatedDate upper bound (exclusive) on CREATED_DATE
+     * @param batchSize      maximum number of rows moved per transaction
+     * @return the number of rows moved
+     */
+    public <A extends Record> int archiveResponses(final Table<A> archiveTable, final DateTime maxCreatedDate, final int batchSize) throws SQLException {
+        Preconditions.checkArgument(batchSize > 0, "batchSize must be positive");
+        Preconditions.checkState(!isInTransaction(), "Responses cannot be archived within a transaction scope");
+
+        final Field<Object> recordIdField = DSL.field(responsesTable.getName() + "." + recordIdFieldName);
+        final Condition createdDateCondition = DSL.field(responsesTable.getName() + "." + CREATED_DATE).lessThan(toTimestamp(maxCreatedDate));
+
+        int nbArchived = 0;
+        // Rows below it have been moved, or are too recent
+        long lowerRecordId = 0L;
+        while (true) {
+            // Plain SELECT, i.e. a consistent read: no lock taken
+            final List<?> recordIds = dslContext.select(recordIdField)
+                                                .from(responsesTable)
+                                                .where(createdDateCondition)
+                                                .and(recordIdField.greaterThan(lowerRecordId))
+                                                .orderBy(recordIdField.asc())
+                                                .limit(batchSize)
+                                                .fetch(0);
+            if (recordIds.isEmpty()) {
+                return nbArchived;
+            }
+
+            final long fromRecordId = lowerRecordId;
+            final long toRecordId = Long.valueOf(recordIds.get(recordIds.size() - 1).toString());
+            final Condition rangeCondition = createdDateCondition.and(recordIdField.greaterThan(fromRecordId))
+                                                                 .and(recordIdField.lessOrEqual(toRecordId));
+            nbArchived += dslContext.transactionResult(new TransactionalCallable<Integer>() {
+                @Override
+                public Integer run(final Configuration configuration) throws Exception {
+                    final DSLContext transactional = DSL.using(configuration);
+
+                    // With InnoDB (REPEATABLE READ), INSERT ... SELECT takes shared next-key locks on the scanned rows, and DELETE exclusive
+                    // ones: the primary key range bounds both to this batch
+                    transactional.insertInto(archiveTable)
+                                 .select(transactional.selectFrom(responsesTable).where(rangeCondition))
+                                 .execute();
+                    return transactional.deleteFrom(responsesTable)
+                                        .where(rangeCondition)
+                                        .execute();
+                }
+            });
+
+            if (recordIds.size() < batchSize) {
+                return nbArchived;
+            }
+            lowerRecordId = toRecordId;
+        }
+    }
+
+    /**
+     * Search responses by Kill Bill account, payment or payment transaction id, using keyset pagination on the record id.
+     * <p/>
+     * The offset is the record id of the last row seen (exclusive): the nextOffset of the returned page can be passed back as-is,
+     * so that deep pages cost the same as the first one. Each searched column is queried separately, so that each query is a
+     * single index range: recommended indexes are kb_payment_id, kb_payment_transaction_id and (kb_tenant_id, kb_account_id, record_id),
+     * see the README.
+     *
+     * @param searchKey  Kill Bill id to look for
+     * @param offset     record id to start after (null or 0 for the first page)
+     * @param limit      maximum number of rows to return (an empty page is returned if not positive)
+     * @param kbTenantId Kill Bill tenant id
+     * @return the page of responses, in insertion order
+     */
+    public PluginPagination<RESP_R> searchResponses(final String searchKey, @Nullable final Long offset, final int limit, final UUID kbTenantId) throws SQLException {
+        final List<Condition> searchConditions = ImmutableList.<Condition>of(DSL.field(responsesTable.getName() + "." + KB_ACCOUNT_ID).equal(searchKey),
+                                                                             DSL.field(responsesTable.getName() + "." + KB_PAYMENT_ID).equal(searchKey),
+                                                                             DSL.field(responsesTable.getName() + "." + KB_PAYMENT_TRANSACTION_ID).equal(searchKey));
+        final Condition tenantCondition = DSL.field(responsesTable.getName() + "." + KB_TENANT_ID).equal(kbTenantId.toString());
+
+        return search(readDsl(kbTenantId), responsesTable, searchConditions, tenantCondition, offset, limit);
     }
 
     // Payment methods
 
+    /**
+     * Cache payment method rows returned by getPaymentMethod and getPaymentMethods. Entries are invalidated on writes
+     * going through this DAO, once committed. Each call returns its own copy of the cached records.
+     *
+     * @param maximumSize maximum number of cached entries (across all tenants)
+     * @param ttl         time-to-live of each entry
+     * @param ttlUnit     unit of the time-to-live
+     */
+    public void enablePaymentMethodsCache(final long maximumSize, final long ttl, final TimeUnit ttlUnit) {
+        paymentMethodsCache = new PaymentMethodsCache<PM_R>(maximumSize, ttl, ttlUnit, record -> record.into(paymentMethodsTable));
+    }
+
+    public void disablePaymentMethodsCache() {
+        paymentMethodsCache = null;
+    }
+
+    // Hit, miss and eviction counters, null if the cache isn't enabled
+    @Nullable
+    public CacheStats getPaymentMethodsCacheStats() {
+        final PaymentMethodsCache<PM_R> cache = paymentMethodsCache;
+        return cache == null ? null : cache.stats();
+    }
+
     public void addPaymentMethod(final UUID kbAccountId, final UUID kbPaymentMethodId, final boolean isDefault, final Map<String, String> properties, final DateTime utcNow, final UUID kbTenantId) throws SQLException {
-        /* Clone our properties, what we have been given might be unmodifiable */
-        final Map<String, String> clonedProperties = new HashMap<String, String>(properties);
-
-        /* Extract and remove known values from the properties map that will become "additional data" */
-        final String token               = clonedProperties.remove(PluginPaymentPluginApi.PROPERTY_TOKEN);
-        final String ccFirstName         = clonedProperties.remove(PluginPaymentPluginApi.PROPERTY_CC_FIRST_NAME);
-        final String ccLastName          = clonedProperties.remove(PluginPaymentPluginApi.PROPERTY_CC_LAST_NAME);
-        final String ccType              = clonedProperties.remove(PluginPaymentPluginApi.PROPERTY_CC_TYPE);
-        final String ccExpirationMonth   = clonedProperties.remove(PluginPaymentPluginApi.PROPERTY_CC_EXPIRATION_MONTH);
-        final String ccExpirationYear    = clonedProperties.remove(PluginPaymentPluginApi.PROPERTY_CC_EXPIRATION_YEAR);
-        final String ccNumber            = clonedProperties.remove(PluginPaymentPluginApi.PROPERTY_CC_NUMBER);
-        final String ccStartMonth        = clonedProperties.remove(PluginPaymentPluginApi.PROPERTY_CC_START_MONTH);
-        final String ccStartYear         = clonedProperties.remove(PluginPaymentPluginApi.PROPERTY_CC_START_YEAR);
-        final String ccIssueNumber       = clonedProperties.remove(PluginPaymentPluginApi.PROPERTY_CC_ISSUE_NUMBER);
-        final String ccVerificationValue = clonedProperties.remove(PluginPaymentPluginApi.PROPERTY_CC_VERIFICATION_VALUE);
-        final String ccTrackData         = clonedProperties.remove(PluginPaymentPluginApi.PROPERTY_CC_TRACK_DATA);
-        final String address1            = clonedProperties.remove(PluginPaymentPluginApi.PROPERTY_ADDRESS1);
-        final String address2            = clonedProperties.remove(PluginPaymentPluginApi.PROPERTY_ADDRESS2);
-        final String city                = clonedProperties.remove(PluginPaymentPluginApi.PROPERTY_CITY);
-        final String state               = clonedProperties.remove(PluginPaymentPluginApi.PROPERTY_STATE);
-        final String zip                 = clonedProperties.remove(PluginPaymentPluginApi.PROPERTY_ZIP);
-        final String country             = clonedProperties.remove(PluginPaymentPluginApi.PROPERTY_COUNTRY);
-
-        /* Calculate last 4 digits of the credit card number */
-        final String ccLast4 = ccNumber == null ? null : ccNumber.substring(ccNumber.length() - 4, ccNumber.length());
-
-        /* Calculate the additional data to store */
-        final String additionalData = asString(clonedProperties);
+        final PaymentMethodColumns columns = new PaymentMethodColumns(properties);
+
+        recordWrite(kbPaymentMethodId, kbAccountId);
 
         /* Store computed data */
-        execute(dataSource.getConnection(),
-                new WithConnectionCallback<Void>() {
-                    @Override
-                    public Void withConnection(final Connection conn) throws SQLException {
-                        DSL.using(conn, dialect, settings)
-                           .insertInto(paymentMethodsTable,
-                                       DSL.field(paymentMethodsTable.getName() + "." + KB_ACCOUNT_ID),
-                                       DSL.field(paymentMethodsTable.getName() + "." + KB_PAYMENT_METHOD_ID),
-                                       DSL.field(paymentMethodsTable.getName() + "." + TOKEN),
-                                       DSL.field(paymentMethodsTable.getName() + "." + CC_FIRST_NAME),
-                                       DSL.field(paymentMethodsTable.getName() + "." + CC_LAST_NAME),
-                                       DSL.field(paymentMethodsTable.getName() + "." + CC_TYPE),
-                                       DSL.field(paymentMethodsTable.getName() + "." + CC_EXP_MONTH),
-                                       DSL.field(paymentMethodsTable.getName() + "." + CC_EXP_YEAR),
-                                       DSL.field(paymentMethodsTable.getName() + "." + CC_NUMBER),
-                                       DSL.field(paymentMethodsTable.getName() + "." + CC_LAST_4),
-                                       DSL.field(paymentMethodsTable.getName() + "." + CC_START_MONTH),
-                                       DSL.field(paymentMethodsTable.getName() + "." + CC_START_YEAR),
-                                       DSL.field(paymentMethodsTable.getName() + "." + CC_ISSUE_NUMBER),
-                                       DSL.field(paymentMethodsTable.getName() + "." + CC_VERIFICATION_VALUE),
-                                       DSL.field(paymentMethodsTable.getName() + "." + CC_TRACK_DATA),
-                                       DSL.field(paymentMethodsTable.getName() + "." + ADDRESS1),
-                                       DSL.field(paymentMethodsTable.getName() + "." + ADDRESS2),
-                                       DSL.field(paymentMethodsTable.getName() + "." + CITY),
-                                       DSL.field(paymentMethodsTable.getName() + "." + STATE),
-                                       DSL.field(paymentMethodsTable.getName() + "." + ZIP),
-                                       DSL.field(paymentMethodsTable.getName() + "." + COUNTRY),
-                                       DSL.field(paymentMethodsTable.getName() + "." + IS_DEFAULT),
-                                       DSL.field(paymentMethodsTable.getName() + "." + IS_DELETED),
-                                       DSL.field(paymentMethodsTable.getName() + "." + ADDITIONAL_DATA),
-                                       DSL.field(paymentMethodsTable.getName() + "." + CREATED_DATE),
-                                       DSL.field(paymentMethodsTable.getName() + "." + UPDATED_DATE),
-                                       DSL.field(paymentMethodsTable.getName() + "." + KB_TENANT_ID))
-                           .values(kbAccountId.toString(),
-                                   kbPaymentMethodId.toString(),
-                                   token,
-                                   ccFirstName,
-                                   ccLastName,
-                                   ccType,
-                                   ccExpirationMonth,
-                                   ccExpirationYear,
-                                   ccNumber,
-                                   ccLast4,
-                                   ccStartMonth,
-                                   ccStartYear,
-                                   ccIssueNumber,
-                                   ccVerificationValue,
-                                   ccTrackData,
-                                   address1,
-                                   address2,
-                                   city,
-                                   state,
-                                   zip,
-                                   country,
-                                   fromBoolean(isDefault),
-                                   FALSE,
-                                   additionalData,
-                                   toTimestamp(utcNow),
-                                   toTimestamp(utcNow),
-                                   kbTenantId.toString())
-                           .execute();
-                        return null;
-                    }
-                });
+        dsl().insertInto(paymentMethodsTable, paymentMethodsInsertFields())
+             .values(columns.toRow(kbAccountId, kbPaymentMethodId, isDefault, utcNow, kbTenantId))
+             .execute();
+
+        // Within a transaction scope, other threads must not re-load the previous rows before the commit
+        final PaymentMethodsCache<PM_R> cache = paymentMethodsCache;
+        if (cache != null) {
+            afterCommit(() -> {
+                cache.invalidatePaymentMethod(kbTenantId, kbPaymentMethodId);
+                cache.invalidatePaymentMethods(kbTenantId, kbAccountId);
+            });
+        }
+    }
+
+    /**
+     * Synchronize the payment methods of an account with Kill Bill, in a single transaction and a constant number of statements:
+     * payment methods in the list are inserted (or undeleted) with one multi-row upsert, the others are soft-deleted with one UPDATE.
+     *
+     * @param kbAccountId    Kill Bill account id
+     * @param paymentMethods payment methods known by Kill Bill
+     * @param properties     properties of the payment methods to insert
+     * @param utcNow         current time
+     * @param kbTenantId     Kill Bill tenant id
+     */
+    public void resetPaymentMethods(final UUID kbAccountId, final List<PaymentMethodInfoPlugin> paymentMethods, final Map<String, String> properties, final DateTime utcNow, final UUID kbTenantId) throws SQLException {
+        final PaymentMethodColumns columns = new PaymentMethodColumns(properties);
+        final List<String> kbPaymentMethodIds = new ArrayList<String>(paymentMethods.size());
+        for (final PaymentMethodInfoPlugin paymentMethod : paymentMethods) {
+            kbPaymentMethodIds.add(paymentMethod.getPaymentMethodId().toString());
+        }
+
+        // The soft-deleted payment methods aren't known here
+        recordWrite(kbTenantId);
+
+        dsl().transaction(new TransactionalRunnable() {
+            @Override
+            public void run(final Configuration configuration) throws Exception {
+                final DSLContext transactional = DSL.using(configuration);
+
+                final Condition accountCondition = DSL.field(paymentMethodsTable.getName() + "." + KB_ACCOUNT_ID).equal(kbAccountId.toString())
+                                                      .and(DSL.field(paymentMethodsTable.getName() + "." + IS_DELETED).equal(FALSE))
+                                                      .and(DSL.field(paymentMethodsTable.getName() + "." + KB_TENANT_ID).equal(kbTenantId.toString()));
+                transactional.update(paymentMethodsTable)
+                             .set(DSL.field(paymentMethodsTable.getName() + "." + IS_DELETED), TRUE)
+                             .set(DSL.field(paymentMethodsTable.getName() + "." + UPDATED_DATE), toTimestamp(utcNow))
+                             .where(kbPaymentMethodIds.isEmpty() ? accountCondition : accountCondition.and(DSL.field(paymentMethodsTable.getName() + "." + KB_PAYMENT_METHOD_ID).notIn(kbPaymentMethodIds)))
+                             .execute();
+
+                if (paymentMethods.isEmpty()) {
+                    return;
+                }
+
+                final List<Object[]> rows = new ArrayList<Object[]>(paymentMethods.size());
+                for (final PaymentMethodInfoPlugin paymentMethod : paymentMethods) {
+                    rows.add(columns.toRow(kbAccountId, paymentMethod.getPaymentMethodId(), paymentMethod.isDefault(), utcNow, kbTenantId));
+                }
+                if (dialect.family() == SQLDialect.MYSQL || dialect.family() == SQLDialect.MARIADB) {
+                    upsertPaymentMethods(transactional, rows);
+                } else {
+                    insertOrUndeletePaymentMethods(transactional, rows, kbPaymentMethodIds, utcNow, kbTenantId);
+                }
+            }
+        });
+
+        // The soft-deleted payment methods aren't known here
+        final PaymentMethodsCache<PM_R> cache = paymentMethodsCache;
+        if (cache != null) {
+            afterCommit(() -> cache.invalidateTenant(kbTenantId));
+        }
+    }
+
+    // Relies on the unique key on kb_payment_method_id
+    private void upsertPaymentMethods(final DSLContext dslContext, final List<Object[]> rows) {
+        final Field<Byte> isDefaultField = DSL.field(paymentMethodsTable.getName() + "." + IS_DEFAULT, Byte.class);
+        final Field<Timestamp> updatedDateField = DSL.field(paymentMethodsTable.getName() + "." + UPDATED_DATE, Timestamp.class);
+
+        final InsertValuesStepN<PM_R> insert = dslContext.insertInto(paymentMethodsTable, paymentMethodsInsertFields());
+        for (final Object[] row : rows) {
+            insert.values(row);
+        }
+        insert.onDuplicateKeyUpdate()
+              .set(isDefaultField, DSL.field("values(" + IS_DEFAULT + ")", Byte.class))
+              .set(DSL.field(paymentMethodsTable.getName() + "." + IS_DELETED), FALSE)
+              .set(updatedDateField, DSL.field("values(" + UPDATED_DATE + ")", Timestamp.class))
+              .execute();
+    }
+
+    // Portable version of upsertPaymentMethods, at the cost of a few more statements
+    private void insertOrUndeletePaymentMethods(final DSLContext dslContext, final List<Object[]> rows, final List<String> kbPaymentMethodIds, final DateTime utcNow, final UUID kbTenantId) {
+        final Field<Object> kbPaymentMethodIdField = DSL.field(paymentMethodsTable.getName() + "." + KB_PAYMENT_METHOD_ID);
+        final Set<String> existingKbPaymentMethodIds = new HashSet<String>();
+        for (final Object existingKbPaymentMethodId : dslContext.select(kbPaymentMethodIdField)
+                                                                .from(paymentMethodsTable)
+                                                                .where(kbPaymentMethodIdField.in(kbPaymentMethodIds))
+                                                                .and(DSL.field(paymentMethodsTable.getName() + "." + KB_TENANT_ID).equal(kbTenantId.toString()))
+                                                                .fetch(0)) {
+            existingKbPaymentMethodIds.add(existingKbPaymentMethodId.toString());
+        }
+
+        final List<String> defaultKbPaymentMethodIds = new ArrayList<String>();
+        final List<String> otherKbPaymentMethodIds = new ArrayList<String>();
+        InsertValuesStepN<PM_R> insert = null;
+        for (final Object[] row : rows) {
+            final String kbPaymentMethodId = (String) row[PaymentMethodColumns.KB_PAYMENT_METHOD_ID_INDEX];
+            if (!existingKbPaymentMethodIds.contains(kbPaymentMethodId)) {
+                insert = insert == null ? dslContext.insertInto(paymentMethodsTable, paymentMethodsInsertFields()) : insert;
+                insert.values(row);
+            } else if (Objects.equals(row[PaymentMethodColumns.IS_DEFAULT_INDEX], TRUE)) {
+                defaultKbPaymentMethodIds.add(kbPaymentMethodId);
+            } else {
+                otherKbPaymentMethodIds.add(kbPaymentMethodId);
+            }
+        }
+
+        if (insert != null) {
+            insert.execute();
+        }
+        undeletePaymentMethods(dslContext, defaultKbPaymentMethodIds, true, utcNow, kbTenantId);
+        undeletePaymentMethods(dslContext, otherKbPaymentMethodIds, false, utcNow, kbTenantId);
+    }
+
+    private void undeletePaymentMethods(final DSLContext dslContext, final List<String> kbPaymentMethodIds, final boolean isDefault, final DateTime utcNow, final UUID kbTenantId) {
+        if (kbPaymentMethodIds.isEmpty()) {
+            return;
+        }
+        dslContext.update(paymentMethodsTable)
+                  .set(DSL.field(paymentMethodsTable.getName() + "." + IS_DEFAULT), fromBoolean(isDefault))
+                  .set(DSL.field(paymentMethodsTable.getName() + "." + IS_DELETED), FALSE)
+                  .set(DSL.field(paymentMethodsTable.getName() + "." + UPDATED_DATE), toTimestamp(utcNow))
+                  .where(DSL.field(paymentMethodsTable.getName() + "." + KB_PAYMENT_METHOD_ID).in(kbPaymentMethodIds))
+                  .and(DSL.field(paymentMethodsTable.getName() + "." + KB_TENANT_ID).equal(kbTenantId.toString()))
+                  .execute();
+    }
+
+    private List<Field<Object>> paymentMethodsInsertFields() {
+        return ImmutableList.<Field<Object>>of(DSL.field(paymentMethodsTable.getName() + "." + KB_ACCOUNT_ID),
+                                               DSL.field(paymentMethodsTable.getName() + "." + KB_PAYMENT_METHOD_ID),
+                                               DSL.field(paymentMethodsTable.getName() + "." + TOKEN),
+                                               DSL.field(paymentMethodsTable.getName() + "." + CC_FIRST_NAME),
+                                               DSL.field(paymentMethodsTable.getName() + "." + CC_LAST_NAME),
+                                               DSL.field(paymentMethodsTable.getName() + "." + CC_TYPE),
+                                               DSL.field(paymentMethodsTable.getName() + "." + CC_EXP_MONTH),
+                                               DSL.field(paymentMethodsTable.getName() + "." + CC_EXP_YEAR),
+                                               DSL.field(paymentMethodsTable.getName() + "." + CC_NUMBER),
+                                               DSL.field(paymentMethodsTable.getName() + "." + CC_LAST_4),
+                                               DSL.field(paymentMethodsTable.getName() + "." + CC_START_MONTH),
+                                               DSL.field(paymentMethodsTable.getName() + "." + CC_START_YEAR),
+                                               DSL.field(paymentMethodsTable.getName() + "." + CC_ISSUE_NUMBER),
+                                               DSL.field(paymentMethodsTable.getName() + "." + CC_VERIFICATION_VALUE),
+                                               DSL.field(paymentMethodsTable.getName() + "." + CC_TRACK_DATA),
+                                               DSL.field(paymentMethodsTable.getName() + "." + ADDRESS1),
+                                               DSL.field(paymentMethodsTable.getName() + "." + ADDRESS2),
+                                               DSL.field(paymentMethodsTable.getName() + "." + CITY),
+                                               DSL.field(paymentMethodsTable.getName() + "." + STATE),
+                                               DSL.field(paymentMethodsTable.getName() + "." + ZIP),
+                                               DSL.field(paymentMethodsTable.getName() + "." + COUNTRY),
+                                               DSL.field(paymentMethodsTable.getName() + "." + IS_DEFAULT),
+                                               DSL.field(paymentMethodsTable.getName() + "." + IS_DELETED),
+                                               DSL.field(paymentMethodsTable.getName() + "." + ADDITIONAL_DATA),
+                                               DSL.field(paymentMethodsTable.getName() + "." + CREATED_DATE),
+                                               DSL.field(paymentMethodsTable.getName() + "." + UPDATED_DATE),
+                                               DSL.field(paymentMethodsTable.getName() + "." + KB_TENANT_ID));
+    }
+
+    // Columns extracted from the payment method properties, in the order of paymentMethodsInsertFields
+    private final class PaymentMethodColumns {
+
+        private static final int KB_PAYMENT_METHOD_ID_INDEX = 1;
+        private static final int IS_DEFAULT_INDEX = 21;
+
+        private final String token;
+        private final String ccFirstName;
+        private final String ccLastName;
+        private final String ccType;
+        private final String ccExpirationMonth;
+        private final String ccExpirationYear;
+        private final String ccNumber;
+        private final String ccLast4;
+        private final String ccStartMonth;
+        private final String ccStartYear;
+        private final String ccIssueNumber;
+        private final String ccVerificationValue;
+        private final String ccTrackData;
+        private final String address1;
+        private final String address2;
+        private final String city;
+        private final String state;
+        private final String zip;
+        private final String country;
+        private final String additionalData;
+
+        private PaymentMethodColumns(final Map<String, String> properties) throws SQLException {
+            /* Clone our properties, what we have been given might be unmodifiable */
+            final Map<String, String> clonedProperties = new HashMap<String, String>(properties);
+
+            /* Extract and remove known values from the properties map that will become "additional data" */
+            this.token               = clonedProperties.remove(PluginPaymentPluginApi.PROPERTY_TOKEN);
+            this.ccFirstName         = clonedProperties.remove(PluginPaymentPluginApi.PROPERTY_CC_FIRST_NAME);
+            this.ccLastName          = clonedProperties.remove(PluginPaymentPluginApi.PROPERTY_CC_LAST_NAME);
+            this.ccType              = clonedProperties.remove(PluginPaymentPluginApi.PROPERTY_CC_TYPE);
+            this.ccExpirationMonth   = clonedProperties.remove(PluginPaymentPluginApi.PROPERTY_CC_EXPIRATION_MONTH);
+            this.ccExpirationYear    = clonedProperties.remove(PluginPaymentPluginApi.PROPERTY_CC_EXPIRATION_YEAR);
+            this.ccNumber            = clonedProperties.remove(PluginPaymentPluginApi.PROPERTY_CC_NUMBER);
+            this.ccStartMonth        = clonedProperties.remove(PluginPaymentPluginApi.PROPERTY_CC_START_MONTH);
+            this.ccStartYear         = clonedProperties.remove(PluginPaymentPluginApi.PROPERTY_CC_START_YEAR);
+            this.ccIssueNumber       = clonedProperties.remove(PluginPaymentPluginApi.PROPERTY_CC_ISSUE_NUMBER);
+            this.ccVerificationValue = clonedProperties.remove(PluginPaymentPluginApi.PROPERTY_CC_VERIFICATION_VALUE);
+            this.ccTrackData         = clonedProperties.remove(PluginPaymentPluginApi.PROPERTY_CC_TRACK_DATA);
+            this.address1            = clonedProperties.remove(PluginPaymentPluginApi.PROPERTY_ADDRESS1);
+            this.address2            = clonedProperties.remove(PluginPaymentPluginApi.PROPERTY_ADDRESS2);
+            this.city                = clonedProperties.remove(PluginPaymentPluginApi.PROPERTY_CITY);
+            this.state               = clonedProperties.remove(PluginPaymentPluginApi.PROPERTY_STATE);
+            this.zip                 = clonedProperties.remove(PluginPaymentPluginApi.PROPERTY_ZIP);
+            this.country             = clonedProperties.remove(PluginPaymentPluginApi.PROPERTY_COUNTRY);
+
+            /* Calculate last 4 digits of the credit card number */
+            this.ccLast4 = ccNumber == null ? null : ccNumber.substring(ccNumber.length() - 4, ccNumber.length());
+
+            /* Calculate the additional data to store */
+            this.additionalData = asString(clonedProperties);
+        }
+
+        private Object[] toRow(final UUID kbAccountId, final UUID kbPaymentMethodId, final boolean isDefault, final DateTime utcNow, final UUID kbTenantId) {
+            return new Object[]{kbAccountId.toString(),
+                                kbPaymentMethodId.toString(),
+                                token,
+                                ccFirstName,
+                                ccLastName,
+                                ccType,
+                                ccExpirationMonth,
+                                ccExpirationYear,
+                                ccNumber,
+                                ccLast4,
+                                ccStartMonth,
+                                ccStartYear,
+                                ccIssueNumber,
+                                ccVerificationValue,
+                                ccTrackData,
+                                address1,
+                                address2,
+                                city,
+                                state,
+                                zip,
+                                country,
+                                fromBoolean(isDefault),
+                                FALSE,
+                                additionalData,
+                                toTimestamp(utcNow),
+                                toTimestamp(utcNow),
+                                kbTenantId.toString()};
+        }
     }
 
     public void deletePaymentMethod(final UUID kbPaymentMethodId, final DateTime utcNow, final UUID kbTenantId) throws SQLException {
-        execute(dataSource.getConnection(),
-                new WithConnectionCallback<Void>() {
-                    @Override
-                    public Void withConnection(final Connection conn) throws SQLException {
-                        DSL.using(conn, dialect, settings)
-                           .update(paymentMethodsTable)
-                           .set(DSL.field(paymentMethodsTable.getName() + "." + IS_DELETED), TRUE)
-                           .set(DSL.field(paymentMethodsTable.getName() + "." + UPDATED_DATE), toTimestamp(utcNow))
-                           .where(DSL.field(paymentMethodsTable.getName() + "." + KB_PAYMENT_METHOD_ID).equal(kbPaymentMethodId.toString()))
-                           .and(DSL.field(paymentMethodsTable.getName() + "." + KB_TENANT_ID).equal(kbTenantId.toString()))
-                           .execute();
-                        return null;
-                    }
-                });
+        // The account isn't passed in
+        recordWrite(kbTenantId);
+
+        dsl().update(paymentMethodsTable)
+             .set(DSL.field(paymentMethodsTable.getName() + "." + IS_DELETED), TRUE)
+             .set(DSL.field(paymentMethodsTable.getName() + "." + UPDATED_DATE), toTimestamp(utcNow))
+             .where(DSL.field(paymentMethodsTable.getName() + "." + KB_PAYMENT_METHOD_ID).equal(kbPaymentMethodId.toString()))
+             .and(DSL.field(paymentMethodsTable.getName() + "." + KB_TENANT_ID).equal(kbTenantId.toString()))
+             .execute();
+
+        final PaymentMethodsCache<PM_R> cache = paymentMethodsCache;
+        if (cache != null) {
+            // The account isn't passed in, look it up to invalidate its list of payment methods
+            final Object kbAccountId = dsl().select(DSL.field(paymentMethodsTable.getName() + "." + KB_ACCOUNT_ID))
+                                            .from(paymentMethodsTable)
+                                            .where(DSL.field(paymentMethodsTable.getName() + "." + KB_PAYMENT_METHOD_ID).equal(kbPaymentMethodId.toString()))
+                                            .and(DSL.field(paymentMethodsTable.getName() + "." + KB_TENANT_ID).equal(kbTenantId.toString()))
+                                            .limit(1)
+                                            .fetchOne(0);
+            afterCommit(() -> {
+                cache.invalidatePaymentMethod(kbTenantId, kbPaymentMethodId);
+                if (kbAccountId != null) {
+                    cache.invalidatePaymentMethods(kbTenantId, UUID.fromString(kbAccountId.toString()));
+                }
+            });
+        }
     }
 
     public PM_R getPaymentMethod(final UUID kbPaymentMethodId, final UUID kbTenantId) throws SQLException {
-        return execute(dataSource.getConnection(),
-                       new WithConnectionCallback<PM_R>() {
-                           @Override
-                           public PM_R withConnection(final Connection conn) throws SQLException {
-                               return DSL.using(conn, dialect, settings)
-                                         .selectFrom(paymentMethodsTable)
-                                         .where(DSL.field(paymentMethodsTable.getName() + "." + KB_PAYMENT_METHOD_ID).equal(kbPaymentMethodId.toString()))
-                                         .and(DSL.field(paymentMethodsTable.getName() + "." + IS_DELETED).equal(FALSE))
-                                         .and(DSL.field(paymentMethodsTable.getName() + "." + KB_TENANT_ID).equal(kbTenantId.toString()))
-                                         .orderBy(DSL.field(paymentMethodsTable.getName() + "." + recordIdFieldName).desc())
-                                         .fetchOne();
-                           }
-                       });
+        final PaymentMethodsCache<PM_R> cache = paymentMethodsCache;
+        // Don't cache rows which could be rolled back
+        if (cache == null || isInTransaction()) {
+            return getPaymentMethodFromDb(kbPaymentMethodId, kbTenantId);
+        } else {
+            return cache.getPaymentMethod(kbTenantId, kbPaymentMethodId, () -> getPaymentMethodFromDb(kbPaymentMethodId, kbTenantId));
+        }
+    }
+
+    public CompletableFuture<PM_R> getPaymentMethodAsync(final UUID kbPaymentMethodId, final UUID kbTenantId) {
+        return executeAsync(() -> getPaymentMethod(kbPaymentMethodId, kbTenantId));
+    }
+
+    private PM_R getPaymentMethodFromDb(final UUID kbPaymentMethodId, final UUID kbTenantId) {
+        final PreRenderedQueries queries = preRenderedQueries;
+        if (queries == null) {
+            return selectPaymentMethod(readDsl(kbPaymentMethodId, kbTenantId), kbPaymentMethodId, kbTenantId).fetchOne();
+        } else {
+            return readDsl(kbPaymentMethodId, kbTenantId).resultQuery(queries.selectPaymentMethod, kbPaymentMethodId.toString(), kbTenantId.toString()).fetchOneInto(paymentMethodsTable);
+        }
+    }
+
+    private ResultQuery<PM_R> selectPaymentMethod(final DSLContext dslContext, final UUID kbPaymentMethodId, final UUID kbTenantId) {
+        return dslContext.selectFrom(paymentMethodsTable)
+                         .where(DSL.field(paymentMethodsTable.getName() + "." + KB_PAYMENT_METHOD_ID).equal(kbPaymentMethodId.toString()))
+                         .and(DSL.field(paymentMethodsTable.getName() + "." + IS_DELETED).equal(DSL.inline((Object) FALSE)))
+                         .and(DSL.field(paymentMethodsTable.getName() + "." + KB_TENANT_ID).equal(kbTenantId.toString()))
+                         .orderBy(DSL.field(paymentMethodsTable.getName() + "." + recordIdFieldName).desc());
     }
 
     public void setDefaultPaymentMethod(final UUID kbPaymentMethodId, final DateTime utcNow, final UUID kbTenantId) throws SQLException {
-        execute(dataSource.getConnection(),
-                new WithConnectionCallback<Void>() {
-                    @Override
-                    public Void withConnection(final Connection conn) throws SQLException {
-                        DSL.using(conn, dialect, settings)
-                           .transaction(new TransactionalRunnable() {
-                               @Override
-                               public void run(final Configuration configuration) throws Exception {
-                                   DSL.using(conn, dialect, settings)
-                                      .update(paymentMethodsTable)
-                                      .set(DSL.field(paymentMethodsTable.getName() + "." + IS_DEFAULT), FALSE)
-                                      .set(DSL.field(paymentMethodsTable.getName() + "." + UPDATED_DATE), toTimestamp(utcNow))
-                                      .where(DSL.field(paymentMethodsTable.getName() + "." + KB_PAYMENT_METHOD_ID).notEqual(kbPaymentMethodId.toString()))
-                                      .and(DSL.field(paymentMethodsTable.getName() + "." + KB_TENANT_ID).equal(kbTenantId.toString()))
-                                      .execute();
-
-                                   DSL.using(conn, dialect, settings)
-                                      .update(paymentMethodsTable)
-                                      .set(DSL.field(paymentMethodsTable.getName() + "." + IS_DEFAULT), TRUE)
-                                      .set(DSL.field(paymentMethodsTable.getName() + "." + UPDATED_DATE), toTimestamp(utcNow))
-                                      .where(DSL.field(paymentMethodsTable.getName() + "." + KB_PAYMENT_METHOD_ID).equal(kbPaymentMethodId.toString()))
-                                      .and(DSL.field(paymentMethodsTable.getName() + "." + KB_TENANT_ID).equal(kbTenantId.toString()))
-                                      .execute();
-                               }
-                           });
-                        return null;
-                    }
-                });
+        recordWrite(kbTenantId);
+
+        dsl().transaction(new TransactionalRunnable() {
+            @Override
+            public void run(final Configuration configuration) throws Exception {
+                DSL.using(configuration)
+                   .update(paymentMethodsTable)
+                   .set(DSL.field(paymentMethodsTable.getName() + "." + IS_DEFAULT), FALSE)
+                   .set(DSL.field(paymentMethodsTable.getName() + "." + UPDATED_DATE), toTimestamp(utcNow))
+                   .where(DSL.field(paymentMethodsTable.getName() + "." + KB_PAYMENT_METHOD_ID).notEqual(kbPaymentMethodId.toString()))
+                   .and(DSL.field(paymentMethodsTable.getName() + "." + KB_TENANT_ID).equal(kbTenantId.toString()))
+                   .execute();
+
+                DSL.using(configuration)
+                   .update(paymentMethodsTable)
+                   .set(DSL.field(paymentMethodsTable.getName() + "." + IS_DEFAULT), TRUE)
+                   .set(DSL.field(paymentMethodsTable.getName() + "." + UPDATED_DATE), toTimestamp(utcNow))
+                   .where(DSL.field(paymentMethodsTable.getName() + "." + KB_PAYMENT_METHOD_ID).equal(kbPaymentMethodId.toString()))
+                   .and(DSL.field(paymentMethodsTable.getName() + "." + KB_TENANT_ID).equal(kbTenantId.toString()))
+                   .execute();
+            }
+        });
+
+        // All payment methods of the tenant are updated
+        final PaymentMethodsCache<PM_R> cache = paymentMethodsCache;
+        if (cache != null) {
+            afterCommit(() -> cache.invalidateTenant(kbTenantId));
+        }
     }
 
     public List<PM_R> getPaymentMethods(final UUID kbAccountId, final UUID kbTenantId) throws SQLException {
-        return execute(dataSource.getConnection(),
-                       new WithConnectionCallback<List<PM_R>>() {
-                           @Override
-                           public List<PM_R> withConnection(final Connection conn) throws SQLException {
-                               return DSL.using(conn, dialect, settings)
-                                         .selectFrom(paymentMethodsTable)
-                                         .where(DSL.field(paymentMethodsTable.getName() + "." + KB_ACCOUNT_ID).equal(kbAccountId.toString()))
-                                         .and(DSL.field(paymentMethodsTable.getName() + "." + IS_DELETED).equal(FALSE))
-                                         .and(DSL.field(paymentMethodsTable.getName() + "." + KB_TENANT_ID).equal(kbTenantId.toString()))
-                                         .orderBy(DSL.field(paymentMethodsTable.getName() + "." + recordIdFieldName).asc())
-                                         .fetch();
-                           }
-                       });
+        final PaymentMethodsCache<PM_R> cache = paymentMethodsCache;
+        if (cache == null || isInTransaction()) {
+            return getPaymentMethodsFromDb(kbAccountId, kbTenantId);
+        } else {
+            return cache.getPaymentMethods(kbTenantId, kbAccountId, () -> getPaymentMethodsFromDb(kbAccountId, kbTenantId));
+        }
+    }
+
+    public CompletableFuture<List<PM_R>> getPaymentMethodsAsync(final UUID kbAccountId, final UUID kbTenantId) {
+        return executeAsync(() -> getPaymentMethods(kbAccountId, kbTenantId));
+    }
+
+    private List<PM_R> getPaymentMethodsFromDb(final UUID kbAccountId, final UUID kbTenantId) {
+        return readDsl(kbAccountId, kbTenantId).selectFrom(paymentMethodsTable)
+                                               .where(DSL.field(paymentMethodsTable.getName() + "." + KB_ACCOUNT_ID).equal(kbAccountId.toString()))
+                                               .and(DSL.field(paymentMethodsTable.getName() + "." + IS_DELETED).equal(FALSE))
+                                               .and(DSL.field(paymentMethodsTable.getName() + "." + KB_TENANT_ID).equal(kbTenantId.toString()))
+                                               .orderBy(DSL.field(paymentMethodsTable.getName() + "." + recordIdFieldName).asc())
+                                               .fetch();
+    }
+
+    /**
+     * Search non-deleted payment methods by Kill Bill account id, Kill Bill payment method id or token, using keyset
+     * pagination on the record id (see searchResponses). Recommended indexes: kb_payment_method_id, (kb_tenant_id, kb_account_id, record_id)
+     * and (kb_tenant_id, token, record_id), see the README.
+     *
+     * @param searchKey  Kill Bill id or token to look for
+     * @param offset     record id to start after (null or 0 for the first page)
+     * @param limit      maximum number of rows to return (an empty page is returned if not positive)
+     * @param kbTenantId Kill Bill tenant id
+     * @return the page of payment methods, in insertion order
+     */
+    public PluginPagination<PM_R> searchPaymentMethods(final String searchKey, @Nullable final Long offset, final int limit, final UUID kbTenantId) throws SQLException {
+        final List<Condition> searchConditions = ImmutableList.<Condition>of(DSL.field(paymentMethodsTable.getName() + "." + KB_ACCOUNT_ID).equal(searchKey),
+                                                                             DSL.field(paymentMethodsTable.getName() + "." + KB_PAYMENT_METHOD_ID).equal(searchKey),
+                                                                             DSL.field(paymentMethodsTable.getName() + "." + TOKEN).equal(searchKey));
+        final Condition notDeletedCondition = DSL.field(paymentMethodsTable.getName() + "." + IS_DELETED).equal(FALSE);
+        final Condition tenantCondition = DSL.field(paymentMethodsTable.getName() + "." + KB_TENANT_ID).equal(kbTenantId.toString());
+
+        return search(readDsl(kbTenantId), paymentMethodsTable, searchConditions, notDeletedCondition.and(tenantCondition), offset, limit);
+    }
+
+    // A single OR of the search conditions can't be served by one index range: each condition is queried on its own and the pages merged
+    private <R extends UpdatableRecord<R>> PluginPagination<R> search(final DSLContext dslContext,
+                                                                      final Table<R> table,
+                                                                      final List<Condition> searchConditions,
+                                                                      final Condition condition,
+                                                                      @Nullable final Long offset,
+                                                                      final int limit) {
+        final long currentOffset = offset == null ? 0L : offset;
+        if (limit <= 0) {
+            return new PluginPagination<R>(currentOffset, null, null, null, ImmutableList.<R>of());
+        }
+
+        final Field<Object> recordIdField = DSL.field(table.getName() + "." + recordIdFieldName);
+
+        // A row can match several conditions
+        final SortedMap<Long, R> recordsById = new TreeMap<Long, R>();
+        Select<Record1<Object>> matchingRecordIds = null;
+        for (final Condition searchCondition : searchConditions) {
+            for (final R record : dslContext.selectFrom(table)
+                                            .where(searchCondition)
+                                            .and(condition)
+                                            .and(recordIdField.greaterThan(currentOffset))
+                                            .orderBy(recordIdField.asc())
+                                            .limit(limit)
+                                            .fetch()) {
+                recordsById.put(getRecordId(record), record);
+            }
+
+            final Select<Record1<Object>> recordIds = dslContext.select(recordIdField).from(table).where(searchCondition).and(condition);
+            matchingRecordIds = matchingRecordIds == null ? recordIds : matchingRecordIds.union(recordIds);
+        }
+        final List<R> records = ImmutableList.<R>copyOf(Iterables.limit(recordsById.values(), limit));
+
+        // Index-only (one range per condition), its cost grows with the number of matching rows, not with the size of the table
+        final Long totalNbRecords = dslContext.selectCount()
+                                              .from(matchingRecordIds.asTable("matching_record_ids"))
+                                              .fetchOne(0, Long.class);
+
+        // A short page is the last one
+        final Long nextOffset = records.size() < limit ? null : getRecordId(records.get(records.size() - 1));
+
+        // Not computed: counting all rows of the tenant would scan its whole index range on each search
+        return new PluginPagination<R>(currentOffset, nextOffset, totalNbRecords, null, records);
+    }
+
+    private Long getRecordId(final Record record) {
+        // Generated field names are lower case
+        for (final Field<?> field : record.fields()) {
+            if (field.getName().equalsIgnoreCase(recordIdFieldName)) {
+                final Object recordId = record.getValue(field);
+                return recordId == null ? null : Long.valueOf(recordId.toString());
+            }
+        }
+        return null;
+    }
+
+    // The bind variables of each query are the entity id, followed by the tenant id
+    private static final class PreRenderedQueries {
+
+        private final String selectResponses;
+        private final String selectSuccessfulAuthorizationResponse;
+        private final String selectPaymentMethod;
+
+        private PreRenderedQueries(final String selectResponses, final String selectSuccessfulAuthorizationResponse, final String selectPaymentMethod) {
+            this.selectResponses = selectResponses;
+            this.selectSuccessfulAuthorizationResponse = selectSuccessfulAuthorizationResponse;
+            this.selectPaymentMethod = selectPaymentMethod;
+        }
     }
 }
@@ -0,0 +1,181 @@
+/*
+ * Copyright 2017 Groupon, Inc
+ * Copyright 2017 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.util.http;
+
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Circuit breaker and bulkhead of a host. After failureThreshold consecutive failures (transport errors or 5xx),
+ * requests fail fast for openDuration, after which a single probe request is let through: the circuit closes again
+ * if it succeeds. Independently, at most maxConcurrentRequests requests are in flight.
+ */
+public class HttpCircuitBreaker {
+
+    public enum State {
+        CLOSED,
+        OPEN,
+        HALF_OPEN
+    }
+
+    private final String host;
+    private final int failureThreshold;
+    private final long openDurationNanos;
+    private final Semaphore bulkhead;
+
+    private final AtomicLong nbSuccesses = new AtomicLong();
+    private final AtomicLong nbFailures = new AtomicLong();
+    private final AtomicLong nbRejectedOpen = new AtomicLong();
+    private final AtomicLong nbRejectedBulkhead = new AtomicLong();
+
+    // Guarded by this
+    private State state = State.CLOSED;
+    private int consecutiveFailures;
+    private long openedAtNanos;
+    private boolean probeInFlight;
+
+    HttpCircuitBreaker(final String host, final int failureThreshold, final long openDurationNanos, final int maxConcurrentRequests) {
+        this.host = host;
+        this.failureThreshold = failureThreshold;
+        this.openDurationNanos = openDurationNanos;
+        this.bulkhead = maxConcurrentRequests > 0 ? new Semaphore(maxConcurrentRequests) : null;
+    }
+
+    // To call before sending the request, then release once completed
+    void acquire() throws RejectedRequestException {
+        final boolean isProbe;
+        synchronized (this) {
+            if (state == State.OPEN) {
+                if (System.nanoTime() - openedAtNanos < openDurationNanos) {
+                    nbRejectedOpen.incrementAndGet();
+                    throw new RejectedRequestException("Circuit breaker open for " + host);
+                }
+                state = State.HALF_OPEN;
+                probeInFlight = false;
+            }
+            if (state == State.HALF_OPEN) {
+                if (probeInFlight) {
+                    nbRejectedOpen.incrementAndGet();
+                    throw new RejectedRequestException("Circuit breaker half-open for " + host + ", probe in flight");
+                }
+                probeInFlight = true;
+                isProbe = true;
+            } else {
+                isProbe = false;
+            }
+        }
+
+        if (bulkhead != null && !bulkhead.tryAcquire()) {
+            if (isProbe) {
+                synchronized (this) {
+                    probeInFlight = false;
+                }
+            }
+            nbRejectedBulkhead.incrementAndGet();
+            throw new RejectedRequestException("Too many concurrent requests for " + host);
+        }
+    }
+
+    void release(final boolean success) {
+        if (bulkhead != null) {
+            bulkhead.release();
+        }
+
+        if (success) {
+            nbSuccesses.incrementAndGet();
+        } else {
+            nbFailures.incrementAndGet();
+        }
+
+        synchronized (this) {
+            if (success) {
+                consecutiveFailures = 0;
+                if (state == State.HALF_OPEN) {
+                    state = State.CLOSED;
+                    probeInFlight = false;
+                }
+            } else {
+                consecutiveFailures++;
+                if (state == State.HALF_OPEN || (state == State.CLOSED && consecutiveFailures >= failureThreshold)) {
+                    state = State.OPEN;
+                    openedAtNanos = System.nanoTime();
+                    probeInFlight = false;
+                }
+            }
+        }
+    }
+
+    // Aborted request (e.g. losing hedged request), which says nothing about the host
+    void releaseCancelled() {
+        if (bulkhead != null) {
+            bulkhead.release();
+        }
+
+        synchronized (this) {
+            // Let another probe through
+            if (state == State.HALF_OPEN) {
+                probeInFlight = false;
+            }
+        }
+    }
+
+    public synchronized State getState() {
+        return state;
+    }
+
+    public synchronized int getConsecutiveFailures() {
+        return consecutiveFailures;
+    }
+
+    // -1 without bulkhead
+    public int getAvailableConcurrentRequests() {
+        return bulkhead == null ? -1 : bulkhead.availablePermits();
+    }
+
+    public long getNbSuccesses() {
+        return nbSuccesses.get();
+    }
+
+    public long getNbFailures() {
+        return nbFailures.get();
+    }
+
+    // Failed fast, circuit open
+    public long getNbRejectedOpen() {
+        return nbRejectedOpen.get();
+    }
+
+    // Failed fast, too many concurrent requests
+    public long getNbRejectedBulkhead() {
+        return nbRejectedBulkhead.get();
+    }
+
+    @Override
+    public String toString() {
+        final StringBuilder sb = new StringBuilder("HttpCircuitBreaker{");
+        sb.append("host='").append(host).append('\'');
+        sb.append(", state=").append(getState());
+        sb.append(", consecutiveFailures=").append(getConsecutiveFailures());
+        sb.append(", nbSuccesses=").append(nbSuccesses);
+        sb.append(", nbFailures=").append(nbFailures);
+        sb.append(", nbRejectedOpen=").append(nbRejectedOpen);
+        sb.append(", nbRejectedBulkhead=").append(nbRejectedBulkhead);
+        sb.append('}');
+        return sb.toString();
+    }
+}
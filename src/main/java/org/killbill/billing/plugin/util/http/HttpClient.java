@@ -21,31 +21,63 @@ import java.io.Closeable;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.io.SequenceInputStream;
+import java.net.InetAddress;
 import java.net.URI;
 import java.net.URISyntaxException;
 import java.security.GeneralSecurityException;
-import java.util.HashMap;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.function.BiConsumer;
+import java.util.function.Function;
+
+import javax.annotation.Nullable;
+
+import org.jboss.netty.util.HashedWheelTimer;
+import org.jboss.netty.util.Timer;
 
 import com.ning.http.client.AsyncCompletionHandler;
+import com.ning.http.client.AsyncHandler;
 import com.ning.http.client.AsyncHttpClient;
 import com.ning.http.client.AsyncHttpClient.BoundRequestBuilder;
+import com.ning.http.client.AsyncHandlerExtensions;
 import com.ning.http.client.AsyncHttpClientConfig;
+import com.ning.http.client.HttpResponseBodyPart;
+import com.ning.http.client.HttpResponseHeaders;
+import com.ning.http.client.HttpResponseStatus;
 import com.ning.http.client.ListenableFuture;
 import com.ning.http.client.ProxyServer;
 import com.ning.http.client.Realm;
+import com.ning.http.client.Request;
 import com.ning.http.client.Response;
+import com.ning.http.client.providers.netty.NettyAsyncHttpProviderConfig;
+import com.ning.http.client.providers.netty.channel.pool.DefaultChannelPool;
 
 import com.fasterxml.jackson.annotation.JsonInclude;
 import com.fasterxml.jackson.core.JsonParser;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.fasterxml.jackson.databind.SerializationFeature;
+import com.fasterxml.jackson.databind.util.ByteBufferBackedInputStream;
 import com.google.common.base.Charsets;
+import com.google.common.base.Preconditions;
+import com.google.common.base.Throwables;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
 import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Iterators;
 import com.google.common.io.CharStreams;
 import com.google.common.net.HttpHeaders;
 
@@ -68,6 +100,10 @@ public class HttpClient implements Closeable {
     protected static final int DEFAULT_HTTP_TIMEOUT_SEC = 70;
     private static final int DEFAULT_HTTP_CONNECT_TIMEOUT = 5;
     private static final int DEFAULT_HTTP_READ_TIMEOUT = 60;
+    // Below this number of samples, latency percentiles of a route are ignored
+    private static final int MIN_LATENCY_SAMPLES = 100;
+    private static final int LATENCY_WINDOW_SIZE = 1000;
+    private static final int MAX_LATENCY_ROUTES = 1000;
 
     protected final String username;
     protected final String password;
@@ -76,6 +112,26 @@ public class HttpClient implements Closeable {
     protected final Integer proxyPort;
     protected final AsyncHttpClient httpClient;
     protected final ObjectMapper mapper;
+    protected final HttpClientPoolMetrics poolMetrics = new HttpClientPoolMetrics();
+
+    // Shared by all requests
+    private final Realm realm;
+    private final ProxyServer proxyServer;
+
+    // Shared by the provider and the connection pool, owned by this client
+    private final Timer nettyTimer = new HashedWheelTimer();
+    // Negative when responses are aggregated by AsyncHttpClient
+    private volatile long maxResponseBodySize = -1;
+    // Per host, when enabled
+    private final ConcurrentMap<String, HttpCircuitBreaker> circuitBreakers = new ConcurrentHashMap<String, HttpCircuitBreaker>();
+    private volatile Function<String, HttpCircuitBreaker> circuitBreakerFactory;
+    // Per route, when adaptive timeouts or hedged requests are enabled
+    private volatile Cache<String, LatencyHistogram> latencyHistograms;
+    private volatile double adaptiveTimeoutPercentile = -1;
+    private volatile double adaptiveTimeoutMultiplier;
+    private volatile long minAdaptiveTimeoutMs;
+    private volatile double hedgingPercentile = -1;
+    private final AtomicLong nbHedgedRequests = new AtomicLong();
 
     public HttpClient(final String url,
                       final String username,
@@ -88,7 +144,9 @@ public class HttpClient implements Closeable {
         this.password = password;
         this.proxyHost = proxyHost;
         this.proxyPort = proxyPort;
-        this.httpClient = buildAsyncHttpClient(strictSSL, DEFAULT_HTTP_CONNECT_TIMEOUT, DEFAULT_HTTP_READ_TIMEOUT);
+        this.realm = buildRealm(username, password);
+        this.proxyServer = buildProxyServer(proxyHost, proxyPort);
+        this.httpClient = buildAsyncHttpClient(strictSSL, DEFAULT_HTTP_CONNECT_TIMEOUT, DEFAULT_HTTP_READ_TIMEOUT, new HttpClientPoolConfig());
         this.mapper = createObjectMapper();
     }
 
@@ -105,25 +163,198 @@ public class HttpClient implements Closeable {
         this.password = password;
         this.proxyHost = proxyHost;
         this.proxyPort = proxyPort;
-        this.httpClient = buildAsyncHttpClient(strictSSL, readTimeout, connectTimeout);
+        this.realm = buildRealm(username, password);
+        this.proxyServer = buildProxyServer(proxyHost, proxyPort);
+        this.httpClient = buildAsyncHttpClient(strictSSL, readTimeout, connectTimeout, new HttpClientPoolConfig());
+        this.mapper = createObjectMapper();
+    }
+
+    public HttpClient(final String url,
+                      final String username,
+                      final String password,
+                      final String proxyHost,
+                      final Integer proxyPort,
+                      final Boolean strictSSL,
+                      final int connectTimeout,
+                      final int readTimeout,
+                      final HttpClientPoolConfig poolConfig) throws GeneralSecurityException {
+        this.url = url;
+        this.username = username;
+        this.password = password;
+        this.proxyHost = proxyHost;
+        this.proxyPort = proxyPort;
+        this.realm = buildRealm(username, password);
+        this.proxyServer = buildProxyServer(proxyHost, proxyPort);
+        this.httpClient = buildAsyncHttpClient(strictSSL, readTimeout, connectTimeout, poolConfig);
         this.mapper = createObjectMapper();
     }
 
-    private AsyncHttpClient buildAsyncHttpClient(final Boolean strictSSL, final int readTimeout, final int connectTimeout)
+    private static Realm buildRealm(final String username, final String password) {
+        if (username == null && password == null) {
+            return null;
+        }
+
+        final Realm.RealmBuilder realm = new Realm.RealmBuilder();
+        if (username != null) {
+            realm.setPrincipal(username);
+        }
+        if (password != null) {
+            realm.setPassword(password);
+        }
+        // Unclear why it's now needed
+        realm.setUsePreemptiveAuth(true);
+        realm.setScheme(Realm.AuthScheme.BASIC);
+        return realm.build();
+    }
+
+    private static ProxyServer buildProxyServer(final String proxyHost, final Integer proxyPort) {
+        return proxyHost != null && proxyPort != null ? new ProxyServer(proxyHost, proxyPort) : null;
+    }
+
+    private AsyncHttpClient buildAsyncHttpClient(final Boolean strictSSL, final int readTimeout, final int connectTimeout, final HttpClientPoolConfig poolConfig)
             throws GeneralSecurityException {
+        final NettyAsyncHttpProviderConfig providerConfig = new NettyAsyncHttpProviderConfig();
+        providerConfig.setNettyTimer(nettyTimer);
+
         AsyncHttpClientConfig.Builder cfg = new AsyncHttpClientConfig.Builder();
         cfg.setUserAgent(USER_AGENT)
            .setConnectTimeout(connectTimeout)
-           .setReadTimeout(readTimeout);
+           .setReadTimeout(readTimeout)
+           .setAsyncHttpClientProviderConfig(providerConfig);
+        poolConfig.apply(cfg);
         if (!strictSSL) {
             cfg.setSSLContext(SslUtils.getInstance().getSSLContext(!strictSSL));
         }
-        return new AsyncHttpClient(cfg.build());
+        final AsyncHttpClientConfig config = cfg.build();
+
+        // Same pool as the provider default, to expose its metrics
+        if (config.isAllowPoolingConnections()) {
+            providerConfig.setChannelPool(new MetricsChannelPool(new DefaultChannelPool(config, nettyTimer), poolMetrics));
+        }
+        return new AsyncHttpClient(config);
+    }
+
+    /**
+     * Deserialize responses from the body parts as received, instead of from the aggregated body, and fail responses
+     * larger than maxResponseBodySize (with an IOException) without reading them fully.
+     *
+     * @param maxResponseBodySize maximum body size, in bytes
+     */
+    public void enableStreamingResponses(final long maxResponseBodySize) {
+        Preconditions.checkArgument(maxResponseBodySize >= 0, "maxResponseBodySize must not be negative");
+        this.maxResponseBodySize = maxResponseBodySize;
+    }
+
+    public void disableStreamingResponses() {
+        this.maxResponseBodySize = -1;
+    }
+
+    /**
+     * Fail fast (with a RejectedRequestException) requests to hosts which keep failing, and bound the number of
+     * concurrent requests per host, so that a degraded gateway doesn't tie up all calling threads.
+     *
+     * @param failureThreshold      number of consecutive failures (transport errors or 5xx) opening the circuit
+     * @param openDuration          time before a probe request is let through
+     * @param unit                  unit of openDuration
+     * @param maxConcurrentRequests maximum number of in-flight requests per host, 0 for no limit
+     */
+    public void enableCircuitBreaker(final int failureThreshold, final long openDuration, final TimeUnit unit, final int maxConcurrentRequests) {
+        Preconditions.checkArgument(failureThreshold > 0, "failureThreshold must be positive");
+        Preconditions.checkArgument(openDuration >= 0, "openDuration must not be negative");
+        Preconditions.checkArgument(maxConcurrentRequests >= 0, "maxConcurrentRequests must not be negative");
+
+        final long openDurationNanos = unit.toNanos(openDuration);
+        circuitBreakerFactory = host -> new HttpCircuitBreaker(host, failureThreshold, openDurationNanos, maxConcurrentRequests);
+        circuitBreakers.clear();
+    }
+
+    public void disableCircuitBreaker() {
+        circuitBreakerFactory = null;
+        circuitBreakers.clear();
+    }
+
+    // Keyed by pool partition (e.g. https://api.example.com:443)
+    public Map<String, HttpCircuitBreaker> getCircuitBreakers() {
+        return Collections.unmodifiableMap(circuitBreakers);
+    }
+
+    /**
+     * Time out requests based on the recent latencies of their route (verb, host and path), instead of the fixed
+     * timeout only: timeout = max(minTimeoutMs, percentile latency * multiplier), capped by the fixed timeout.
+     *
+     * @param percentile   latency percentile, e.g. 99
+     * @param multiplier   margin over the percentile latency, e.g. 3
+     * @param minTimeoutMs lower bound of the adaptive timeout
+     */
+    public void enableAdaptiveTimeouts(final double percentile, final double multiplier, final long minTimeoutMs) {
+        Preconditions.checkArgument(percentile > 0 && percentile <= 100, "percentile must be between 0 and 100");
+        Preconditions.checkArgument(multiplier >= 1, "multiplier must be at least 1");
+        Preconditions.checkArgument(minTimeoutMs > 0, "minTimeoutMs must be positive");
+
+        enableLatencyTracking();
+        this.adaptiveTimeoutMultiplier = multiplier;
+        this.minAdaptiveTimeoutMs = minTimeoutMs;
+        this.adaptiveTimeoutPercentile = percentile;
+    }
+
+    public void disableAdaptiveTimeouts() {
+        adaptiveTimeoutPercentile = -1;
+        disableLatencyTrackingIfUnused();
+    }
+
+    /**
+     * Send a second, identical, GET or HEAD request when the first one is slower than the percentile latency of its
+     * route: the first response wins, the other request is aborted. Only for idempotent calls (e.g. status polls).
+     *
+     * @param percentile latency percentile, e.g. 95
+     */
+    public void enableHedgedRequests(final double percentile) {
+        Preconditions.checkArgument(percentile > 0 && percentile < 100, "percentile must be between 0 and 100");
+
+        enableLatencyTracking();
+        this.hedgingPercentile = percentile;
+    }
+
+    public void disableHedgedRequests() {
+        hedgingPercentile = -1;
+        disableLatencyTrackingIfUnused();
+    }
+
+    // Keyed by route (e.g. GET https://api.example.com:443/v1/payments)
+    public Map<String, LatencyHistogram> getLatencyHistograms() {
+        final Cache<String, LatencyHistogram> latencyHistograms = this.latencyHistograms;
+        return latencyHistograms == null ? Collections.<String, LatencyHistogram>emptyMap() : Collections.unmodifiableMap(latencyHistograms.asMap());
+    }
+
+    public long getNbHedgedRequests() {
+        return nbHedgedRequests.get();
+    }
+
+    private synchronized void enableLatencyTracking() {
+        if (latencyHistograms == null) {
+            latencyHistograms = CacheBuilder.newBuilder()
+                                            .maximumSize(MAX_LATENCY_ROUTES)
+                                            .build();
+        }
+    }
+
+    private synchronized void disableLatencyTrackingIfUnused() {
+        if (adaptiveTimeoutPercentile < 0 && hedgingPercentile < 0) {
+            latencyHistograms = null;
+        }
+    }
+
+    public HttpClientPoolMetrics getPoolMetrics() {
+        return poolMetrics;
     }
 
     @Override
     public void close() throws IOException {
-        httpClient.close();
+        try {
+            httpClient.close();
+        } finally {
+            nettyTimer.stop();
+        }
     }
 
     protected ObjectMapper createObjectMapper() {
@@ -182,17 +413,125 @@ public class HttpClient implements Closeable {
         return executeAndWait(builder, DEFAULT_HTTP_TIMEOUT_SEC, clazz, format);
     }
 
+    /**
+     * Non-blocking variant of doCall: the calling thread is released as soon as the request is sent.
+     *
+     * @return future completed with the deserialized response, or failed with InvalidRequest on 4xx/5xx status codes
+     * (or with the request exception, e.g. TimeoutException)
+     */
+    protected <T> CompletableFuture<T> doCallAsync(final String verb, final String uri, final String body, final Map<String, String> queryParams,
+                                                   final Map<String, String> headers, final Class<T> clazz, final ResponseFormat format) {
+        final AsyncHttpClient.BoundRequestBuilder builder;
+        try {
+            builder = prepareBuilder(verb, getUrl(this.url, uri));
+        } catch (final URISyntaxException e) {
+            final CompletableFuture<T> future = new CompletableFuture<T>();
+            future.completeExceptionally(e);
+            return future;
+        }
+        addHeadsOrParams(headers, (key, value) -> builder.addHeader(key, value));
+        addHeadsOrParams(queryParams, (key, value) -> builder.addQueryParam(key, value));
+        if (!GET.equals(verb) && !HEAD.equals(verb)) {
+            if (body != null) {
+                builder.setBody(body);
+            }
+        }
+
+        return executeAsync(builder, DEFAULT_HTTP_TIMEOUT_SEC, clazz, format);
+    }
+
     protected <T> T executeAndWait(final AsyncHttpClient.BoundRequestBuilder builder, final int timeoutSec,
                                    final Class<T> clazz, final ResponseFormat format) throws IOException, InterruptedException, ExecutionException, TimeoutException, InvalidRequest {
-        final Response response;
-        final ListenableFuture<Response> futureStatus = builder.execute(new AsyncCompletionHandler<Response>() {
-            @Override
-            public Response onCompleted(final Response response) throws Exception {
-                return response;
+        if (maxResponseBodySize >= 0 || latencyHistograms != null) {
+            final CompletableFuture<T> future = executeAsync(builder, timeoutSec, clazz, format);
+            try {
+                return future.get(timeoutSec, TimeUnit.SECONDS);
+            } catch (final ExecutionException e) {
+                // Same exceptions as the aggregated path
+                Throwables.propagateIfPossible(e.getCause(), IOException.class, InvalidRequest.class);
+                throw e;
             }
-        });
+        }
+
+        final Response response;
+        final Request request = builder.build();
+        final ListenableFuture<Response> futureStatus = httpClient.executeRequest(request, new MetricsCompletionHandler(request, null));
         response = futureStatus.get(timeoutSec, TimeUnit.SECONDS);
 
+        return checkAndDeserializeResponse(response, clazz, format);
+    }
+
+    /**
+     * Execute the request without waiting for the response. The response is checked and deserialized on completion,
+     * on the IO thread: callbacks chained with the non-async CompletableFuture methods should not block.
+     *
+     * @param builder    request
+     * @param timeoutSec request timeout
+     * @param clazz      response type
+     * @param format     response format
+     * @return future completed with the deserialized response. Cancelling it aborts the request.
+     */
+    protected <T> CompletableFuture<T> executeAsync(final AsyncHttpClient.BoundRequestBuilder builder, final int timeoutSec,
+                                                    final Class<T> clazz, final ResponseFormat format) {
+        final CompletableFuture<T> future = new CompletableFuture<T>();
+        final Request request = builder.setRequestTimeout((int) TimeUnit.SECONDS.toMillis(timeoutSec)).build();
+        final LatencyHistogram latencyHistogram = getLatencyHistogram(request);
+        final RequestAttempts<T> attempts = new RequestAttempts<T>(request, latencyHistogram, clazz, format, future);
+        try {
+            attempts.send();
+        } catch (final RejectedRequestException e) {
+            future.completeExceptionally(e);
+            return future;
+        }
+
+        if (latencyHistogram != null && latencyHistogram.getNbSamples() >= MIN_LATENCY_SAMPLES) {
+            final double adaptiveTimeoutPercentile = this.adaptiveTimeoutPercentile;
+            if (adaptiveTimeoutPercentile > 0) {
+                final long adaptiveTimeoutMs = Math.max(minAdaptiveTimeoutMs, (long) (latencyHistogram.getPercentileMs(adaptiveTimeoutPercentile) * adaptiveTimeoutMultiplier));
+                if (adaptiveTimeoutMs < TimeUnit.SECONDS.toMillis(timeoutSec)) {
+                    nettyTimer.newTimeout(timeout -> attempts.timeOut(adaptiveTimeoutMs), adaptiveTimeoutMs, TimeUnit.MILLISECONDS);
+                }
+            }
+
+            final double hedgingPercentile = this.hedgingPercentile;
+            if (hedgingPercentile > 0 && (GET.equals(request.getMethod()) || HEAD.equals(request.getMethod()))) {
+                nettyTimer.newTimeout(timeout -> {
+                    if (future.isDone()) {
+                        return;
+                    }
+                    try {
+                        attempts.send();
+                        nbHedgedRequests.incrementAndGet();
+                    } catch (final RejectedRequestException ignored) {
+                        // Keep waiting for the first attempt
+                    }
+                }, latencyHistogram.getPercentileMs(hedgingPercentile), TimeUnit.MILLISECONDS);
+            }
+        }
+
+        return future;
+    }
+
+    @Nullable
+    private LatencyHistogram getLatencyHistogram(final Request request) {
+        final Cache<String, LatencyHistogram> latencyHistograms = this.latencyHistograms;
+        if (latencyHistograms == null) {
+            return null;
+        }
+
+        final String route = request.getMethod() + " " + getPartitionKey(request) + request.getUri().getPath();
+        try {
+            return latencyHistograms.get(route, () -> new LatencyHistogram(LATENCY_WINDOW_SIZE));
+        } catch (final ExecutionException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static String getPartitionKey(final Request request) {
+        return String.valueOf(request.getConnectionPoolPartitioning().getPartitionKey(request.getUri(), request.getProxyServer()));
+    }
+
+    protected <T> T checkAndDeserializeResponse(final Response response, final Class<T> clazz, final ResponseFormat format) throws IOException, InvalidRequest {
         if (response != null && response.getStatusCode() == 401) {
             throw new InvalidRequest("Unauthorized request", response);
         } else if (response != null && response.getStatusCode() >= 400) {
@@ -206,12 +545,7 @@ public class HttpClient implements Closeable {
         InputStream in = null;
         try {
             in = response.getResponseBodyAsStream();
-            switch (format) {
-                case TEXT:
-                    return (T) CharStreams.toString(new InputStreamReader(in, Charsets.UTF_8));
-                default:
-                    return mapper.readValue(in, clazz);
-            }
+            return deserialize(in, clazz, format);
         } finally {
             if (in != null) {
                 in.close();
@@ -219,28 +553,30 @@ public class HttpClient implements Closeable {
         }
     }
 
+    protected <T> T deserialize(final InputStream in, final Class<T> clazz, final ResponseFormat format) throws IOException {
+        switch (format) {
+            case TEXT:
+                return (T) CharStreams.toString(new InputStreamReader(in, Charsets.UTF_8));
+            default:
+                return mapper.readValue(in, clazz);
+        }
+    }
+
     @Deprecated
     protected AsyncHttpClient.BoundRequestBuilder getBuilderWithHeaderAndQuery(final String verb, final String url, final Map<String, String> immutableOptions) {
         final AsyncHttpClient.BoundRequestBuilder builder = prepareBuilder(verb, url);
 
-        final Map<String, String> options = new HashMap<String, String>(immutableOptions);
-
-        if (options.get(HttpHeaders.ACCEPT) != null) {
-            builder.addHeader(HttpHeaders.ACCEPT, options.remove(HttpHeaders.ACCEPT));
-        }
-        if (options.get(HttpHeaders.CONTENT_TYPE) != null) {
-            builder.addHeader(HttpHeaders.CONTENT_TYPE, options.remove(HttpHeaders.CONTENT_TYPE));
-        }
-
-        for (final String key : options.keySet()) {
-            if (options.get(key) != null) {
-                builder.addQueryParam(key, options.get(key));
+        // Accept and Content-Type are headers, other options are query parameters
+        for (final Map.Entry<String, String> option : immutableOptions.entrySet()) {
+            if (option.getValue() == null) {
+                continue;
             }
-        }
 
-        if (proxyHost != null && proxyPort != null) {
-            final ProxyServer proxyServer = new ProxyServer(proxyHost, proxyPort);
-            builder.setProxyServer(proxyServer);
+            if (HttpHeaders.ACCEPT.equals(option.getKey()) || HttpHeaders.CONTENT_TYPE.equals(option.getKey())) {
+                builder.addHeader(option.getKey(), option.getValue());
+            } else {
+                builder.addQueryParam(option.getKey(), option.getValue());
+            }
         }
 
         return builder;
@@ -280,26 +616,336 @@ public class HttpClient implements Closeable {
             throw new IllegalArgumentException("Unrecognized verb: " + verb);
         }
 
-        if (username != null || password != null) {
-            final Realm.RealmBuilder realm = new Realm.RealmBuilder();
-            if (username != null) {
-                realm.setPrincipal(username);
+        if (realm != null) {
+            builder.setRealm(realm);
+        }
+        if (proxyServer != null) {
+            builder.setProxyServer(proxyServer);
+        }
+
+        return builder;
+    }
+
+    /**
+     * Build the invariant part of a request once (verb, URL, static headers, authentication and proxy), for
+     * requests sent repeatedly: see {@link RequestTemplate#prepare()}.
+     *
+     * @param verb    HTTP verb
+     * @param uri     relative (to the client URL) or absolute URI
+     * @param headers static headers
+     * @return the template
+     * @throws URISyntaxException if the uri is invalid
+     */
+    protected RequestTemplate newRequestTemplate(final String verb, final String uri, final Map<String, String> headers) throws URISyntaxException {
+        final AsyncHttpClient.BoundRequestBuilder builder = prepareBuilder(verb, getUrl(this.url, uri));
+        addHeadsOrParams(headers, (key, value) -> builder.addHeader(key, value));
+        return new RequestTemplate(httpClient, builder.build());
+    }
+
+    // The attempts of a request (more than one for hedged requests): the first success wins, the last failure fails the request
+    private final class RequestAttempts<T> {
+
+        private final Request request;
+        private final LatencyHistogram latencyHistogram;
+        private final Class<T> clazz;
+        private final ResponseFormat format;
+        private final CompletableFuture<T> future;
+        private final Set<MetricsCompletionHandler> inFlight = ConcurrentHashMap.newKeySet();
+
+        // Set before completing the future with it
+        private volatile TimeoutException adaptiveTimeout;
+
+        private RequestAttempts(final Request request,
+                                @Nullable final LatencyHistogram latencyHistogram,
+                                final Class<T> clazz,
+                                final ResponseFormat format,
+                                final CompletableFuture<T> future) {
+            this.request = request;
+            this.latencyHistogram = latencyHistogram;
+            this.clazz = clazz;
+            this.format = format;
+            this.future = future;
+        }
+
+        void send() throws RejectedRequestException {
+            final long maxResponseBodySize = HttpClient.this.maxResponseBodySize;
+            final MetricsCompletionHandler handler = maxResponseBodySize >= 0 ?
+                                                     new StreamingCompletionHandler<T>(this, maxResponseBodySize) :
+                                                     new FutureCompletionHandler<T>(this);
+            inFlight.add(handler);
+            try {
+                handler.setFutureStatus(httpClient.executeRequest(request, handler));
+            } catch (final Throwable t) {
+                // Thrown on the calling thread, before anything was sent: not a failure of the host
+                handler.markCancelled();
+                fail(handler, t);
+                return;
             }
-            if (password != null) {
-                realm.setPassword(password);
+            // On completion, cancellation or timeout (right away if completed in the meantime)
+            future.whenComplete((result, throwable) -> handler.abort(throwable != null && throwable == adaptiveTimeout ?
+                                                                     throwable :
+                                                                     new CancellationException("Request cancelled")));
+        }
+
+        void complete(final MetricsCompletionHandler handler, final T result) {
+            inFlight.remove(handler);
+            future.complete(result);
+        }
+
+        void fail(final MetricsCompletionHandler handler, final Throwable throwable) {
+            // Other attempts may still succeed
+            if (inFlight.remove(handler) && inFlight.isEmpty()) {
+                future.completeExceptionally(throwable);
             }
-            // Unclear why it's now needed
-            realm.setUsePreemptiveAuth(true);
-            realm.setScheme(Realm.AuthScheme.BASIC);
-            builder.setRealm(realm.build());
         }
 
-        if (proxyHost != null && proxyPort != null) {
-            final ProxyServer proxyServer = new ProxyServer(proxyHost, proxyPort);
-            builder.setProxyServer(proxyServer);
+        // Attempts still in flight are aborted as failures of the host, and the timeout is a latency sample:
+        // otherwise the histogram would keep the latencies from before the host slowed down
+        void timeOut(final long timeoutMs) {
+            if (future.isDone()) {
+                return;
+            }
+
+            // Recorded before completing the future, so that the caller sees them (at worst, a racing success is also recorded)
+            if (latencyHistogram != null) {
+                latencyHistogram.record(timeoutMs);
+            }
+            final TimeoutException timeoutException = new TimeoutException("Request timed out after " + timeoutMs + " ms (adaptive timeout)");
+            adaptiveTimeout = timeoutException;
+            for (final MetricsCompletionHandler handler : inFlight) {
+                handler.abort(timeoutException);
+            }
+            future.completeExceptionally(timeoutException);
         }
+    }
 
-        return builder;
+    // Counts the request against its host (metrics and circuit breaker), with the connection events of the Netty provider
+    private class MetricsCompletionHandler extends AsyncCompletionHandler<Response> implements AsyncHandlerExtensions {
+
+        private final HttpClientPoolMetrics.HostMetrics hostMetrics;
+        private final HttpCircuitBreaker circuitBreaker;
+        private final LatencyHistogram latencyHistogram;
+        private final long startNanos = System.nanoTime();
+        private final AtomicBoolean done = new AtomicBoolean();
+
+        private volatile ListenableFuture<Response> futureStatus;
+
+        private MetricsCompletionHandler(final Request request, @Nullable final LatencyHistogram latencyHistogram) throws RejectedRequestException {
+            this.latencyHistogram = latencyHistogram;
+            final String partitionKey = getPartitionKey(request);
+            final Function<String, HttpCircuitBreaker> circuitBreakerFactory = HttpClient.this.circuitBreakerFactory;
+            this.circuitBreaker = circuitBreakerFactory == null ? null : circuitBreakers.computeIfAbsent(partitionKey, circuitBreakerFactory);
+            if (circuitBreaker != null) {
+                circuitBreaker.acquire();
+            }
+
+            this.hostMetrics = poolMetrics.hostMetrics(partitionKey);
+            hostMetrics.activeRequests.incrementAndGet();
+        }
+
+        @Override
+        public Response onCompleted(final Response response) throws Exception {
+            if (latencyHistogram != null) {
+                latencyHistogram.record(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos));
+            }
+            // 4xx are caller errors, the host is healthy
+            markDone(response.getStatusCode() < 500);
+            return response;
+        }
+
+        @Override
+        public void onThrowable(final Throwable t) {
+            if (t instanceof CancellationException) {
+                markCancelled();
+            } else {
+                markDone(false);
+            }
+        }
+
+        void setFutureStatus(final ListenableFuture<Response> futureStatus) {
+            this.futureStatus = futureStatus;
+        }
+
+        // Abort the request if still in flight: a CancellationException isn't held against the host
+        void abort(final Throwable cause) {
+            final ListenableFuture<Response> futureStatus = this.futureStatus;
+            if (!done.get() && futureStatus != null) {
+                futureStatus.abort(cause);
+            }
+        }
+
+        @Override
+        public void onOpenConnection() {
+            hostMetrics.openedConnections.incrementAndGet();
+        }
+
+        @Override
+        public void onConnectionOpen() {
+        }
+
+        @Override
+        public void onPoolConnection() {
+        }
+
+        @Override
+        public void onConnectionPooled() {
+            hostMetrics.reusedConnections.incrementAndGet();
+        }
+
+        @Override
+        public void onSendRequest(final Object request) {
+        }
+
+        @Override
+        public void onRetry() {
+        }
+
+        @Override
+        public void onDnsResolved(final InetAddress remoteAddress) {
+        }
+
+        @Override
+        public void onSslHandshakeCompleted() {
+        }
+
+        void markDone(final boolean success) {
+            if (done.compareAndSet(false, true)) {
+                hostMetrics.activeRequests.decrementAndGet();
+                if (circuitBreaker != null) {
+                    circuitBreaker.release(success);
+                }
+            }
+        }
+
+        // Neither a success nor a failure of the host
+        private void markCancelled() {
+            if (done.compareAndSet(false, true)) {
+                hostMetrics.activeRequests.decrementAndGet();
+                if (circuitBreaker != null) {
+                    circuitBreaker.releaseCancelled();
+                }
+            }
+        }
+    }
+
+    // Completes the attempt with the deserialized response
+    private final class FutureCompletionHandler<T> extends MetricsCompletionHandler {
+
+        private final RequestAttempts<T> attempts;
+
+        private FutureCompletionHandler(final RequestAttempts<T> attempts) throws RejectedRequestException {
+            super(attempts.request, attempts.latencyHistogram);
+            this.attempts = attempts;
+        }
+
+        @Override
+        public Response onCompleted(final Response response) throws Exception {
+            super.onCompleted(response);
+            try {
+                attempts.complete(this, checkAndDeserializeResponse(response, attempts.clazz, attempts.format));
+            } catch (final Exception e) {
+                attempts.fail(this, e);
+            }
+            return response;
+        }
+
+        @Override
+        public void onThrowable(final Throwable t) {
+            super.onThrowable(t);
+            attempts.fail(this, t);
+        }
+    }
+
+    // Keeps the body parts as received: the body is never copied into a single buffer
+    private final class StreamingCompletionHandler<T> extends MetricsCompletionHandler {
+
+        private final RequestAttempts<T> attempts;
+        private final long maxResponseBodySize;
+        private final List<HttpResponseBodyPart> bodyParts = new LinkedList<HttpResponseBodyPart>();
+
+        private HttpResponseStatus status;
+        private HttpResponseHeaders headers;
+        private long bodySize;
+        // Aborted by the client side limit
+        private boolean bodyTooLarge;
+
+        private StreamingCompletionHandler(final RequestAttempts<T> attempts, final long maxResponseBodySize) throws RejectedRequestException {
+            super(attempts.request, attempts.latencyHistogram);
+            this.attempts = attempts;
+            this.maxResponseBodySize = maxResponseBodySize;
+        }
+
+        @Override
+        public STATE onStatusReceived(final HttpResponseStatus status) throws Exception {
+            this.status = status;
+            return super.onStatusReceived(status);
+        }
+
+        @Override
+        public STATE onHeadersReceived(final HttpResponseHeaders headers) throws Exception {
+            this.headers = headers;
+            final String contentLength = headers.getHeaders().getFirstValue(HttpHeaders.CONTENT_LENGTH);
+            if (contentLength != null && Long.parseLong(contentLength.trim()) > maxResponseBodySize) {
+                bodyTooLarge = true;
+                throw new IOException("Response body of " + contentLength + " bytes exceeds " + maxResponseBodySize + " bytes");
+            }
+            return super.onHeadersReceived(headers);
+        }
+
+        @Override
+        public STATE onBodyPartReceived(final HttpResponseBodyPart bodyPart) throws Exception {
+            bodySize += bodyPart.length();
+            if (bodySize > maxResponseBodySize) {
+                bodyTooLarge = true;
+                throw new IOException("Response body exceeds " + maxResponseBodySize + " bytes");
+            }
+            bodyParts.add(bodyPart);
+            return STATE.CONTINUE;
+        }
+
+        // The response doesn't have the body
+        @Override
+        public Response onCompleted(final Response response) throws Exception {
+            super.onCompleted(response);
+            try {
+                if (response.getStatusCode() >= 400) {
+                    checkAndDeserializeResponse(buildResponseWithBody(), attempts.clazz, attempts.format);
+                }
+                attempts.complete(this, deserialize(bodyInputStream(), attempts.clazz, attempts.format));
+            } catch (final Exception e) {
+                attempts.fail(this, e);
+            }
+            return response;
+        }
+
+        @Override
+        public void onThrowable(final Throwable t) {
+            if (bodyTooLarge) {
+                // Like 4xx, a caller error: the host is healthy
+                markDone(true);
+            } else {
+                super.onThrowable(t);
+            }
+            attempts.fail(this, t);
+        }
+
+        private InputStream bodyInputStream() {
+            final Iterator<InputStream> bodyPartsInputStreams = Iterators.transform(bodyParts.iterator(), bodyPart -> new ByteBufferBackedInputStream(bodyPart.getBodyByteBuffer()));
+            return new SequenceInputStream(Iterators.asEnumeration(bodyPartsInputStreams));
+        }
+
+        // For InvalidRequest
+        private Response buildResponseWithBody() {
+            final Response.ResponseBuilder responseBuilder = new Response.ResponseBuilder();
+            responseBuilder.accumulate(status);
+            if (headers != null) {
+                responseBuilder.accumulate(headers);
+            }
+            for (final HttpResponseBodyPart bodyPart : bodyParts) {
+                responseBuilder.accumulate(bodyPart);
+            }
+            return responseBuilder.build();
+        }
     }
 
     private String getUrl(final String location, final String uri) throws URISyntaxException {
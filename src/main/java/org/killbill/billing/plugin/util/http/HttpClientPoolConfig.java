@@ -0,0 +1,134 @@
+/*
+ * Copyright 2017 Groupon, Inc
+ * Copyright 2017 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.util.http;
+
+import javax.annotation.Nullable;
+
+import com.ning.http.client.AsyncHttpClientConfig;
+
+/**
+ * Connection pool settings of an {@link HttpClient}. Settings left unset keep the AsyncHttpClient defaults.
+ */
+public class HttpClientPoolConfig {
+
+    private Integer maxConnections;
+    private Integer maxConnectionsPerHost;
+    private Integer pooledConnectionIdleTimeoutMs;
+    private Integer connectionTTLMs;
+    private Integer ioThreadMultiplier;
+    private Boolean allowPoolingConnections;
+
+    // Maximum number of connections, across hosts
+    public HttpClientPoolConfig setMaxConnections(final int maxConnections) {
+        this.maxConnections = maxConnections;
+        return this;
+    }
+
+    // Typically the concurrency limit of the gateway
+    public HttpClientPoolConfig setMaxConnectionsPerHost(final int maxConnectionsPerHost) {
+        this.maxConnectionsPerHost = maxConnectionsPerHost;
+        return this;
+    }
+
+    // Idle keep-alive connections are closed after this delay
+    public HttpClientPoolConfig setPooledConnectionIdleTimeoutMs(final int pooledConnectionIdleTimeoutMs) {
+        this.pooledConnectionIdleTimeoutMs = pooledConnectionIdleTimeoutMs;
+        return this;
+    }
+
+    // Maximum lifetime of a pooled connection (e.g. to pick up DNS changes), -1 for no limit
+    public HttpClientPoolConfig setConnectionTTLMs(final int connectionTTLMs) {
+        this.connectionTTLMs = connectionTTLMs;
+        return this;
+    }
+
+    // Number of IO threads, per available processor
+    public HttpClientPoolConfig setIoThreadMultiplier(final int ioThreadMultiplier) {
+        this.ioThreadMultiplier = ioThreadMultiplier;
+        return this;
+    }
+
+    public HttpClientPoolConfig setAllowPoolingConnections(final boolean allowPoolingConnections) {
+        this.allowPoolingConnections = allowPoolingConnections;
+        return this;
+    }
+
+    @Nullable
+    public Integer getMaxConnections() {
+        return maxConnections;
+    }
+
+    @Nullable
+    public Integer getMaxConnectionsPerHost() {
+        return maxConnectionsPerHost;
+    }
+
+    @Nullable
+    public Integer getPooledConnectionIdleTimeoutMs() {
+        return pooledConnectionIdleTimeoutMs;
+    }
+
+    @Nullable
+    public Integer getConnectionTTLMs() {
+        return connectionTTLMs;
+    }
+
+    @Nullable
+    public Integer getIoThreadMultiplier() {
+        return ioThreadMultiplier;
+    }
+
+    @Nullable
+    public Boolean getAllowPoolingConnections() {
+        return allowPoolingConnections;
+    }
+
+    void apply(final AsyncHttpClientConfig.Builder cfg) {
+        if (maxConnections != null) {
+            cfg.setMaxConnections(maxConnections);
+        }
+        if (maxConnectionsPerHost != null) {
+            cfg.setMaxConnectionsPerHost(maxConnectionsPerHost);
+        }
+        if (pooledConnectionIdleTimeoutMs != null) {
+            cfg.setPooledConnectionIdleTimeout(pooledConnectionIdleTimeoutMs);
+        }
+        if (connectionTTLMs != null) {
+            cfg.setConnectionTTL(connectionTTLMs);
+        }
+        if (ioThreadMultiplier != null) {
+            cfg.setIOThreadMultiplier(ioThreadMultiplier);
+        }
+        if (allowPoolingConnections != null) {
+            cfg.setAllowPoolingConnections(allowPoolingConnections);
+        }
+    }
+
+    @Override
+    public String toString() {
+        final StringBuilder sb = new StringBuilder("HttpClientPoolConfig{");
+        sb.append("maxConnections=").append(maxConnections);
+        sb.append(", maxConnectionsPerHost=").append(maxConnectionsPerHost);
+        sb.append(", pooledConnectionIdleTimeoutMs=").append(pooledConnectionIdleTimeoutMs);
+        sb.append(", connectionTTLMs=").append(connectionTTLMs);
+        sb.append(", ioThreadMultiplier=").append(ioThreadMultiplier);
+        sb.append(", allowPoolingConnections=").append(allowPoolingConnections);
+        sb.append('}');
+        return sb.toString();
+    }
+}
@@ -0,0 +1,93 @@
+/*
+ * Copyright 2017 Groupon, Inc
+ * Copyright 2017 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.util.http;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.annotation.Nullable;
+
+/**
+ * Live connection pool metrics of an {@link HttpClient}, per host (base URL, or proxy and base URL).
+ */
+public class HttpClientPoolMetrics {
+
+    private final ConcurrentMap<String, HostMetrics> hostsMetrics = new ConcurrentHashMap<String, HostMetrics>();
+
+    // Keyed by pool partition (e.g. https://api.example.com:443)
+    public Map<String, HostMetrics> getHostsMetrics() {
+        return Collections.unmodifiableMap(hostsMetrics);
+    }
+
+    @Nullable
+    public HostMetrics getHostMetrics(final String partitionKey) {
+        return hostsMetrics.get(partitionKey);
+    }
+
+    HostMetrics hostMetrics(final Object partitionKey) {
+        return hostsMetrics.computeIfAbsent(String.valueOf(partitionKey), k -> new HostMetrics());
+    }
+
+    public static final class HostMetrics {
+
+        final AtomicInteger activeRequests = new AtomicInteger();
+        final AtomicInteger idleConnections = new AtomicInteger();
+        final AtomicLong openedConnections = new AtomicLong();
+        final AtomicLong reusedConnections = new AtomicLong();
+
+        // Requests sent and not yet completed, each holding a connection
+        public int getActiveRequests() {
+            return activeRequests.get();
+        }
+
+        // Keep-alive connections waiting in the pool
+        public int getIdleConnections() {
+            return idleConnections.get();
+        }
+
+        // In use plus idle
+        public int getOpenConnections() {
+            return getActiveRequests() + getIdleConnections();
+        }
+
+        // Total number of new connections
+        public long getOpenedConnections() {
+            return openedConnections.get();
+        }
+
+        // Total number of requests sent on a pooled (keep-alive) connection
+        public long getReusedConnections() {
+            return reusedConnections.get();
+        }
+
+        @Override
+        public String toString() {
+            final StringBuilder sb = new StringBuilder("HostMetrics{");
+            sb.append("activeRequests=").append(activeRequests);
+            sb.append(", idleConnections=").append(idleConnections);
+            sb.append(", openedConnections=").append(openedConnections);
+            sb.append(", reusedConnections=").append(reusedConnections);
+            sb.append('}');
+            return sb.toString();
+        }
+    }
+}
@@ -0,0 +1,99 @@
+/*
+ * Copyright 2017 Groupon, Inc
+ * Copyright 2017 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.util.http;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import com.google.common.base.Preconditions;
+
+/**
+ * Latency distribution of the most recent requests of a route, with log-scale (20%) buckets from 1 ms to ~2 min.
+ * Samples are kept in two alternating windows, so that older latencies are eventually forgotten.
+ */
+public class LatencyHistogram {
+
+    private static final double BUCKET_GROWTH = 1.2;
+    private static final int NB_BUCKETS = 65;
+
+    private final int windowSize;
+
+    private volatile AtomicLongArray currentWindow = new AtomicLongArray(NB_BUCKETS + 1);
+    private volatile AtomicLongArray previousWindow = new AtomicLongArray(NB_BUCKETS + 1);
+
+    public LatencyHistogram(final int windowSize) {
+        Preconditions.checkArgument(windowSize > 0, "windowSize must be positive");
+        this.windowSize = windowSize;
+    }
+
+    public void record(final long latencyMs) {
+        final AtomicLongArray window = currentWindow;
+        window.incrementAndGet(bucket(latencyMs));
+        // The last slot holds the number of samples
+        if (window.incrementAndGet(NB_BUCKETS) == windowSize) {
+            synchronized (this) {
+                previousWindow = window;
+                currentWindow = new AtomicLongArray(NB_BUCKETS + 1);
+            }
+        }
+    }
+
+    public long getNbSamples() {
+        return currentWindow.get(NB_BUCKETS) + previousWindow.get(NB_BUCKETS);
+    }
+
+    /**
+     * @param percentile between 0 and 100
+     * @return upper bound of the percentile latency, in milliseconds, or -1 without any sample
+     */
+    public long getPercentileMs(final double percentile) {
+        Preconditions.checkArgument(percentile >= 0 && percentile <= 100, "percentile must be between 0 and 100");
+
+        final AtomicLongArray current = currentWindow;
+        final AtomicLongArray previous = previousWindow;
+        final long[] counts = new long[NB_BUCKETS];
+        long nbSamples = 0;
+        for (int i = 0; i < NB_BUCKETS; i++) {
+            counts[i] = current.get(i) + previous.get(i);
+            nbSamples += counts[i];
+        }
+        if (nbSamples == 0) {
+            return -1;
+        }
+
+        final long rank = Math.max(1, (long) Math.ceil(nbSamples * percentile / 100));
+        long seen = 0;
+        for (int i = 0; i < NB_BUCKETS; i++) {
+            seen += counts[i];
+            if (seen >= rank) {
+                return upperBoundMs(i);
+            }
+        }
+        return upperBoundMs(NB_BUCKETS - 1);
+    }
+
+    private static int bucket(final long latencyMs) {
+        if (latencyMs <= 1) {
+            return 0;
+        }
+        return Math.min(NB_BUCKETS - 1, (int) Math.ceil(Math.log(latencyMs) / Math.log(BUCKET_GROWTH)));
+    }
+
+    private static long upperBoundMs(final int bucket) {
+        return (long) Math.ceil(Math.pow(BUCKET_GROWTH, bucket));
+    }
+}
@@ -0,0 +1,111 @@
+/*
+ * Copyright 2017 Groupon, Inc
+ * Copyright 2017 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.util.http;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.jboss.netty.channel.Channel;
+import org.jboss.netty.channel.ChannelFuture;
+import org.jboss.netty.channel.ChannelFutureListener;
+
+import com.ning.http.client.providers.netty.channel.pool.ChannelPool;
+import com.ning.http.client.providers.netty.channel.pool.ChannelPoolPartitionSelector;
+
+// Keeps track of the idle connections of the delegate, per partition
+class MetricsChannelPool implements ChannelPool {
+
+    private final ChannelPool delegate;
+    private final HttpClientPoolMetrics metrics;
+    // Idle channels, and their partition
+    private final Map<Channel, Object> idleChannels = new ConcurrentHashMap<Channel, Object>();
+
+    private final ChannelFutureListener closeListener = new ChannelFutureListener() {
+        @Override
+        public void operationComplete(final ChannelFuture future) {
+            // e.g. closed by the idle channel detector of the delegate
+            markNotIdle(future.getChannel());
+        }
+    };
+
+    MetricsChannelPool(final ChannelPool delegate, final HttpClientPoolMetrics metrics) {
+        this.delegate = delegate;
+        this.metrics = metrics;
+    }
+
+    @Override
+    public boolean offer(final Channel channel, final Object partitionKey) {
+        if (!delegate.offer(channel, partitionKey)) {
+            return false;
+        }
+
+        if (idleChannels.put(channel, partitionKey) == null) {
+            metrics.hostMetrics(partitionKey).idleConnections.incrementAndGet();
+        }
+        // Listeners are notified right away if already closed
+        channel.getCloseFuture().addListener(closeListener);
+        return true;
+    }
+
+    @Override
+    public Channel poll(final Object partitionKey) {
+        final Channel channel = delegate.poll(partitionKey);
+        if (channel != null) {
+            channel.getCloseFuture().removeListener(closeListener);
+            markNotIdle(channel);
+        }
+        return channel;
+    }
+
+    @Override
+    public boolean removeAll(final Channel channel) {
+        markNotIdle(channel);
+        return delegate.removeAll(channel);
+    }
+
+    @Override
+    public boolean isOpen() {
+        return delegate.isOpen();
+    }
+
+    @Override
+    public void destroy() {
+        delegate.destroy();
+        for (final Channel channel : idleChannels.keySet()) {
+            markNotIdle(channel);
+        }
+    }
+
+    @Override
+    public void flushPartition(final Object partitionKey) {
+        // Channels are closed, which updates the metrics
+        delegate.flushPartition(partitionKey);
+    }
+
+    @Override
+    public void flushPartitions(final ChannelPoolPartitionSelector selector) {
+        delegate.flushPartitions(selector);
+    }
+
+    private void markNotIdle(final Channel channel) {
+        final Object partitionKey = idleChannels.remove(channel);
+        if (partitionKey != null) {
+            metrics.hostMetrics(partitionKey).idleConnections.decrementAndGet();
+        }
+    }
+}
@@ -0,0 +1,46 @@
+/*
+ * Copyright 2017 Groupon, Inc
+ * Copyright 2017 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.util.http;
+
+import com.ning.http.client.AsyncHttpClient;
+import com.ning.http.client.Request;
+
+/**
+ * Prototype of requests sharing the same verb, URL, static headers, authentication and proxy.
+ *
+ * @see HttpClient#newRequestTemplate(String, String, java.util.Map)
+ */
+public class RequestTemplate {
+
+    private final AsyncHttpClient httpClient;
+    private final Request prototype;
+
+    RequestTemplate(final AsyncHttpClient httpClient, final Request prototype) {
+        this.httpClient = httpClient;
+        this.prototype = prototype;
+    }
+
+    // New builder, with the template settings, to add the dynamic parts to (query parameters, body, etc.)
+    public AsyncHttpClient.BoundRequestBuilder prepare() {
+        return httpClient.prepareRequest(prototype);
+    }
+
+    public Request getPrototype() {
+        return prototype;
+    }
+}
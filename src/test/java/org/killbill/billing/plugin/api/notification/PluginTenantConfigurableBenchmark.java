@@ -0,0 +1,101 @@
+/*
+ * Copyright 2014-2017 Groupon, Inc
+ * Copyright 2014-2017 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.api.notification;
+
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Per-tenant lookups from concurrent payment calls, keyed by the UUID (get, acquire) and by its String form (as
+ * PluginTenantConfigurable used to do, one String allocated per lookup). Run with -prof gc to compare allocation rates.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Threads(8)
+@Fork(1)
+public class PluginTenantConfigurableBenchmark {
+
+    @Param({"10", "1000"})
+    public int nbTenants;
+
+    private final PluginTenantConfigurable<Object> pluginTenantConfigurable = new PluginTenantConfigurable<Object>(new Object());
+    private final Map<String, Object> perTenantConfigurableByString = new ConcurrentHashMap<String, Object>();
+
+    private UUID[] kbTenantIds;
+
+    @Setup
+    public void setUp() {
+        kbTenantIds = new UUID[nbTenants];
+        for (int i = 0; i < nbTenants; i++) {
+            kbTenantIds[i] = UUID.randomUUID();
+            final Object configurable = new Object();
+            pluginTenantConfigurable.put(kbTenantIds[i], configurable);
+            perTenantConfigurableByString.put(kbTenantIds[i].toString(), configurable);
+        }
+    }
+
+    @Benchmark
+    public Object get() {
+        return pluginTenantConfigurable.get(nextTenantId());
+    }
+
+    @Benchmark
+    public Object acquire() {
+        try (final PluginTenantConfigurable.Lease<Object> lease = pluginTenantConfigurable.acquire(nextTenantId())) {
+            return lease.get();
+        }
+    }
+
+    @Benchmark
+    public Object getByString() {
+        return perTenantConfigurableByString.get(nextTenantId().toString());
+    }
+
+    private UUID nextTenantId() {
+        return kbTenantIds[ThreadLocalRandom.current().nextInt(nbTenants)];
+    }
+
+    public static void main(final String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder().include(PluginTenantConfigurableBenchmark.class.getSimpleName())
+                                       .addProfiler(GCProfiler.class)
+                                       .build()).run();
+    }
+}
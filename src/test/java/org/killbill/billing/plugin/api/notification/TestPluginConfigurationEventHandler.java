@@ -0,0 +1,227 @@
+/*
+ * Copyright 2014-2017 Groupon, Inc
+ * Copyright 2014-2017 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.api.notification;
+
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.annotation.Nullable;
+
+import org.killbill.billing.account.api.Account;
+import org.killbill.billing.catalog.api.Currency;
+import org.killbill.billing.notification.plugin.api.ExtBusEvent;
+import org.killbill.billing.notification.plugin.api.ExtBusEventType;
+import org.killbill.billing.osgi.libs.killbill.OSGIKillbillAPI;
+import org.killbill.billing.osgi.libs.killbill.OSGIKillbillLogService;
+import org.killbill.billing.plugin.TestUtils;
+import org.mockito.Mockito;
+import org.osgi.service.log.LogService;
+import org.testng.Assert;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+public class TestPluginConfigurationEventHandler {
+
+    private CountingConfigurationHandler configurationHandler;
+    private PluginConfigurationEventHandler eventHandler;
+
+    @BeforeMethod(groups = "fast")
+    public void setUp() throws Exception {
+        final Account account = TestUtils.buildAccount(Currency.BTC, "US");
+        final OSGIKillbillAPI killbillAPI = TestUtils.buildOSGIKillbillAPI(account);
+        configurationHandler = new CountingConfigurationHandler(killbillAPI);
+        eventHandler = new PluginConfigurationEventHandler(configurationHandler);
+    }
+
+    @Test(groups = "fast")
+    public void testSynchronousReconfiguration() throws Exception {
+        final UUID kbTenantId = UUID.randomUUID();
+        eventHandler.handleKillbillEvent(buildEvent(ExtBusEventType.TENANT_CONFIG_CHANGE, "PLUGIN_CONFIG_test", kbTenantId));
+        eventHandler.handleKillbillEvent(buildEvent(ExtBusEventType.TENANT_CONFIG_CHANGE, "PLUGIN_CONFIG_other", kbTenantId));
+        eventHandler.handleKillbillEvent(buildEvent(ExtBusEventType.ACCOUNT_CHANGE, "PLUGIN_CONFIG_test", kbTenantId));
+
+        Assert.assertEquals(configurationHandler.getNbConfigurations(kbTenantId), 1);
+        Assert.assertEquals(eventHandler.getNbReconfigurations(), 2);
+    }
+
+    @Test(groups = "fast")
+    public void testBackgroundReconfiguration() throws Exception {
+        eventHandler.enableBackgroundReconfiguration(2, 1, TimeUnit.HOURS);
+
+        final UUID kbTenantIdA = UUID.randomUUID();
+        final UUID kbTenantIdB = UUID.randomUUID();
+        for (int i = 0; i < 10; i++) {
+            eventHandler.handleKillbillEvent(buildEvent(ExtBusEventType.TENANT_CONFIG_CHANGE, "PLUGIN_CONFIG_test", kbTenantIdA));
+        }
+        eventHandler.handleKillbillEvent(buildEvent(ExtBusEventType.TENANT_CONFIG_DELETION, "PLUGIN_CONFIG_test", kbTenantIdB));
+
+        // Nothing done on the bus thread
+        Assert.assertEquals(configurationHandler.getNbConfigurations(kbTenantIdA), 0);
+        Assert.assertEquals(configurationHandler.getNbConfigurations(kbTenantIdB), 0);
+        Assert.assertEquals(eventHandler.getNbPendingReconfigurations(), 2);
+        Assert.assertEquals(eventHandler.getNbCoalescedEvents(), 9);
+
+        // Pending reconfigurations are flushed on close
+        eventHandler.close();
+        Assert.assertEquals(configurationHandler.getNbConfigurations(kbTenantIdA), 1);
+        Assert.assertEquals(configurationHandler.getNbConfigurations(kbTenantIdB), 1);
+        Assert.assertEquals(eventHandler.getNbPendingReconfigurations(), 0);
+        Assert.assertEquals(eventHandler.getNbReconfigurations(), 2);
+
+        // Back to synchronous reconfigurations
+        eventHandler.handleKillbillEvent(buildEvent(ExtBusEventType.TENANT_CONFIG_CHANGE, "PLUGIN_CONFIG_test", kbTenantIdA));
+        Assert.assertEquals(configurationHandler.getNbConfigurations(kbTenantIdA), 2);
+    }
+
+    @Test(groups = "fast")
+    public void testBackgroundReconfigurationIsSerializedPerKey() throws Exception {
+        final BlockingConfigurationHandler blockingHandler = new BlockingConfigurationHandler(TestUtils.buildOSGIKillbillAPI(TestUtils.buildAccount(Currency.BTC, "US")));
+        final PluginConfigurationEventHandler blockingEventHandler = new PluginConfigurationEventHandler(blockingHandler);
+        blockingEventHandler.enableBackgroundReconfiguration(4, 0, TimeUnit.MILLISECONDS);
+
+        final UUID kbTenantId = UUID.randomUUID();
+        blockingEventHandler.handleKillbillEvent(buildEvent(ExtBusEventType.TENANT_CONFIG_CHANGE, "PLUGIN_CONFIG_test", kbTenantId));
+        Assert.assertTrue(blockingHandler.started.await(10, TimeUnit.SECONDS));
+
+        // Received while the first reconfiguration runs: a single re-run, on the same thread
+        blockingEventHandler.handleKillbillEvent(buildEvent(ExtBusEventType.TENANT_CONFIG_CHANGE, "PLUGIN_CONFIG_test", kbTenantId));
+        blockingEventHandler.handleKillbillEvent(buildEvent(ExtBusEventType.TENANT_CONFIG_CHANGE, "PLUGIN_CONFIG_test", kbTenantId));
+        Assert.assertEquals(blockingEventHandler.getNbPendingReconfigurations(), 1);
+        Assert.assertEquals(blockingEventHandler.getNbCoalescedEvents(), 1);
+
+        blockingHandler.release.countDown();
+        blockingEventHandler.close();
+        Assert.assertEquals(blockingHandler.nbConfigurations.get(), 2);
+        Assert.assertEquals(blockingHandler.maxConcurrentConfigurations.get(), 1);
+        Assert.assertEquals(blockingEventHandler.getNbPendingReconfigurations(), 0);
+    }
+
+    @Test(groups = "fast")
+    public void testFailingReconfiguration() throws Exception {
+        final OSGIKillbillLogService logService = TestUtils.buildLogService();
+        final FailingConfigurationHandler failingHandler = new FailingConfigurationHandler(TestUtils.buildOSGIKillbillAPI(TestUtils.buildAccount(Currency.BTC, "US")), logService);
+        final PluginConfigurationEventHandler failingEventHandler = new PluginConfigurationEventHandler(failingHandler, configurationHandler);
+
+        // Logged, and the other handlers are still reconfigured
+        final UUID kbTenantId = UUID.randomUUID();
+        failingEventHandler.handleKillbillEvent(buildEvent(ExtBusEventType.TENANT_CONFIG_CHANGE, "PLUGIN_CONFIG_test", kbTenantId));
+        Assert.assertEquals(configurationHandler.getNbConfigurations(kbTenantId), 1);
+        Mockito.verify(logService).log(Mockito.eq(LogService.LOG_WARNING), Mockito.startsWith("Reconfiguration failed for key PLUGIN_CONFIG_test"), Mockito.any(IllegalStateException.class));
+
+        failingEventHandler.enableBackgroundReconfiguration(1, 0, TimeUnit.MILLISECONDS);
+        for (int i = 0; i < 3; i++) {
+            failingEventHandler.handleKillbillEvent(buildEvent(ExtBusEventType.TENANT_CONFIG_CHANGE, "PLUGIN_CONFIG_test", kbTenantId));
+            // Not left pending: later events aren't dropped
+            awaitNoPendingReconfigurations(failingEventHandler);
+            Assert.assertEquals(configurationHandler.getNbConfigurations(kbTenantId), i + 2);
+        }
+
+        // Errors too
+        failingHandler.error = true;
+        failingEventHandler.handleKillbillEvent(buildEvent(ExtBusEventType.TENANT_CONFIG_CHANGE, "PLUGIN_CONFIG_test", kbTenantId));
+        awaitNoPendingReconfigurations(failingEventHandler);
+
+        failingHandler.error = false;
+        failingEventHandler.handleKillbillEvent(buildEvent(ExtBusEventType.TENANT_CONFIG_CHANGE, "PLUGIN_CONFIG_test", kbTenantId));
+        failingEventHandler.close();
+        Assert.assertEquals(configurationHandler.getNbConfigurations(kbTenantId), 5);
+    }
+
+    private void awaitNoPendingReconfigurations(final PluginConfigurationEventHandler eventHandler) throws InterruptedException {
+        final long deadline = System.currentTimeMillis() + 10000;
+        while (eventHandler.getNbPendingReconfigurations() > 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        Assert.assertEquals(eventHandler.getNbPendingReconfigurations(), 0);
+    }
+
+    private ExtBusEvent buildEvent(final ExtBusEventType eventType, final String metaData, final UUID kbTenantId) {
+        final ExtBusEvent event = Mockito.mock(ExtBusEvent.class);
+        Mockito.when(event.getEventType()).thenReturn(eventType);
+        Mockito.when(event.getMetaData()).thenReturn(metaData);
+        Mockito.when(event.getTenantId()).thenReturn(kbTenantId);
+        return event;
+    }
+
+    private static final class BlockingConfigurationHandler extends PluginConfigurationHandler {
+
+        private final CountDownLatch started = new CountDownLatch(1);
+        private final CountDownLatch release = new CountDownLatch(1);
+        private final AtomicInteger nbConcurrentConfigurations = new AtomicInteger();
+        private final AtomicInteger maxConcurrentConfigurations = new AtomicInteger();
+        private final AtomicInteger nbConfigurations = new AtomicInteger();
+
+        public BlockingConfigurationHandler(final OSGIKillbillAPI osgiKillbillAPI) {
+            super("test", osgiKillbillAPI, TestUtils.buildLogService());
+        }
+
+        @Override
+        protected void configure(@Nullable final UUID kbTenantId) {
+            maxConcurrentConfigurations.accumulateAndGet(nbConcurrentConfigurations.incrementAndGet(), Math::max);
+            try {
+                started.countDown();
+                release.await();
+                nbConfigurations.incrementAndGet();
+            } catch (final InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } finally {
+                nbConcurrentConfigurations.decrementAndGet();
+            }
+        }
+    }
+
+    private static final class FailingConfigurationHandler extends PluginConfigurationHandler {
+
+        private volatile boolean error;
+
+        public FailingConfigurationHandler(final OSGIKillbillAPI osgiKillbillAPI, final OSGIKillbillLogService osgiKillbillLogService) {
+            super("test", osgiKillbillAPI, osgiKillbillLogService);
+        }
+
+        @Override
+        protected void configure(@Nullable final UUID kbTenantId) {
+            if (error) {
+                throw new AssertionError("Invalid configuration");
+            }
+            throw new IllegalStateException("Invalid configuration");
+        }
+    }
+
+    private static final class CountingConfigurationHandler extends PluginConfigurationHandler {
+
+        private final ConcurrentMap<UUID, AtomicInteger> nbConfigurations = new ConcurrentHashMap<UUID, AtomicInteger>();
+
+        public CountingConfigurationHandler(final OSGIKillbillAPI osgiKillbillAPI) {
+            super("test", osgiKillbillAPI, TestUtils.buildLogService());
+        }
+
+        @Override
+        protected void configure(@Nullable final UUID kbTenantId) {
+            nbConfigurations.computeIfAbsent(kbTenantId, k -> new AtomicInteger()).incrementAndGet();
+        }
+
+        int getNbConfigurations(final UUID kbTenantId) {
+            final AtomicInteger counter = nbConfigurations.get(kbTenantId);
+            return counter == null ? 0 : counter.get();
+        }
+    }
+}
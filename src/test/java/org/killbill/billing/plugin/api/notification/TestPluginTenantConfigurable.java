@@ -20,6 +20,7 @@ package org.killbill.billing.plugin.api.notification;
 import java.io.Closeable;
 import java.io.IOException;
 import java.util.UUID;
+import java.util.concurrent.TimeUnit;
 
 import org.testng.Assert;
 import org.testng.annotations.Test;
@@ -46,6 +47,12 @@ public class TestPluginTenantConfigurable {
         testTenantConfigurable.put(kbTenantIdA, "A");
         Assert.assertEquals(testTenantConfigurable.get(kbTenantIdA), "A");
         Assert.assertEquals(testTenantConfigurable.get(kbTenantIdB), "B");
+
+        // Configure the mono-tenant case
+        Assert.assertEquals(testTenantConfigurable.get(null), defaultString);
+        testTenantConfigurable.put(null, "MONO");
+        Assert.assertEquals(testTenantConfigurable.get(null), "MONO");
+        Assert.assertEquals(testTenantConfigurable.get(kbTenantIdA), "A");
     }
 
     @Test(groups = "fast")
@@ -55,6 +62,8 @@ public class TestPluginTenantConfigurable {
 
         final CloseableTest defaultCloseableTest = new CloseableTest();
         final PluginTenantConfigurable<CloseableTest> testTenantConfigurable = new PluginTenantConfigurable<CloseableTest>(defaultCloseableTest);
+        // Close replaced configurables right away
+        testTenantConfigurable.configureRetirementGracePeriod(0, TimeUnit.MILLISECONDS);
 
         testTenantConfigurable.put(kbTenantIdA, null);
         Assert.assertFalse(defaultCloseableTest.isClosed());
@@ -90,9 +99,74 @@ public class TestPluginTenantConfigurable {
         Assert.assertFalse(closeableTestB.isClosed());
     }
 
+    @Test(groups = "fast")
+    public void testLease() throws Exception {
+        final UUID kbTenantId = UUID.randomUUID();
+
+        final CloseableTest defaultCloseableTest = new CloseableTest();
+        final PluginTenantConfigurable<CloseableTest> testTenantConfigurable = new PluginTenantConfigurable<CloseableTest>(defaultCloseableTest);
+        testTenantConfigurable.configureRetirementGracePeriod(0, TimeUnit.MILLISECONDS);
+
+        final PluginTenantConfigurable.Lease<CloseableTest> defaultLease = testTenantConfigurable.acquire(kbTenantId);
+        Assert.assertSame(defaultLease.get(), defaultCloseableTest);
+        Assert.assertEquals(defaultLease.getVersion(), 0);
+        defaultLease.close();
+
+        final CloseableTest closeableTest1 = new CloseableTest();
+        testTenantConfigurable.put(kbTenantId, closeableTest1);
+        final PluginTenantConfigurable.Lease<CloseableTest> lease1 = testTenantConfigurable.acquire(kbTenantId);
+        final PluginTenantConfigurable.Lease<CloseableTest> otherLease1 = testTenantConfigurable.acquire(kbTenantId);
+        Assert.assertSame(lease1.get(), closeableTest1);
+
+        // Reconfiguration: new callers get the new configurable, the old one is still usable
+        final CloseableTest closeableTest2 = new CloseableTest();
+        testTenantConfigurable.put(kbTenantId, closeableTest2);
+        final PluginTenantConfigurable.Lease<CloseableTest> lease2 = testTenantConfigurable.acquire(kbTenantId);
+        Assert.assertSame(lease2.get(), closeableTest2);
+        Assert.assertTrue(lease2.getVersion() > lease1.getVersion());
+        Assert.assertSame(testTenantConfigurable.get(kbTenantId), closeableTest2);
+        Assert.assertFalse(closeableTest1.isClosed());
+
+        lease1.close();
+        // Releasing twice is a no-op
+        lease1.close();
+        Assert.assertFalse(closeableTest1.isClosed());
+        otherLease1.close();
+        Assert.assertTrue(closeableTest1.isClosed());
+
+        // The current configurable is never closed by its leases
+        lease2.close();
+        Assert.assertFalse(closeableTest2.isClosed());
+        testTenantConfigurable.put(kbTenantId, null);
+        Assert.assertTrue(closeableTest2.isClosed());
+        Assert.assertFalse(defaultCloseableTest.isClosed());
+    }
+
+    @Test(groups = "fast")
+    public void testRetirementGracePeriod() throws Exception {
+        final UUID kbTenantId = UUID.randomUUID();
+
+        final PluginTenantConfigurable<CloseableTest> testTenantConfigurable = new PluginTenantConfigurable<CloseableTest>(new CloseableTest());
+        testTenantConfigurable.configureRetirementGracePeriod(100, TimeUnit.MILLISECONDS);
+
+        final CloseableTest closeableTest1 = new CloseableTest();
+        testTenantConfigurable.put(kbTenantId, closeableTest1);
+        // Obtained without a lease, still in use
+        final CloseableTest inFlight = testTenantConfigurable.get(kbTenantId);
+
+        testTenantConfigurable.put(kbTenantId, new CloseableTest());
+        Assert.assertFalse(inFlight.isClosed());
+
+        final long deadline = System.currentTimeMillis() + 10000;
+        while (!closeableTest1.isClosed() && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        Assert.assertTrue(closeableTest1.isClosed());
+    }
+
     private static final class CloseableTest implements Closeable {
 
-        private boolean isClosed = false;
+        private volatile boolean isClosed = false;
 
         public boolean isClosed() {
             return isClosed;
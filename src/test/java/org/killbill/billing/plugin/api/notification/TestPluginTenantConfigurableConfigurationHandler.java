@@ -20,18 +20,24 @@ package org.killbill.billing.plugin.api.notification;
 import java.util.List;
 import java.util.Properties;
 import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.killbill.billing.account.api.Account;
 import org.killbill.billing.catalog.api.Currency;
 import org.killbill.billing.osgi.libs.killbill.OSGIKillbillAPI;
 import org.killbill.billing.osgi.libs.killbill.OSGIKillbillLogService;
 import org.killbill.billing.plugin.TestUtils;
+import org.killbill.billing.plugin.service.Healthcheck.HealthStatus;
 import org.killbill.billing.tenant.api.TenantApiException;
 import org.killbill.billing.tenant.api.TenantUserApi;
 import org.killbill.billing.util.callcontext.TenantContext;
 import org.mockito.Mockito;
 import org.mockito.invocation.InvocationOnMock;
 import org.mockito.stubbing.Answer;
+import org.osgi.service.log.LogService;
 import org.testng.Assert;
 import org.testng.annotations.BeforeMethod;
 import org.testng.annotations.Test;
@@ -41,6 +47,7 @@ import com.google.common.collect.ImmutableList;
 public class TestPluginTenantConfigurableConfigurationHandler {
 
     private TenantUserApi tenantUserApi;
+    private OSGIKillbillLogService logService;
     private PluginTenantConfigurableConfigurationHandlerTest configurationHandler;
 
     @BeforeMethod(groups = "fast")
@@ -50,7 +57,7 @@ public class TestPluginTenantConfigurableConfigurationHandler {
         final Account account = TestUtils.buildAccount(Currency.BTC, "US");
         final OSGIKillbillAPI killbillAPI = TestUtils.buildOSGIKillbillAPI(account);
         Mockito.when(killbillAPI.getTenantUserApi()).thenReturn(tenantUserApi);
-        final OSGIKillbillLogService logService = TestUtils.buildLogService();
+        logService = TestUtils.buildLogService();
 
         configurationHandler = new PluginTenantConfigurableConfigurationHandlerTest("test", killbillAPI, logService);
         configurationHandler.setDefaultConfigurable("DEFAULT");
@@ -81,6 +88,138 @@ public class TestPluginTenantConfigurableConfigurationHandler {
         Assert.assertEquals(configurationHandler.getConfigurable(null), "DEFAULT");
     }
 
+    @Test(groups = "fast")
+    public void testConcurrentInitialConfiguration() throws Exception {
+        final UUID slowTenant = UUID.randomUUID();
+        final UUID fastTenant = UUID.randomUUID();
+        final CountDownLatch slowTenantStarted = new CountDownLatch(1);
+        final CountDownLatch slowTenantBlocker = new CountDownLatch(1);
+        Mockito.when(tenantUserApi.getTenantValuesForKey(Mockito.anyString(), Mockito.<TenantContext>any())).thenAnswer(new Answer<List<String>>() {
+            @Override
+            public List<String> answer(final InvocationOnMock invocation) throws Throwable {
+                final TenantContext context = (TenantContext) invocation.getArguments()[1];
+                if (slowTenant.equals(context.getTenantId())) {
+                    slowTenantStarted.countDown();
+                    slowTenantBlocker.await();
+                    return ImmutableList.<String>of("key=SLOW_TENANT");
+                } else {
+                    return ImmutableList.<String>of("key=FAST_TENANT");
+                }
+            }
+        });
+
+        final CompletableFuture<String> slowConfigurable = CompletableFuture.supplyAsync(() -> configurationHandler.getConfigurable(slowTenant));
+        Assert.assertTrue(slowTenantStarted.await(10, TimeUnit.SECONDS));
+
+        // Not blocked by the slow tenant
+        Assert.assertEquals(configurationHandler.getConfigurable(fastTenant), "FAST_TENANT");
+        Assert.assertFalse(slowConfigurable.isDone());
+
+        slowTenantBlocker.countDown();
+        Assert.assertEquals(slowConfigurable.get(10, TimeUnit.SECONDS), "SLOW_TENANT");
+        Assert.assertEquals(configurationHandler.getConfigurable(slowTenant), "SLOW_TENANT");
+        // Configured once
+        Mockito.verify(tenantUserApi, Mockito.times(2)).getTenantValuesForKey(Mockito.anyString(), Mockito.<TenantContext>any());
+    }
+
+    @Test(groups = "fast")
+    public void testUnchangedConfiguration() throws Exception {
+        final UUID kbTenantId = UUID.randomUUID();
+        mockTenantKvs(kbTenantId, ImmutableList.<String>of("key=V1"), UUID.randomUUID(), ImmutableList.<String>of());
+
+        Assert.assertEquals(configurationHandler.getConfigurable(kbTenantId), "V1");
+        Assert.assertEquals(configurationHandler.getNbCreatedConfigurables(), 1);
+
+        // Same content: not parsed again
+        configurationHandler.configure(kbTenantId);
+        Assert.assertEquals(configurationHandler.getConfigurable(kbTenantId), "V1");
+        Assert.assertEquals(configurationHandler.getNbCreatedConfigurables(), 1);
+
+        mockTenantKvs(kbTenantId, ImmutableList.<String>of("key=V2"), UUID.randomUUID(), ImmutableList.<String>of());
+        configurationHandler.configure(kbTenantId);
+        Assert.assertEquals(configurationHandler.getConfigurable(kbTenantId), "V2");
+        Assert.assertEquals(configurationHandler.getNbCreatedConfigurables(), 2);
+
+        // Tenants no longer tracked are simply parsed again
+        configurationHandler.configureConfigurationHashes(0);
+        configurationHandler.configure(kbTenantId);
+        Assert.assertEquals(configurationHandler.getConfigurable(kbTenantId), "V2");
+        Assert.assertEquals(configurationHandler.getNbCreatedConfigurables(), 3);
+    }
+
+    @Test(groups = "fast")
+    public void testWarmUp() throws Exception {
+        final UUID configuredTenant = UUID.randomUUID();
+        final UUID otherTenant = UUID.randomUUID();
+        mockTenantKvs(configuredTenant, ImmutableList.<String>of("key=CONFIGURED_TENANT"), otherTenant, ImmutableList.<String>of("key=OTHER_CONFIGURED_TENANT"));
+
+        final PluginConfigurationWarmUp warmUp = configurationHandler.warmUp(ImmutableList.<UUID>of(configuredTenant, otherTenant, UUID.randomUUID()), 2, 1, TimeUnit.MINUTES);
+        Assert.assertTrue(warmUp.awaitCompletion(10, TimeUnit.SECONDS));
+        Assert.assertTrue(warmUp.getHealthStatus(null, null).isHealthy());
+        Assert.assertEquals(warmUp.getNbConfigured(), 3);
+        Assert.assertEquals(warmUp.getNbFailed(), 0);
+        Assert.assertFalse(warmUp.isTimedOut());
+        Assert.assertEquals(configurationHandler.getNbCreatedConfigurables(), 2);
+
+        // Already configured
+        Assert.assertEquals(configurationHandler.getConfigurable(configuredTenant), "CONFIGURED_TENANT");
+        Assert.assertEquals(configurationHandler.getConfigurable(otherTenant), "OTHER_CONFIGURED_TENANT");
+        Assert.assertEquals(configurationHandler.getNbCreatedConfigurables(), 2);
+
+        // No time left: tenants are configured on first use
+        final PluginConfigurationWarmUp expiredWarmUp = configurationHandler.warmUp(ImmutableList.<UUID>of(UUID.randomUUID()), 1, 0, TimeUnit.MILLISECONDS);
+        Assert.assertTrue(expiredWarmUp.awaitCompletion(10, TimeUnit.SECONDS));
+        Assert.assertTrue(expiredWarmUp.isTimedOut());
+        Assert.assertEquals(expiredWarmUp.getNbConfigured(), 0);
+        Assert.assertEquals(expiredWarmUp.getHealthStatus(null, null).getDetails().get("message"), "Configuration warm-up timed out");
+    }
+
+    @Test(groups = "fast")
+    public void testWarmUpWithFailedTenant() throws Exception {
+        final UUID failingTenant = UUID.randomUUID();
+        final UUID configuredTenant = UUID.randomUUID();
+        mockTenantKvs(failingTenant, ImmutableList.<String>of("key=" + PluginTenantConfigurableConfigurationHandlerTest.INVALID), configuredTenant, ImmutableList.<String>of("key=CONFIGURED_TENANT"));
+
+        final PluginConfigurationWarmUp warmUp = configurationHandler.warmUp(ImmutableList.<UUID>of(failingTenant, configuredTenant), 1, 1, TimeUnit.MINUTES);
+        Assert.assertTrue(warmUp.awaitCompletion(10, TimeUnit.SECONDS));
+        Assert.assertEquals(warmUp.getNbConfigured(), 1);
+        Assert.assertEquals(warmUp.getNbFailed(), 1);
+        Assert.assertEquals(warmUp.getFailedTenantIds(), ImmutableList.<UUID>of(failingTenant));
+        Mockito.verify(logService).log(Mockito.eq(LogService.LOG_WARNING), Mockito.contains(failingTenant.toString()), Mockito.any(IllegalArgumentException.class));
+
+        final HealthStatus healthStatus = warmUp.getHealthStatus(null, null);
+        Assert.assertTrue(healthStatus.isHealthy());
+        Assert.assertEquals(healthStatus.getDetails().get("failedTenantIds"), ImmutableList.<UUID>of(failingTenant));
+        Assert.assertEquals(healthStatus.getDetails().get("lastError"), "java.lang.IllegalArgumentException: Invalid configuration");
+    }
+
+    @Test(groups = "fast")
+    public void testWarmUpWithBlockedTenant() throws Exception {
+        final UUID blockedTenant = UUID.randomUUID();
+        final CountDownLatch release = new CountDownLatch(1);
+        Mockito.when(tenantUserApi.getTenantValuesForKey(Mockito.anyString(), Mockito.<TenantContext>any())).thenAnswer(new Answer<List<String>>() {
+            @Override
+            public List<String> answer(final InvocationOnMock invocation) throws Throwable {
+                release.await();
+                return ImmutableList.<String>of("key=BLOCKED_TENANT");
+            }
+        });
+
+        final PluginConfigurationWarmUp warmUp = configurationHandler.warmUp(ImmutableList.<UUID>of(blockedTenant), 1, 100, TimeUnit.MILLISECONDS);
+        Assert.assertFalse(warmUp.awaitCompletion(500, TimeUnit.MILLISECONDS));
+
+        // Past the time budget, the hung configuration doesn't hold the plugin unhealthy
+        Assert.assertFalse(warmUp.isDone());
+        Assert.assertTrue(warmUp.isTimedOut());
+        Assert.assertTrue(warmUp.getHealthStatus(null, null).isHealthy());
+        Assert.assertEquals(warmUp.getHealthStatus(null, null).getDetails().get("message"), "Configuration warm-up incomplete");
+
+        release.countDown();
+        Assert.assertTrue(warmUp.awaitCompletion(10, TimeUnit.SECONDS));
+        Assert.assertEquals(warmUp.getNbConfigured(), 1);
+        Assert.assertEquals(configurationHandler.getConfigurable(blockedTenant), "BLOCKED_TENANT");
+    }
+
     private void mockTenantKvs(final UUID kbTenantIdA, final List<String> tenantKvsA, final UUID kbTenantIdB, final List<String> tenantKvsB) throws TenantApiException {
         Mockito.when(tenantUserApi.getTenantValuesForKey(Mockito.anyString(), Mockito.<TenantContext>any())).thenAnswer(new Answer<List<String>>() {
             @Override
@@ -103,13 +242,25 @@ public class TestPluginTenantConfigurableConfigurationHandler {
 
     private static final class PluginTenantConfigurableConfigurationHandlerTest extends PluginTenantConfigurableConfigurationHandler<String> {
 
+        private static final String INVALID = "INVALID";
+
+        private final AtomicInteger nbCreatedConfigurables = new AtomicInteger();
+
         public PluginTenantConfigurableConfigurationHandlerTest(final String pluginName, final OSGIKillbillAPI osgiKillbillAPI, final OSGIKillbillLogService osgiKillbillLogService) {
             super(pluginName, osgiKillbillAPI, osgiKillbillLogService);
         }
 
         @Override
         protected String createConfigurable(final Properties properties) {
+            if (INVALID.equals(properties.getProperty("key"))) {
+                throw new IllegalArgumentException("Invalid configuration");
+            }
+            nbCreatedConfigurables.incrementAndGet();
             return properties.getProperty("key");
         }
+
+        int getNbCreatedConfigurables() {
+            return nbCreatedConfigurables.get();
+        }
     }
 }
@@ -0,0 +1,38 @@
+/*
+ * Copyright 2014-2017 Groupon, Inc
+ * Copyright 2014-2017 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.core.config;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+public class TestPaymentPluginTenantConfigurationHandler {
+
+    @Test(groups = "fast")
+    public void testFormatDetection() throws Exception {
+        Assert.assertTrue(PaymentPluginTenantConfigurationHandler.isProperties("org.killbill.billing.plugin.test.url=https://example.com\n"));
+        Assert.assertTrue(PaymentPluginTenantConfigurationHandler.isProperties("# Comment: test\n\norg.killbill.billing.plugin.test.key=value"));
+        // Flat key: value Properties
+        Assert.assertTrue(PaymentPluginTenantConfigurationHandler.isProperties("org.killbill.billing.plugin.test.url: https://example.com?a=b\norg.killbill.billing.plugin.test.key: value\n"));
+        Assert.assertTrue(PaymentPluginTenantConfigurationHandler.isProperties("# Comment\norg.killbill.billing.plugin.test.key:value"));
+        Assert.assertFalse(PaymentPluginTenantConfigurationHandler.isProperties("---\n# Comment\ntest:\n  url: https://example.com?a=b\n"));
+        Assert.assertFalse(PaymentPluginTenantConfigurationHandler.isProperties("test: # Comment\n  url: https://example.com\n"));
+        Assert.assertFalse(PaymentPluginTenantConfigurationHandler.isProperties("test: {}"));
+        Assert.assertFalse(PaymentPluginTenantConfigurationHandler.isProperties("test: { url: https://example.com }"));
+        Assert.assertFalse(PaymentPluginTenantConfigurationHandler.isProperties(""));
+    }
+}
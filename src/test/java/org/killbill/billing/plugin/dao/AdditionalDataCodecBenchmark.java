@@ -0,0 +1,114 @@
+/*
+ * Copyright 2014-2017 Groupon, Inc
+ * Copyright 2014-2017 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.dao;
+
+import java.nio.charset.StandardCharsets;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import javax.sql.DataSource;
+
+import org.mockito.Mockito;
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Encode and decode time of ADDITIONAL_DATA columns for each codec. The storedBytes counter is the size of the stored
+ * value (UTF-8), i.e. what lands on disk and in the buffer pool, before any InnoDB page compression.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class AdditionalDataCodecBenchmark {
+
+    @Param({"5", "30", "150"})
+    public int nbFields;
+
+    // Plain JSON (the default) or the name of a registered codec
+    @Param({"json", DeflateAdditionalDataCodec.NAME})
+    public String codec;
+
+    private PluginDao dao;
+    private Map<String, Object> additionalData;
+    private String stored;
+    private long storedBytes;
+
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    public static class StoredSize {
+
+        public long storedBytes;
+
+        @Setup(Level.Iteration)
+        public void reset() {
+            storedBytes = 0;
+        }
+    }
+
+    @Setup
+    public void setUp() throws SQLException {
+        final Connection connection = Mockito.mock(Connection.class);
+        Mockito.when(connection.getCatalog()).thenReturn("killbill");
+        final DataSource dataSource = Mockito.mock(DataSource.class);
+        Mockito.when(dataSource.getConnection()).thenReturn(connection);
+        dao = new PluginDao(dataSource);
+        if (DeflateAdditionalDataCodec.NAME.equals(codec)) {
+            dao.setAdditionalDataCodec(new DeflateAdditionalDataCodec());
+        }
+
+        additionalData = AdditionalDataSerializationBenchmark.gatewayResponse(nbFields);
+        stored = dao.asString(additionalData);
+        storedBytes = stored.getBytes(StandardCharsets.UTF_8).length;
+    }
+
+    @Benchmark
+    public String encode(final StoredSize storedSize) throws SQLException {
+        // Assigned rather than accumulated: the reported value is the size of one stored value
+        storedSize.storedBytes = storedBytes;
+        return dao.asString(additionalData);
+    }
+
+    @Benchmark
+    public Map<String, Object> decode() throws SQLException {
+        return PluginDao.fromAdditionalData(stored);
+    }
+
+    public static void main(final String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder().include(AdditionalDataCodecBenchmark.class.getSimpleName())
+                                       .build()).run();
+    }
+}
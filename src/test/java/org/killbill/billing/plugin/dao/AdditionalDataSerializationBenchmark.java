@@ -0,0 +1,128 @@
+/*
+ * Copyright 2014-2017 Groupon, Inc
+ * Copyright 2014-2017 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.dao;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import javax.sql.DataSource;
+
+import org.mockito.Mockito;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.google.common.collect.ImmutableMap;
+
+/**
+ * ADDITIONAL_DATA serialization through the shared untyped ObjectMapper (as PluginDao used to do) and through the
+ * cached typed writer (asString, and asBytes for BLOB columns), for payloads shaped like gateway responses.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class AdditionalDataSerializationBenchmark {
+
+    // Number of top-level fields: a minimal authorization, a typical card response, a verbose 3-D Secure response
+    @Param({"5", "30", "150"})
+    public int nbFields;
+
+    private PluginDao dao;
+    private Map<String, Object> additionalData;
+
+    @Setup
+    public void setUp() throws SQLException {
+        final Connection connection = Mockito.mock(Connection.class);
+        Mockito.when(connection.getCatalog()).thenReturn("killbill");
+        final DataSource dataSource = Mockito.mock(DataSource.class);
+        Mockito.when(dataSource.getConnection()).thenReturn(connection);
+        dao = new PluginDao(dataSource);
+
+        additionalData = gatewayResponse(nbFields);
+    }
+
+    // Mix of the value types found in gateway responses
+    static Map<String, Object> gatewayResponse(final int nbFields) {
+        final Map<String, Object> additionalData = new LinkedHashMap<String, Object>();
+        for (int i = 0; i < nbFields; i++) {
+            switch (i % 5) {
+                case 0:
+                    additionalData.put("pspReference" + i, "8815" + (1000000000L + i));
+                    break;
+                case 1:
+                    additionalData.put("amount" + i, 1000 + i);
+                    break;
+                case 2:
+                    additionalData.put("authCode" + i, "AB" + i);
+                    break;
+                case 3:
+                    additionalData.put("avsResult" + i, ImmutableMap.<String, Object>of("code", "Y", "message", "Address and postal code match"));
+                    break;
+                default:
+                    additionalData.put("threeDSecure" + i, i % 2 == 0);
+                    break;
+            }
+        }
+        return additionalData;
+    }
+
+    @Benchmark
+    public String writeValueAsStringUntyped() throws JsonProcessingException {
+        return PluginDao.objectMapper.writeValueAsString(additionalData);
+    }
+
+    @Benchmark
+    public String asString() throws SQLException {
+        return dao.asString(additionalData);
+    }
+
+    @Benchmark
+    public byte[] writeValueAsBytesUntyped() throws JsonProcessingException {
+        return PluginDao.objectMapper.writeValueAsBytes(additionalData);
+    }
+
+    @Benchmark
+    public byte[] asBytes() throws SQLException {
+        return dao.asBytes(additionalData);
+    }
+
+    public static void main(final String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder().include(AdditionalDataSerializationBenchmark.class.getSimpleName())
+                                       .addProfiler(GCProfiler.class)
+                                       .build()).run();
+    }
+}
@@ -0,0 +1,237 @@
+/*
+ * Copyright 2014-2017 Groupon, Inc
+ * Copyright 2014-2017 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.dao;
+
+import java.nio.charset.StandardCharsets;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Savepoint;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import javax.sql.DataSource;
+
+import org.killbill.billing.plugin.dao.PluginDao.Propagation;
+import org.killbill.billing.plugin.dao.PluginDao.TransactionCallback;
+import org.mockito.Mockito;
+import org.testng.Assert;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+
+public class TestPluginDao {
+
+    private PluginDao dao;
+
+    @BeforeMethod(groups = "fast")
+    public void setUp() throws Exception {
+        final Connection connection = Mockito.mock(Connection.class);
+        Mockito.when(connection.getCatalog()).thenReturn("killbill");
+        Mockito.when(connection.setSavepoint()).thenReturn(Mockito.mock(Savepoint.class));
+        final DataSource dataSource = Mockito.mock(DataSource.class);
+        Mockito.when(dataSource.getConnection()).thenReturn(connection);
+
+        dao = new PluginDao(dataSource);
+    }
+
+    @Test(groups = "fast")
+    public void testAdditionalDataSerialization() throws Exception {
+        Assert.assertNull(dao.asString(ImmutableMap.<String, Object>of()));
+        Assert.assertNull(dao.asBytes(null));
+
+        final Map<String, Object> additionalData = ImmutableMap.<String, Object>of("authorization", "AB12", "amount", 10, "avs", ImmutableMap.<String, Object>of("code", "Y"));
+        final String json = dao.asString(additionalData);
+        Assert.assertEquals(PluginDao.objectMapper.readValue(json, Map.class), additionalData);
+
+        // The per-thread buffer is reused across calls
+        final byte[] first = dao.asBytes(additionalData);
+        final byte[] second = dao.asBytes(ImmutableMap.<String, Object>of("authorization", "CD34"));
+        Assert.assertEquals(new String(first, StandardCharsets.UTF_8), json);
+        Assert.assertEquals(PluginDao.objectMapper.readValue(second, Map.class), ImmutableMap.<String, Object>of("authorization", "CD34"));
+    }
+
+    @Test(groups = "fast")
+    public void testAdditionalDataCodec() throws Exception {
+        final Map<String, Object> smallAdditionalData = ImmutableMap.<String, Object>of("authorization", "AB12");
+        final ImmutableMap.Builder<String, Object> largeAdditionalDataBuilder = ImmutableMap.builder();
+        for (int i = 0; i < 100; i++) {
+            largeAdditionalDataBuilder.put("key" + i, "value" + i);
+        }
+        final Map<String, Object> largeAdditionalData = largeAdditionalDataBuilder.build();
+
+        final String plainSmall = dao.asString(smallAdditionalData);
+        final String plainLarge = dao.asString(largeAdditionalData);
+
+        dao.setAdditionalDataCodec(new DeflateAdditionalDataCodec());
+        final String encodedSmall = dao.asString(smallAdditionalData);
+        final String encodedLarge = dao.asString(largeAdditionalData);
+
+        // Small values aren't worth compressing
+        Assert.assertEquals(encodedSmall, plainSmall);
+        Assert.assertTrue(encodedLarge.startsWith(DeflateAdditionalDataCodec.NAME + ":"));
+        Assert.assertTrue(encodedLarge.length() < plainLarge.length());
+
+        // Both formats are readable
+        Assert.assertEquals(PluginDao.fromAdditionalData(encodedSmall), smallAdditionalData);
+        Assert.assertEquals(PluginDao.fromAdditionalData(encodedLarge), largeAdditionalData);
+        Assert.assertEquals(PluginDao.fromAdditionalData(plainLarge), largeAdditionalData);
+        Assert.assertEquals(PluginDao.fromAdditionalData(null), ImmutableMap.<String, Object>of());
+
+        try {
+            PluginDao.fromAdditionalData("unknown:abc");
+            Assert.fail();
+        } catch (final SQLException e) {
+            Assert.assertTrue(e.getMessage().startsWith("Unknown additional data format"));
+        }
+    }
+
+    @Test(groups = "fast")
+    public void testAsyncBackPressure() throws Exception {
+        dao.configureAsyncExecutor(1, 1);
+
+        final CountDownLatch blocker = new CountDownLatch(1);
+        final CompletableFuture<String> running = dao.executeAsync(() -> {
+            blocker.await();
+            return Thread.currentThread().getName();
+        });
+        final CompletableFuture<String> queued = dao.executeAsync(() -> Thread.currentThread().getName());
+        // The queue is full: run by the caller
+        final CompletableFuture<String> throttled = dao.executeAsync(() -> Thread.currentThread().getName());
+        Assert.assertTrue(throttled.isDone());
+        Assert.assertEquals(throttled.get(), Thread.currentThread().getName());
+
+        blocker.countDown();
+        Assert.assertTrue(running.get(10, TimeUnit.SECONDS).startsWith("PluginDao-async-"));
+        Assert.assertTrue(queued.get(10, TimeUnit.SECONDS).startsWith("PluginDao-async-"));
+
+        // Closing is terminal
+        dao.close();
+        final CompletableFuture<String> afterClose = dao.executeAsync(() -> Thread.currentThread().getName());
+        try {
+            afterClose.get(10, TimeUnit.SECONDS);
+            Assert.fail();
+        } catch (final ExecutionException e) {
+            Assert.assertTrue(e.getCause() instanceof RejectedExecutionException);
+        }
+        dao.close();
+    }
+
+    @Test(groups = "fast")
+    public void testAfterCommit() throws Exception {
+        final List<String> actions = new LinkedList<String>();
+
+        // Run right away outside of a transaction scope
+        dao.afterCommit(() -> actions.add("outside"));
+        Assert.assertEquals(actions, ImmutableList.<String>of("outside"));
+        actions.clear();
+
+        dao.inTransaction(new TransactionCallback<Void>() {
+            @Override
+            public Void doInTransaction() throws SQLException {
+                dao.afterCommit(() -> actions.add("outer"));
+                // Joins the outer transaction
+                dao.inTransaction(new TransactionCallback<Void>() {
+                    @Override
+                    public Void doInTransaction() throws SQLException {
+                        dao.afterCommit(() -> actions.add("required"));
+                        return null;
+                    }
+                });
+                // Committed on its own
+                dao.inTransaction(Propagation.REQUIRES_NEW, new TransactionCallback<Void>() {
+                    @Override
+                    public Void doInTransaction() throws SQLException {
+                        dao.afterCommit(() -> actions.add("requiresNew"));
+                        return null;
+                    }
+                });
+                Assert.assertEquals(actions, ImmutableList.<String>of("requiresNew"));
+                return null;
+            }
+        });
+        Assert.assertEquals(actions, ImmutableList.<String>of("requiresNew", "outer", "required"));
+        actions.clear();
+
+        // Dropped on rollback
+        try {
+            dao.inTransaction(new TransactionCallback<Void>() {
+                @Override
+                public Void doInTransaction() throws SQLException {
+                    dao.afterCommit(() -> actions.add("rolledBack"));
+                    throw new SQLException("Rollback");
+                }
+            });
+            Assert.fail();
+        } catch (final SQLException e) {
+            Assert.assertEquals(e.getMessage(), "Rollback");
+        }
+        Assert.assertTrue(actions.isEmpty());
+    }
+
+    @Test(groups = "fast")
+    public void testReadOnlyDataSourceRouting() throws Exception {
+        final UUID kbPaymentId = UUID.randomUUID();
+        final UUID kbTenantId = UUID.randomUUID();
+        Assert.assertSame(dao.readDsl(kbPaymentId, kbTenantId), dao.dsl());
+
+        dao.enableReadOnlyDataSource(Mockito.mock(DataSource.class), 1, TimeUnit.HOURS);
+        Assert.assertNotSame(dao.readDsl(kbPaymentId, kbTenantId), dao.dsl());
+
+        // Read your writes
+        dao.recordWrite(kbPaymentId);
+        Assert.assertSame(dao.readDsl(kbPaymentId, kbTenantId), dao.dsl());
+        Assert.assertNotSame(dao.readDsl(UUID.randomUUID(), kbTenantId), dao.dsl());
+
+        dao.recordWrite(kbTenantId);
+        Assert.assertSame(dao.readDsl(UUID.randomUUID(), kbTenantId), dao.dsl());
+
+        dao.disableReadOnlyDataSource();
+        Assert.assertSame(dao.readDsl(UUID.randomUUID()), dao.dsl());
+    }
+
+    @Test(groups = "fast")
+    public void testReadOnlyDataSourceRoutingWithForgottenWrites() throws Exception {
+        dao.enableReadOnlyDataSource(Mockito.mock(DataSource.class), 1, TimeUnit.HOURS, 2);
+        dao.recordWrite(UUID.randomUUID());
+        Assert.assertNotSame(dao.readDsl(UUID.randomUUID()), dao.dsl());
+
+        // Past the bound, the oldest writes are forgotten: everything is read from the primary until the window elapses
+        for (int i = 0; i < 10; i++) {
+            dao.recordWrite(UUID.randomUUID());
+        }
+        Assert.assertSame(dao.readDsl(UUID.randomUUID()), dao.dsl());
+
+        // The replica is used again once the window elapsed
+        dao.enableReadOnlyDataSource(Mockito.mock(DataSource.class), 100, TimeUnit.MILLISECONDS, 2);
+        for (int i = 0; i < 10; i++) {
+            dao.recordWrite(UUID.randomUUID());
+        }
+        Assert.assertSame(dao.readDsl(UUID.randomUUID()), dao.dsl());
+        Thread.sleep(200);
+        Assert.assertNotSame(dao.readDsl(UUID.randomUUID()), dao.dsl());
+    }
+}
@@ -0,0 +1,133 @@
+/*
+ * Copyright 2014-2017 Groupon, Inc
+ * Copyright 2014-2017 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.dao;
+
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import org.killbill.billing.plugin.dao.PluginDaoBatchWriter.BatchCallback;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+public class TestPluginDaoBatchWriter {
+
+    @Test(groups = "fast")
+    public void testCoalescing() throws Exception {
+        final List<List<Integer>> batches = Collections.synchronizedList(new LinkedList<List<Integer>>());
+        final PluginDaoBatchWriter<Integer> batchWriter = new PluginDaoBatchWriter<Integer>("test", 10, 500, new BatchCallback<Integer>() {
+            @Override
+            public void write(final List<Integer> batch) {
+                batches.add(batch);
+            }
+        });
+
+        final List<CompletableFuture<Void>> futures = new ArrayList<CompletableFuture<Void>>();
+        for (int i = 0; i < 25; i++) {
+            futures.add(batchWriter.submit(i));
+        }
+        for (final CompletableFuture<Void> future : futures) {
+            future.get();
+        }
+        batchWriter.close();
+
+        int nbElements = 0;
+        for (final List<Integer> batch : batches) {
+            Assert.assertTrue(batch.size() <= 10);
+            nbElements += batch.size();
+        }
+        Assert.assertEquals(nbElements, 25);
+        Assert.assertTrue(batches.size() < 25);
+    }
+
+    @Test(groups = "fast")
+    public void testFailureIsolation() throws Exception {
+        final PluginDaoBatchWriter<Integer> batchWriter = new PluginDaoBatchWriter<Integer>("test", 10, 500, new BatchCallback<Integer>() {
+            @Override
+            public void write(final List<Integer> batch) throws SQLException {
+                if (batch.contains(3)) {
+                    throw new SQLException("Poison element");
+                }
+            }
+        });
+
+        final List<CompletableFuture<Void>> futures = new ArrayList<CompletableFuture<Void>>();
+        for (int i = 0; i < 5; i++) {
+            futures.add(batchWriter.submit(i));
+        }
+
+        for (int i = 0; i < 5; i++) {
+            if (i == 3) {
+                try {
+                    futures.get(i).get();
+                    Assert.fail();
+                } catch (final ExecutionException e) {
+                    Assert.assertTrue(e.getCause() instanceof SQLException);
+                }
+            } else {
+                futures.get(i).get();
+            }
+        }
+        batchWriter.close();
+    }
+
+    @Test(groups = "fast")
+    public void testErrorDoesNotStopFlusher() throws Exception {
+        final PluginDaoBatchWriter<Integer> batchWriter = new PluginDaoBatchWriter<Integer>("test", 10, 0, new BatchCallback<Integer>() {
+            @Override
+            public void write(final List<Integer> batch) {
+                if (batch.contains(1)) {
+                    throw new StackOverflowError();
+                }
+            }
+        });
+
+        try {
+            batchWriter.submit(1).get(10, TimeUnit.SECONDS);
+            Assert.fail();
+        } catch (final ExecutionException e) {
+            Assert.assertTrue(e.getCause() instanceof StackOverflowError);
+        }
+
+        // The flusher thread survived the error
+        batchWriter.submit(2).get(10, TimeUnit.SECONDS);
+        batchWriter.close();
+    }
+
+    @Test(groups = "fast")
+    public void testSubmitAfterClose() throws Exception {
+        final PluginDaoBatchWriter<Integer> batchWriter = new PluginDaoBatchWriter<Integer>("test", 10, 0, new BatchCallback<Integer>() {
+            @Override
+            public void write(final List<Integer> batch) {
+            }
+        });
+        batchWriter.close();
+
+        try {
+            batchWriter.submit(1).get();
+            Assert.fail();
+        } catch (final ExecutionException e) {
+            Assert.assertTrue(e.getCause() instanceof IllegalStateException);
+        }
+    }
+}
@@ -0,0 +1,172 @@
+/*
+ * Copyright 2014-2017 Groupon, Inc
+ * Copyright 2014-2017 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.dao.payment;
+
+import java.math.BigDecimal;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+import javax.sql.DataSource;
+
+import org.joda.time.DateTime;
+import org.joda.time.DateTimeZone;
+import org.jooq.SQLDialect;
+import org.jooq.conf.MappedSchema;
+import org.jooq.conf.RenderMapping;
+import org.jooq.conf.Settings;
+import org.jooq.impl.DSL;
+import org.killbill.billing.catalog.api.Currency;
+import org.killbill.billing.payment.api.TransactionType;
+import org.killbill.billing.plugin.TestUtils;
+import org.killbill.billing.plugin.dao.payment.gen.tables.records.TestResponsesRecord;
+import org.killbill.commons.embeddeddb.mysql.MySQLEmbeddedDB;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.common.collect.ImmutableMap;
+
+import static org.killbill.billing.plugin.dao.payment.gen.Tables.TEST_RESPONSES;
+
+/**
+ * getResponses and addResponse against an embedded MySQL, through the DAO (shared DataSource-bound DSLContext) and through
+ * a DSLContext built around each pooled connection, as PluginDao used to do. Run with -prof gc to compare allocation rates.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class PluginPaymentDaoBenchmark {
+
+    private static final int NB_RESPONSES_PER_PAYMENT = 5;
+
+    private final ObjectMapper objectMapper = new ObjectMapper();
+    private final Map<String, Object> additionalData = ImmutableMap.<String, Object>of("authorization", "AB12", "avsCode", "Y", "cvvCode", "M");
+
+    private final UUID kbAccountId = UUID.randomUUID();
+    private final UUID kbPaymentId = UUID.randomUUID();
+    private final UUID kbTenantId = UUID.randomUUID();
+
+    private MySQLEmbeddedDB embeddedDB;
+    private DataSource dataSource;
+    private TestPluginPaymentDao dao;
+    private Settings settings;
+
+    @Setup
+    public void setUp() throws Exception {
+        embeddedDB = new MySQLEmbeddedDB();
+        embeddedDB.initialize();
+        embeddedDB.start();
+        embeddedDB.executeScript(TestUtils.toString("ddl.sql"));
+        embeddedDB.refreshTableNames();
+
+        dataSource = embeddedDB.getDataSource();
+        dao = new TestPluginPaymentDao(dataSource);
+        try (final Connection connection = dataSource.getConnection()) {
+            settings = new Settings().withRenderMapping(new RenderMapping().withSchemata(new MappedSchema().withInput("killbill").withOutput(connection.getCatalog())));
+        }
+
+        for (int i = 0; i < NB_RESPONSES_PER_PAYMENT; i++) {
+            dao.addResponse(kbAccountId, kbPaymentId, UUID.randomUUID(), TransactionType.PURCHASE, BigDecimal.TEN, Currency.USD, additionalData, DateTime.now(DateTimeZone.UTC), kbTenantId);
+        }
+    }
+
+    @TearDown
+    public void tearDown() throws Exception {
+        dao.close();
+        embeddedDB.stop();
+    }
+
+    @Benchmark
+    public List<TestResponsesRecord> getResponses() throws SQLException {
+        return dao.getResponses(kbPaymentId, kbTenantId);
+    }
+
+    @Benchmark
+    public List<TestResponsesRecord> getResponsesWithPerCallContext() throws SQLException {
+        try (final Connection connection = dataSource.getConnection()) {
+            return DSL.using(connection, SQLDialect.MYSQL, settings)
+                      .selectFrom(TEST_RESPONSES)
+                      .where(TEST_RESPONSES.KB_PAYMENT_ID.equal(kbPaymentId.toString()))
+                      .and(TEST_RESPONSES.KB_TENANT_ID.equal(kbTenantId.toString()))
+                      .orderBy(TEST_RESPONSES.RECORD_ID.asc())
+                      .fetch();
+        }
+    }
+
+    @Benchmark
+    public void addResponse() throws SQLException {
+        dao.addResponse(kbAccountId, UUID.randomUUID(), UUID.randomUUID(), TransactionType.PURCHASE, BigDecimal.TEN, Currency.USD, additionalData, DateTime.now(DateTimeZone.UTC), kbTenantId);
+    }
+
+    @Benchmark
+    public int addResponseWithPerCallContext() throws SQLException {
+        try (final Connection connection = dataSource.getConnection()) {
+            return DSL.using(connection, SQLDialect.MYSQL, settings)
+                      .insertInto(TEST_RESPONSES,
+                                  TEST_RESPONSES.KB_ACCOUNT_ID,
+                                  TEST_RESPONSES.KB_PAYMENT_ID,
+                                  TEST_RESPONSES.KB_PAYMENT_TRANSACTION_ID,
+                                  TEST_RESPONSES.TRANSACTION_TYPE,
+                                  TEST_RESPONSES.AMOUNT,
+                                  TEST_RESPONSES.CURRENCY,
+                                  TEST_RESPONSES.ADDITIONAL_DATA,
+                                  TEST_RESPONSES.CREATED_DATE,
+                                  TEST_RESPONSES.KB_TENANT_ID)
+                      .values(kbAccountId.toString(),
+                              UUID.randomUUID().toString(),
+                              UUID.randomUUID().toString(),
+                              TransactionType.PURCHASE.toString(),
+                              BigDecimal.TEN,
+                              Currency.USD.name(),
+                              objectMapper.writeValueAsString(additionalData),
+                              new Timestamp(DateTime.now(DateTimeZone.UTC).getMillis()),
+                              kbTenantId.toString())
+                      .execute();
+        } catch (final JsonProcessingException e) {
+            throw new SQLException(e);
+        }
+    }
+
+    public static void main(final String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder().include(PluginPaymentDaoBenchmark.class.getSimpleName())
+                                       .addProfiler(GCProfiler.class)
+                                       .build()).run();
+    }
+}
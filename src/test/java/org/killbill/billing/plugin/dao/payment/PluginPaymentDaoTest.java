@@ -22,12 +22,25 @@ import java.math.BigDecimal;
 import java.sql.SQLException;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.joda.time.DateTime;
+import org.joda.time.DateTimeZone;
+import org.jooq.Record;
+import org.jooq.SQLDialect;
+import org.jooq.Table;
+import org.jooq.impl.DSL;
 import org.killbill.billing.account.api.Account;
 import org.killbill.billing.catalog.api.Currency;
 import org.killbill.billing.osgi.libs.killbill.OSGIConfigPropertiesService;
@@ -37,11 +50,17 @@ import org.killbill.billing.payment.api.Payment;
 import org.killbill.billing.payment.api.PaymentMethodPlugin;
 import org.killbill.billing.payment.api.PluginProperty;
 import org.killbill.billing.payment.api.TransactionType;
+import org.killbill.billing.payment.plugin.api.PaymentMethodInfoPlugin;
 import org.killbill.billing.payment.plugin.api.PaymentTransactionInfoPlugin;
 import org.killbill.billing.plugin.TestUtils;
 import org.killbill.billing.plugin.TestWithEmbeddedDBBase;
+import org.killbill.billing.plugin.api.PluginPagination;
 import org.killbill.billing.plugin.api.PluginProperties;
+import org.killbill.billing.plugin.api.payment.PluginPaymentMethodInfoPlugin;
 import org.killbill.billing.plugin.api.payment.PluginPaymentMethodPlugin;
+import org.killbill.billing.plugin.dao.PluginDao;
+import org.killbill.billing.plugin.dao.PluginDao.Propagation;
+import org.killbill.billing.plugin.dao.PluginDao.TransactionCallback;
 import org.killbill.billing.plugin.dao.payment.gen.tables.records.TestPaymentMethodsRecord;
 import org.killbill.billing.plugin.dao.payment.gen.tables.records.TestResponsesRecord;
 import org.killbill.billing.util.callcontext.CallContext;
@@ -52,6 +71,9 @@ import org.testng.Assert;
 import org.testng.annotations.BeforeClass;
 import org.testng.annotations.Test;
 
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+
 import static org.killbill.billing.payment.plugin.api.PaymentPluginStatus.UNDEFINED;
 import static org.killbill.billing.plugin.api.payment.PluginPaymentPluginApi.PROPERTY_ADDRESS1;
 import static org.killbill.billing.plugin.api.payment.PluginPaymentPluginApi.PROPERTY_ADDRESS2;
@@ -169,6 +191,341 @@ public class PluginPaymentDaoTest extends TestWithEmbeddedDBBase {
         }
     }
 
+    @Test(groups = "slow")
+    public void testStreamResponses() throws Exception {
+        final UUID kbAccountId = UUID.randomUUID();
+        final UUID kbPaymentId = UUID.randomUUID();
+        final UUID kbTenantId = UUID.randomUUID();
+
+        final List<UUID> kbTransactionIds = new LinkedList<UUID>();
+        for (int i = 0; i < 5; i++) {
+            final UUID kbTransactionId = UUID.randomUUID();
+            kbTransactionIds.add(kbTransactionId);
+            dao.addResponse(kbAccountId, kbPaymentId, kbTransactionId, TransactionType.CAPTURE, BigDecimal.ONE, Currency.USD, null, DateTime.now(), kbTenantId);
+        }
+
+        final AtomicInteger nbConversions = new AtomicInteger();
+        final List<UUID> convertedTransactionIds = dao.getResponses(kbPaymentId,
+                                                                    kbTenantId,
+                                                                    record -> {
+                                                                        nbConversions.incrementAndGet();
+                                                                        return UUID.fromString(record.getKbPaymentTransactionId());
+                                                                    });
+        Assert.assertEquals(convertedTransactionIds, kbTransactionIds);
+        Assert.assertEquals(nbConversions.get(), 5);
+
+        final List<UUID> callbackTransactionIds = new LinkedList<UUID>();
+        dao.streamResponses(kbPaymentId, kbTenantId, 0, record -> callbackTransactionIds.add(UUID.fromString(record.getKbPaymentTransactionId())));
+        Assert.assertEquals(callbackTransactionIds, kbTransactionIds);
+
+        // Row by row streaming (MySQL Connector/J)
+        final List<UUID> streamedTransactionIds = new LinkedList<UUID>();
+        dao.streamResponses(kbPaymentId, kbTenantId, Integer.MIN_VALUE, record -> streamedTransactionIds.add(UUID.fromString(record.getKbPaymentTransactionId())));
+        Assert.assertEquals(streamedTransactionIds, kbTransactionIds);
+    }
+
+    @Test(groups = "slow")
+    public void testTransactionScope() throws Exception {
+        final UUID kbAccountId = UUID.randomUUID();
+        final UUID kbPaymentId = UUID.randomUUID();
+        final UUID kbTenantId = UUID.randomUUID();
+
+        // Writes are visible within the scope
+        final TestResponsesRecord authorization = dao.inTransaction(new TransactionCallback<TestResponsesRecord>() {
+            @Override
+            public TestResponsesRecord doInTransaction() throws SQLException {
+                dao.addResponse(kbAccountId, kbPaymentId, UUID.randomUUID(), TransactionType.AUTHORIZE, BigDecimal.TEN, Currency.USD, null, DateTime.now(), kbTenantId);
+                return dao.getSuccessfulAuthorizationResponse(kbPaymentId, kbTenantId);
+            }
+        });
+        Assert.assertEquals(authorization.getKbPaymentId(), kbPaymentId.toString());
+        Assert.assertEquals(dao.getResponses(kbPaymentId, kbTenantId).size(), 1);
+
+        // Rollback, except for the nested REQUIRES_NEW transaction
+        try {
+            dao.inTransaction(new TransactionCallback<Void>() {
+                @Override
+                public Void doInTransaction() throws SQLException {
+                    dao.addResponse(kbAccountId, kbPaymentId, UUID.randomUUID(), TransactionType.CAPTURE, BigDecimal.TEN, Currency.USD, null, DateTime.now(), kbTenantId);
+                    dao.inTransaction(Propagation.REQUIRES_NEW, new TransactionCallback<Void>() {
+                        @Override
+                        public Void doInTransaction() throws SQLException {
+                            dao.addResponse(kbAccountId, kbPaymentId, UUID.randomUUID(), TransactionType.VOID, BigDecimal.ZERO, Currency.USD, null, DateTime.now(), kbTenantId);
+                            return null;
+                        }
+                    });
+                    throw new SQLException("Rollback");
+                }
+            });
+            Assert.fail();
+        } catch (final SQLException e) {
+            Assert.assertEquals(e.getMessage(), "Rollback");
+        }
+
+        final List<TestResponsesRecord> records = dao.getResponses(kbPaymentId, kbTenantId);
+        Assert.assertEquals(records.size(), 2);
+        Assert.assertEquals(records.get(0).getTransactionType(), TransactionType.AUTHORIZE.toString());
+        Assert.assertEquals(records.get(1).getTransactionType(), TransactionType.VOID.toString());
+    }
+
+    @Test(groups = "slow")
+    public void testAsyncResponses() throws Exception {
+        final UUID kbAccountId = UUID.randomUUID();
+        final UUID kbPaymentId = UUID.randomUUID();
+        final UUID kbTenantId = UUID.randomUUID();
+
+        final List<CompletableFuture<Void>> futures = new LinkedList<CompletableFuture<Void>>();
+        for (int i = 0; i < 10; i++) {
+            futures.add(dao.addResponseAsync(kbAccountId, kbPaymentId, UUID.randomUUID(), TransactionType.CAPTURE, BigDecimal.ONE, Currency.USD, null, DateTime.now(), kbTenantId));
+        }
+        CompletableFuture.allOf(futures.toArray(new CompletableFuture[futures.size()])).get(1, TimeUnit.MINUTES);
+
+        Assert.assertEquals(dao.getResponsesAsync(kbPaymentId, kbTenantId).get(1, TimeUnit.MINUTES).size(), 10);
+    }
+
+    @Test(groups = "slow")
+    public void testPreRenderedQueries() throws Exception {
+        final TestPluginPaymentDao preRenderingDao = new TestPluginPaymentDao(embeddedDB.getDataSource());
+        preRenderingDao.enablePreRenderedQueries();
+
+        final UUID kbAccountId = UUID.randomUUID();
+        final UUID kbPaymentId = UUID.randomUUID();
+        final UUID kbPaymentMethodId = UUID.randomUUID();
+        final UUID kbTenantId = UUID.randomUUID();
+
+        preRenderingDao.addResponse(kbAccountId, kbPaymentId, UUID.randomUUID(), TransactionType.AUTHORIZE, BigDecimal.TEN, Currency.USD, null, DateTime.now(), kbTenantId);
+        preRenderingDao.addResponse(kbAccountId, kbPaymentId, UUID.randomUUID(), TransactionType.CAPTURE, BigDecimal.TEN, Currency.USD, null, DateTime.now(), kbTenantId);
+        preRenderingDao.addPaymentMethod(kbAccountId, kbPaymentMethodId, true, ImmutableMap.<String, String>of(), DateTime.now(), kbTenantId);
+
+        final List<TestResponsesRecord> responses = preRenderingDao.getResponses(kbPaymentId, kbTenantId);
+        Assert.assertEquals(responses.size(), 2);
+        Assert.assertEquals(responses.get(0).getTransactionType(), TransactionType.AUTHORIZE.toString());
+        Assert.assertEquals(preRenderingDao.getResponses(kbPaymentId, kbTenantId, TestResponsesRecord::getTransactionType),
+                            ImmutableList.<String>of(TransactionType.AUTHORIZE.toString(), TransactionType.CAPTURE.toString()));
+        Assert.assertEquals(preRenderingDao.getSuccessfulAuthorizationResponse(kbPaymentId, kbTenantId).getTransactionType(), TransactionType.AUTHORIZE.toString());
+        Assert.assertEquals(preRenderingDao.getPaymentMethod(kbPaymentMethodId, kbTenantId).getKbAccountId(), kbAccountId.toString());
+        Assert.assertNull(preRenderingDao.getPaymentMethod(kbPaymentMethodId, UUID.randomUUID()));
+    }
+
+    @Test(groups = "slow")
+    public void testArchiveResponses() throws Exception {
+        final UUID kbAccountId = UUID.randomUUID();
+        final UUID kbPaymentId = UUID.randomUUID();
+        final UUID kbTenantId = UUID.randomUUID();
+        final DateTime now = new DateTime(DateTimeZone.UTC).withMillisOfSecond(0);
+
+        for (int i = 0; i < 5; i++) {
+            dao.addResponse(kbAccountId, kbPaymentId, UUID.randomUUID(), TransactionType.CAPTURE, BigDecimal.ONE, Currency.USD, null, now.minusYears(2), kbTenantId);
+        }
+        dao.addResponse(kbAccountId, kbPaymentId, UUID.randomUUID(), TransactionType.REFUND, BigDecimal.ONE, Currency.USD, null, now, kbTenantId);
+
+        Assert.assertEquals(dao.getResponses(kbPaymentId, now.minusYears(1), kbTenantId).size(), 1);
+        Assert.assertNull(dao.getSuccessfulAuthorizationResponse(kbPaymentId, now.minusYears(1), kbTenantId));
+
+        final Table<Record> archiveTable = DSL.table("test_responses_archive");
+        try {
+            dao.inTransaction(new TransactionCallback<Integer>() {
+                @Override
+                public Integer doInTransaction() throws SQLException {
+                    return dao.archiveResponses(archiveTable, now.minusYears(1), 2);
+                }
+            });
+            Assert.fail();
+        } catch (final IllegalStateException e) {
+            Assert.assertEquals(e.getMessage(), "Responses cannot be archived within a transaction scope");
+        }
+        Assert.assertEquals(dao.getResponses(kbPaymentId, kbTenantId).size(), 6);
+
+        Assert.assertTrue(dao.archiveResponses(archiveTable, now.minusYears(1), 2) >= 5);
+
+        final List<TestResponsesRecord> records = dao.getResponses(kbPaymentId, kbTenantId);
+        Assert.assertEquals(records.size(), 1);
+        Assert.assertEquals(records.get(0).getTransactionType(), TransactionType.REFUND.toString());
+        Assert.assertEquals(DSL.using(embeddedDB.getDataSource(), SQLDialect.MYSQL)
+                               .fetchCount(archiveTable, DSL.field("kb_payment_id").equal(kbPaymentId.toString())), 5);
+    }
+
+    @Test(groups = "slow")
+    public void testSearchResponses() throws Exception {
+        final UUID kbAccountId = UUID.randomUUID();
+        final UUID kbTenantId = UUID.randomUUID();
+
+        final List<UUID> kbTransactionIds = new LinkedList<UUID>();
+        for (int i = 0; i < 5; i++) {
+            final UUID kbTransactionId = UUID.randomUUID();
+            kbTransactionIds.add(kbTransactionId);
+            dao.addResponse(kbAccountId, UUID.randomUUID(), kbTransactionId, TransactionType.PURCHASE, BigDecimal.ONE, Currency.USD, null, DateTime.now(), kbTenantId);
+        }
+
+        // Walk the pages using the returned offsets
+        final List<UUID> searchedTransactionIds = new LinkedList<UUID>();
+        Long offset = 0L;
+        int nbPages = 0;
+        while (offset != null) {
+            final PluginPagination<TestResponsesRecord> page = dao.searchResponses(kbAccountId.toString(), offset, 2, kbTenantId);
+            Assert.assertEquals(page.getCurrentOffset(), offset);
+            Assert.assertEquals(page.getTotalNbRecords(), (Long) 5L);
+            for (final TestResponsesRecord record : page) {
+                searchedTransactionIds.add(UUID.fromString(record.getKbPaymentTransactionId()));
+            }
+            offset = page.getNextOffset();
+            nbPages++;
+        }
+        Assert.assertEquals(searchedTransactionIds, kbTransactionIds);
+        Assert.assertEquals(nbPages, 3);
+
+        // Searched columns are queried separately, then merged
+        final PluginPagination<TestResponsesRecord> transactionPage = dao.searchResponses(kbTransactionIds.get(3).toString(), 0L, 2, kbTenantId);
+        Assert.assertEquals(transactionPage.getTotalNbRecords(), (Long) 1L);
+        Assert.assertNull(transactionPage.getNextOffset());
+        Assert.assertEquals(transactionPage.iterator().next().getKbPaymentTransactionId(), kbTransactionIds.get(3).toString());
+
+        // Other tenants don't see the rows
+        Assert.assertFalse(dao.searchResponses(kbAccountId.toString(), 0L, 2, UUID.randomUUID()).iterator().hasNext());
+        Assert.assertFalse(dao.searchResponses(kbAccountId.toString(), 0L, 0, kbTenantId).iterator().hasNext());
+    }
+
+    @Test(groups = "slow")
+    public void testBatchedResponses() throws Exception {
+        final TestPluginPaymentDao batchingDao = new TestPluginPaymentDao(embeddedDB.getDataSource());
+        batchingDao.enableResponsesBatching(10, 50);
+
+        final UUID kbAccountId = UUID.randomUUID();
+        final UUID kbPaymentId = UUID.randomUUID();
+        final UUID kbTenantId = UUID.randomUUID();
+
+        final ExecutorService executor = Executors.newFixedThreadPool(8);
+        try {
+            final List<Future<Void>> futures = new LinkedList<Future<Void>>();
+            for (int i = 0; i < 50; i++) {
+                futures.add(executor.submit(new Callable<Void>() {
+                    @Override
+                    public Void call() throws Exception {
+                        batchingDao.addResponse(kbAccountId,
+                                                kbPaymentId,
+                                                UUID.randomUUID(),
+                                                TransactionType.AUTHORIZE,
+                                                BigDecimal.TEN,
+                                                Currency.USD,
+                                                ImmutableMap.<String, String>of("key", "value"),
+                                                DateTime.now(),
+                                                kbTenantId);
+                        return null;
+                    }
+                }));
+            }
+            for (final Future<Void> future : futures) {
+                future.get();
+            }
+        } finally {
+            executor.shutdown();
+            batchingDao.close();
+        }
+
+        // Each addResponse call returns once its row is durable
+        Assert.assertEquals(dao.getResponses(kbPaymentId, kbTenantId).size(), 50);
+    }
+
+    @Test(groups = "slow")
+    public void testPaymentMethodsCache() throws Exception {
+        final TestPluginPaymentDao cachingDao = new TestPluginPaymentDao(embeddedDB.getDataSource());
+        cachingDao.enablePaymentMethodsCache(100, 1, TimeUnit.HOURS);
+
+        final UUID kbAccountId = UUID.randomUUID();
+        final UUID kbPaymentMethodId = UUID.randomUUID();
+        final UUID kbTenantId = UUID.randomUUID();
+
+        Assert.assertNull(cachingDao.getPaymentMethod(kbPaymentMethodId, kbTenantId));
+        Assert.assertEquals(cachingDao.getPaymentMethods(kbAccountId, kbTenantId).size(), 0);
+
+        cachingDao.addPaymentMethod(kbAccountId, kbPaymentMethodId, true, ImmutableMap.<String, String>of(), DateTime.now(), kbTenantId);
+        Assert.assertEquals(cachingDao.getPaymentMethod(kbPaymentMethodId, kbTenantId).getKbPaymentMethodId(), kbPaymentMethodId.toString());
+        Assert.assertEquals(cachingDao.getPaymentMethods(kbAccountId, kbTenantId).size(), 1);
+
+        // Served from the cache
+        final long hitCount = cachingDao.getPaymentMethodsCacheStats().hitCount();
+        Assert.assertEquals(cachingDao.getPaymentMethod(kbPaymentMethodId, kbTenantId).getKbPaymentMethodId(), kbPaymentMethodId.toString());
+        Assert.assertEquals(cachingDao.getPaymentMethods(kbAccountId, kbTenantId).size(), 1);
+        Assert.assertEquals(cachingDao.getPaymentMethodsCacheStats().hitCount(), hitCount + 2);
+
+        cachingDao.deletePaymentMethod(kbPaymentMethodId, DateTime.now(), kbTenantId);
+        Assert.assertNull(cachingDao.getPaymentMethod(kbPaymentMethodId, kbTenantId));
+        Assert.assertEquals(cachingDao.getPaymentMethods(kbAccountId, kbTenantId).size(), 0);
+    }
+
+    @Test(groups = "slow")
+    public void testPaymentMethodsCacheWithTransactionScope() throws Exception {
+        final TestPluginPaymentDao cachingDao = new TestPluginPaymentDao(embeddedDB.getDataSource());
+        cachingDao.enablePaymentMethodsCache(100, 1, TimeUnit.HOURS);
+
+        final UUID kbAccountId = UUID.randomUUID();
+        final UUID kbPaymentMethodId = UUID.randomUUID();
+        final UUID kbTenantId = UUID.randomUUID();
+        cachingDao.addPaymentMethod(kbAccountId, kbPaymentMethodId, true, ImmutableMap.<String, String>of(), DateTime.now(), kbTenantId);
+
+        final ExecutorService otherThread = Executors.newSingleThreadExecutor();
+        try {
+            cachingDao.inTransaction(new TransactionCallback<Void>() {
+                @Override
+                public Void doInTransaction() throws SQLException {
+                    cachingDao.deletePaymentMethod(kbPaymentMethodId, DateTime.now(), kbTenantId);
+
+                    // Not committed yet: other threads still see (and cache) the payment method
+                    try {
+                        Assert.assertNotNull(otherThread.submit(() -> cachingDao.getPaymentMethod(kbPaymentMethodId, kbTenantId)).get(1, TimeUnit.MINUTES));
+                        Assert.assertEquals(otherThread.submit(() -> cachingDao.getPaymentMethods(kbAccountId, kbTenantId)).get(1, TimeUnit.MINUTES).size(), 1);
+                    } catch (final Exception e) {
+                        throw new SQLException(e);
+                    }
+                    return null;
+                }
+            });
+        } finally {
+            otherThread.shutdownNow();
+        }
+
+        // Invalidated once committed
+        Assert.assertNull(cachingDao.getPaymentMethod(kbPaymentMethodId, kbTenantId));
+        Assert.assertEquals(cachingDao.getPaymentMethods(kbAccountId, kbTenantId).size(), 0);
+    }
+
+    @Test(groups = "slow")
+    public void testResetPaymentMethods() throws Exception {
+        final UUID kbAccountId = UUID.randomUUID();
+        final UUID kbTenantId = UUID.randomUUID();
+        final UUID keptPaymentMethodId = UUID.randomUUID();
+        final UUID removedPaymentMethodId = UUID.randomUUID();
+        final UUID newPaymentMethodId = UUID.randomUUID();
+
+        dao.addPaymentMethod(kbAccountId, keptPaymentMethodId, true, ImmutableMap.<String, String>of(), DateTime.now(), kbTenantId);
+        dao.addPaymentMethod(kbAccountId, removedPaymentMethodId, false, ImmutableMap.<String, String>of(), DateTime.now(), kbTenantId);
+
+        dao.resetPaymentMethods(kbAccountId,
+                                ImmutableList.<PaymentMethodInfoPlugin>of(new PluginPaymentMethodInfoPlugin(kbAccountId, keptPaymentMethodId, false, null),
+                                                                          new PluginPaymentMethodInfoPlugin(kbAccountId, newPaymentMethodId, true, null)),
+                                ImmutableMap.<String, String>of(PROPERTY_TOKEN, "myToken"),
+                                DateTime.now(),
+                                kbTenantId);
+
+        final List<TestPaymentMethodsRecord> records = dao.getPaymentMethods(kbAccountId, kbTenantId);
+        Assert.assertEquals(records.size(), 2);
+        Assert.assertEquals(records.get(0).getKbPaymentMethodId(), keptPaymentMethodId.toString());
+        Assert.assertEquals(records.get(0).getIsDefault(), (Byte) PluginDao.FALSE);
+        Assert.assertEquals(records.get(1).getKbPaymentMethodId(), newPaymentMethodId.toString());
+        Assert.assertEquals(records.get(1).getIsDefault(), (Byte) PluginDao.TRUE);
+        Assert.assertEquals(records.get(1).getToken(), "myToken");
+        Assert.assertNull(dao.getPaymentMethod(removedPaymentMethodId, kbTenantId));
+
+        // A payment method removed earlier comes back
+        dao.resetPaymentMethods(kbAccountId,
+                                ImmutableList.<PaymentMethodInfoPlugin>of(new PluginPaymentMethodInfoPlugin(kbAccountId, removedPaymentMethodId, true, null)),
+                                ImmutableMap.<String, String>of(),
+                                DateTime.now(),
+                                kbTenantId);
+        Assert.assertEquals(dao.getPaymentMethods(kbAccountId, kbTenantId).size(), 1);
+        Assert.assertEquals(dao.getPaymentMethod(removedPaymentMethodId, kbTenantId).getIsDefault(), (Byte) PluginDao.TRUE);
+    }
+
     @Test(groups = "slow")
     public void testEmptyPaymentMethod() throws Exception {
         final PaymentMethodPlugin method = new PluginPaymentMethodPlugin(null, null, false, Collections.<PluginProperty>emptyList());
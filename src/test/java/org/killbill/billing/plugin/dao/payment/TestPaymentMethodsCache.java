@@ -0,0 +1,112 @@
+/*
+ * Copyright 2014-2017 Groupon, Inc
+ * Copyright 2014-2017 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.dao.payment;
+
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.testng.Assert;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import com.google.common.collect.ImmutableList;
+
+public class TestPaymentMethodsCache {
+
+    private final UUID kbTenantId = UUID.fromString("a1d6e8f0-2b4a-4c8e-9f1d-3e5b7c9a0b12");
+    private final UUID otherKbTenantId = UUID.fromString("5f0c2e4a-6b8d-4e1f-a3c5-7d9e1f3a5b74");
+    private final UUID kbAccountId = UUID.fromString("0e2f4a6c-8e1b-4d3f-b5a7-9c1e3f5a7b96");
+    private final UUID kbPaymentMethodId = UUID.fromString("7b9d1f3a-5c7e-4a9b-8d1f-2a4c6e8b0d38");
+
+    private final AtomicInteger nbLoads = new AtomicInteger();
+
+    private PaymentMethodsCache<StringBuilder> cache;
+
+    @BeforeMethod(groups = "fast")
+    public void setUp() throws Exception {
+        cache = new PaymentMethodsCache<StringBuilder>(100, 1, TimeUnit.HOURS, StringBuilder::new);
+        nbLoads.set(0);
+    }
+
+    @Test(groups = "fast")
+    public void testCopies() throws Exception {
+        final StringBuilder first = getPaymentMethod(null);
+        first.append("-modified");
+
+        final StringBuilder second = getPaymentMethod(null);
+        Assert.assertNotSame(second, first);
+        Assert.assertEquals(second.toString(), kbPaymentMethodId.toString());
+        Assert.assertEquals(nbLoads.get(), 1);
+    }
+
+    @Test(groups = "fast")
+    public void testInvalidationDuringLoad() throws Exception {
+        // The row was read before the write committed: it must not be cached
+        getPaymentMethod(() -> cache.invalidatePaymentMethod(kbTenantId, kbPaymentMethodId));
+        getPaymentMethod(null);
+        Assert.assertEquals(nbLoads.get(), 2);
+
+        getPaymentMethods(() -> cache.invalidateTenant(kbTenantId));
+        getPaymentMethods(null);
+        Assert.assertEquals(nbLoads.get(), 4);
+
+        // Cached once no write races with the load
+        getPaymentMethods(null);
+        Assert.assertEquals(nbLoads.get(), 4);
+    }
+
+    @Test(groups = "fast")
+    public void testInvalidationOfOtherKeys() throws Exception {
+        // Writes to other payment methods, accounts or tenants don't prevent caching
+        getPaymentMethod(() -> {
+            cache.invalidatePaymentMethods(kbTenantId, kbAccountId);
+            cache.invalidatePaymentMethod(otherKbTenantId, kbPaymentMethodId);
+            cache.invalidateTenant(otherKbTenantId);
+        });
+        getPaymentMethod(null);
+        Assert.assertEquals(nbLoads.get(), 1);
+
+        cache.invalidatePaymentMethod(kbTenantId, kbPaymentMethodId);
+        getPaymentMethod(null);
+        Assert.assertEquals(nbLoads.get(), 2);
+    }
+
+    private StringBuilder getPaymentMethod(final Runnable concurrentWrite) throws Exception {
+        return cache.getPaymentMethod(kbTenantId, kbPaymentMethodId, () -> {
+            nbLoads.incrementAndGet();
+            final StringBuilder record = new StringBuilder(kbPaymentMethodId.toString());
+            if (concurrentWrite != null) {
+                concurrentWrite.run();
+            }
+            return record;
+        });
+    }
+
+    private List<StringBuilder> getPaymentMethods(final Runnable concurrentWrite) throws Exception {
+        return cache.getPaymentMethods(kbTenantId, kbAccountId, () -> {
+            nbLoads.incrementAndGet();
+            final List<StringBuilder> records = ImmutableList.<StringBuilder>of(new StringBuilder(kbPaymentMethodId.toString()));
+            if (concurrentWrite != null) {
+                concurrentWrite.run();
+            }
+            return records;
+        });
+    }
+}
@@ -0,0 +1,87 @@
+/*
+ * Copyright 2014 Groupon, Inc
+ * Copyright 2014 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.util.http;
+
+import java.util.concurrent.TimeUnit;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+public class TestHttpCircuitBreaker {
+
+    @Test(groups = "fast")
+    public void testStateTransitions() throws Exception {
+        final HttpCircuitBreaker circuitBreaker = new HttpCircuitBreaker("https://example.com:443", 2, TimeUnit.MILLISECONDS.toNanos(50), 0);
+
+        circuitBreaker.acquire();
+        circuitBreaker.release(false);
+        circuitBreaker.acquire();
+        circuitBreaker.release(true);
+        // Failures need to be consecutive
+        circuitBreaker.acquire();
+        circuitBreaker.release(false);
+        Assert.assertEquals(circuitBreaker.getState(), HttpCircuitBreaker.State.CLOSED);
+        circuitBreaker.acquire();
+        circuitBreaker.release(false);
+        Assert.assertEquals(circuitBreaker.getState(), HttpCircuitBreaker.State.OPEN);
+
+        assertRejected(circuitBreaker);
+        Assert.assertEquals(circuitBreaker.getNbRejectedOpen(), 1);
+
+        // Single probe once the open duration has elapsed
+        Thread.sleep(100);
+        circuitBreaker.acquire();
+        Assert.assertEquals(circuitBreaker.getState(), HttpCircuitBreaker.State.HALF_OPEN);
+        assertRejected(circuitBreaker);
+        circuitBreaker.release(false);
+        Assert.assertEquals(circuitBreaker.getState(), HttpCircuitBreaker.State.OPEN);
+
+        Thread.sleep(100);
+        circuitBreaker.acquire();
+        circuitBreaker.release(true);
+        Assert.assertEquals(circuitBreaker.getState(), HttpCircuitBreaker.State.CLOSED);
+        Assert.assertEquals(circuitBreaker.getNbSuccesses(), 2);
+        Assert.assertEquals(circuitBreaker.getNbFailures(), 4);
+    }
+
+    @Test(groups = "fast")
+    public void testBulkhead() throws Exception {
+        final HttpCircuitBreaker circuitBreaker = new HttpCircuitBreaker("https://example.com:443", 1, TimeUnit.MINUTES.toNanos(1), 2);
+
+        circuitBreaker.acquire();
+        circuitBreaker.acquire();
+        Assert.assertEquals(circuitBreaker.getAvailableConcurrentRequests(), 0);
+        assertRejected(circuitBreaker);
+        Assert.assertEquals(circuitBreaker.getNbRejectedBulkhead(), 1);
+        Assert.assertEquals(circuitBreaker.getState(), HttpCircuitBreaker.State.CLOSED);
+
+        circuitBreaker.release(true);
+        circuitBreaker.acquire();
+        circuitBreaker.release(true);
+        circuitBreaker.release(true);
+        Assert.assertEquals(circuitBreaker.getAvailableConcurrentRequests(), 2);
+    }
+
+    private void assertRejected(final HttpCircuitBreaker circuitBreaker) {
+        try {
+            circuitBreaker.acquire();
+            Assert.fail();
+        } catch (final RejectedRequestException ignored) {
+        }
+    }
+}
@@ -0,0 +1,332 @@
+/*
+ * Copyright 2014 Groupon, Inc
+ * Copyright 2014 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.util.http;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.testng.Assert;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import com.google.common.base.Strings;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.net.HttpHeaders;
+import com.ning.http.client.AsyncHttpClientConfig;
+import com.ning.http.client.filter.FilterContext;
+import com.ning.http.client.filter.RequestFilter;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+public class TestHttpClient {
+
+    // Well above the latencies of the other requests, even on a loaded machine
+    private static final long SLOW_REQUEST_MILLIS = 3000;
+
+    private final AtomicBoolean slowNextRequest = new AtomicBoolean();
+    private final AtomicInteger nbCompletedSlowRequests = new AtomicInteger();
+    // The next request fails slowly, the following one succeeds more slowly
+    private final AtomicBoolean failNextRequestsSlowly = new AtomicBoolean();
+    private final AtomicInteger nbSlowlyFailedRequests = new AtomicInteger();
+
+    private ExecutorService serverExecutor;
+    private HttpServer server;
+    private String serverUrl;
+
+    @BeforeMethod(groups = "fast")
+    public void setUp() throws Exception {
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/", exchange -> {
+            final String path = exchange.getRequestURI().getPath();
+            if (slowNextRequest.getAndSet(false)) {
+                sleep(SLOW_REQUEST_MILLIS);
+                nbCompletedSlowRequests.incrementAndGet();
+            }
+            if (failNextRequestsSlowly.get()) {
+                if (nbSlowlyFailedRequests.getAndIncrement() == 0) {
+                    sleep(300);
+                    sendServiceUnavailable(exchange);
+                    return;
+                }
+                failNextRequestsSlowly.set(false);
+                sleep(600);
+            }
+            final boolean found = !path.startsWith("/missing");
+            if (path.startsWith("/error")) {
+                sendServiceUnavailable(exchange);
+                return;
+            }
+            final String content;
+            if (path.startsWith("/json")) {
+                content = "{\"authorization\":\"AB12\",\"amount\":10}";
+            } else if (path.startsWith("/large")) {
+                content = Strings.repeat("0123456789", 1000);
+            } else {
+                content = found ? "OK" : "Not found";
+            }
+            final byte[] body = content.getBytes(StandardCharsets.UTF_8);
+            exchange.sendResponseHeaders(found ? 200 : 404, body.length);
+            try (final OutputStream out = exchange.getResponseBody()) {
+                out.write(body);
+            }
+        });
+        serverExecutor = Executors.newCachedThreadPool();
+        server.setExecutor(serverExecutor);
+        server.start();
+        serverUrl = "http://127.0.0.1:" + server.getAddress().getPort();
+    }
+
+    @AfterMethod(groups = "fast")
+    public void tearDown() throws Exception {
+        server.stop(0);
+        serverExecutor.shutdownNow();
+    }
+
+    @Test(groups = "fast")
+    public void testPoolMetrics() throws Exception {
+        final HttpClientPoolConfig poolConfig = new HttpClientPoolConfig().setMaxConnectionsPerHost(2)
+                                                                          .setPooledConnectionIdleTimeoutMs(60000);
+        try (final HttpClient httpClient = new HttpClient(serverUrl, null, null, null, null, true, 5000, 5000, poolConfig)) {
+            for (int i = 0; i < 3; i++) {
+                Assert.assertEquals(httpClient.doCallAndReturnTextResponse(HttpClient.GET, "/", null, ImmutableMap.<String, String>of(), ImmutableMap.<String, String>of()), "OK");
+            }
+
+            Assert.assertEquals(httpClient.getPoolMetrics().getHostsMetrics().size(), 1);
+            final HttpClientPoolMetrics.HostMetrics hostMetrics = httpClient.getPoolMetrics().getHostMetrics(serverUrl);
+            Assert.assertNotNull(hostMetrics);
+            Assert.assertEquals(hostMetrics.getActiveRequests(), 0);
+            // Keep-alive: sequential requests share the connection
+            Assert.assertEquals(hostMetrics.getOpenedConnections() + hostMetrics.getReusedConnections(), 3);
+            Assert.assertTrue(hostMetrics.getReusedConnections() >= 1);
+        }
+    }
+
+    @Test(groups = "fast")
+    public void testStreamingResponses() throws Exception {
+        try (final HttpClient httpClient = new HttpClient(serverUrl, null, null, null, null, true, 5000, 5000, new HttpClientPoolConfig())) {
+            httpClient.enableStreamingResponses(1024);
+
+            final Map json = httpClient.doCallAsync(HttpClient.GET, "/json", null, ImmutableMap.<String, String>of(), ImmutableMap.<String, String>of(), Map.class, ResponseFormat.JSON).get(10, TimeUnit.SECONDS);
+            Assert.assertEquals(json, ImmutableMap.<String, Object>of("authorization", "AB12", "amount", 10));
+            Assert.assertEquals(httpClient.doCallAndReturnTextResponse(HttpClient.GET, "/", null, ImmutableMap.<String, String>of(), ImmutableMap.<String, String>of()), "OK");
+
+            try {
+                httpClient.doCallAsync(HttpClient.GET, "/missing", null, ImmutableMap.<String, String>of(), ImmutableMap.<String, String>of(), String.class, ResponseFormat.TEXT).get(10, TimeUnit.SECONDS);
+                Assert.fail();
+            } catch (final ExecutionException e) {
+                Assert.assertEquals(((InvalidRequest) e.getCause()).getResponse().getResponseBody(), "Not found");
+            }
+
+            // The limit is a caller error, not a host failure
+            httpClient.enableCircuitBreaker(1, 1, TimeUnit.HOURS, 10);
+            try {
+                httpClient.doCallAsync(HttpClient.GET, "/large", null, ImmutableMap.<String, String>of(), ImmutableMap.<String, String>of(), String.class, ResponseFormat.TEXT).get(10, TimeUnit.SECONDS);
+                Assert.fail();
+            } catch (final ExecutionException e) {
+                Assert.assertTrue(e.getCause() instanceof IOException);
+            }
+            Assert.assertEquals(httpClient.getCircuitBreakers().get(serverUrl).getState(), HttpCircuitBreaker.State.CLOSED);
+            httpClient.disableCircuitBreaker();
+
+            httpClient.disableStreamingResponses();
+            Assert.assertEquals(httpClient.doCallAsync(HttpClient.GET, "/large", null, ImmutableMap.<String, String>of(), ImmutableMap.<String, String>of(), String.class, ResponseFormat.TEXT).get(10, TimeUnit.SECONDS).length(), 10000);
+        }
+    }
+
+    @Test(groups = "fast")
+    public void testRequestTemplate() throws Exception {
+        try (final HttpClient httpClient = new HttpClient(serverUrl, "user", "password", null, null, true, 5000, 5000, new HttpClientPoolConfig())) {
+            final RequestTemplate template = httpClient.newRequestTemplate(HttpClient.GET, "/json", ImmutableMap.<String, String>of(HttpHeaders.ACCEPT, HttpClient.APPLICATION_JSON));
+            Assert.assertEquals(template.getPrototype().getUrl(), serverUrl + "/json");
+            Assert.assertEquals(template.getPrototype().getHeaders().getFirstValue(HttpHeaders.ACCEPT), HttpClient.APPLICATION_JSON);
+            // Authentication is built once per client
+            Assert.assertNotNull(template.getPrototype().getRealm());
+            Assert.assertSame(httpClient.newRequestTemplate(HttpClient.POST, "/", ImmutableMap.<String, String>of()).getPrototype().getRealm(), template.getPrototype().getRealm());
+
+            for (int i = 0; i < 2; i++) {
+                final Map json = httpClient.executeAsync(template.prepare().addQueryParam("i", String.valueOf(i)), 10, Map.class, ResponseFormat.JSON).get(10, TimeUnit.SECONDS);
+                Assert.assertEquals(json.get("authorization"), "AB12");
+            }
+        }
+    }
+
+    @Test(groups = "fast")
+    public void testCircuitBreaker() throws Exception {
+        try (final HttpClient httpClient = new HttpClient(serverUrl, null, null, null, null, true, 5000, 5000, new HttpClientPoolConfig())) {
+            httpClient.enableCircuitBreaker(2, 1, TimeUnit.HOURS, 10);
+
+            // Client errors don't count
+            for (int i = 0; i < 3; i++) {
+                assertCallFails(httpClient, "/missing", InvalidRequest.class);
+            }
+            assertCallFails(httpClient, "/error", InvalidRequest.class);
+            assertCallFails(httpClient, "/error", InvalidRequest.class);
+
+            // Fail fast
+            assertCallFails(httpClient, "/", RejectedRequestException.class);
+            final HttpCircuitBreaker circuitBreaker = httpClient.getCircuitBreakers().get(serverUrl);
+            Assert.assertEquals(circuitBreaker.getState(), HttpCircuitBreaker.State.OPEN);
+            Assert.assertEquals(circuitBreaker.getNbRejectedOpen(), 1);
+            Assert.assertEquals(circuitBreaker.getAvailableConcurrentRequests(), 10);
+
+            httpClient.disableCircuitBreaker();
+            Assert.assertEquals(httpClient.doCallAsync(HttpClient.GET, "/", null, ImmutableMap.<String, String>of(), ImmutableMap.<String, String>of(), String.class, ResponseFormat.TEXT).get(10, TimeUnit.SECONDS), "OK");
+        }
+    }
+
+    @Test(groups = "fast")
+    public void testRequestFailingBeforeSending() throws Exception {
+        // Errors thrown by request filters reach the caller of AsyncHttpClient#executeRequest
+        final HttpClientPoolConfig poolConfig = new HttpClientPoolConfig() {
+            @Override
+            void apply(final AsyncHttpClientConfig.Builder cfg) {
+                super.apply(cfg);
+                cfg.addRequestFilter(new RequestFilter() {
+                    @Override
+                    public <T> FilterContext<T> filter(final FilterContext<T> ctx) {
+                        throw new StackOverflowError();
+                    }
+                });
+            }
+        };
+        try (final HttpClient httpClient = new HttpClient(serverUrl, null, null, null, null, true, 5000, 5000, poolConfig)) {
+            httpClient.enableCircuitBreaker(1, 1, TimeUnit.HOURS, 1);
+
+            assertCallFails(httpClient, "/", StackOverflowError.class);
+
+            // The bulkhead permit is released, and the host isn't blamed
+            final HttpCircuitBreaker circuitBreaker = httpClient.getCircuitBreakers().get(serverUrl);
+            Assert.assertEquals(circuitBreaker.getState(), HttpCircuitBreaker.State.CLOSED);
+            Assert.assertEquals(circuitBreaker.getAvailableConcurrentRequests(), 1);
+            Assert.assertEquals(httpClient.getPoolMetrics().getHostMetrics(serverUrl).getActiveRequests(), 0);
+        }
+    }
+
+    @Test(groups = "fast")
+    public void testHedgedRequestsAndAdaptiveTimeouts() throws Exception {
+        try (final HttpClient httpClient = new HttpClient(serverUrl, null, null, null, null, true, 5000, 5000, new HttpClientPoolConfig())) {
+            httpClient.enableHedgedRequests(95);
+            httpClient.enableAdaptiveTimeouts(99, 3, 500);
+
+            // Not enough samples yet
+            slowNextRequest.set(true);
+            Assert.assertEquals(doGet(httpClient, "/poll"), "OK");
+            Assert.assertEquals(httpClient.getNbHedgedRequests(), 0);
+
+            for (int i = 0; i < 100; i++) {
+                Assert.assertEquals(doGet(httpClient, "/poll"), "OK");
+            }
+            final LatencyHistogram latencyHistogram = httpClient.getLatencyHistograms().get("GET " + serverUrl + "/poll");
+            Assert.assertEquals(latencyHistogram.getNbSamples(), 101);
+            Assert.assertTrue(latencyHistogram.getPercentileMs(95) < 500);
+
+            // The hedged request answers first, while the slow one is still running
+            final int nbCompletedSlowRequestsBefore = nbCompletedSlowRequests.get();
+            slowNextRequest.set(true);
+            Assert.assertEquals(doGet(httpClient, "/poll"), "OK");
+            Assert.assertEquals(nbCompletedSlowRequests.get(), nbCompletedSlowRequestsBefore);
+            Assert.assertEquals(httpClient.getNbHedgedRequests(), 1);
+
+            // Without hedging, the slow request times out early: the timeout is a latency sample and a failure of the host
+            httpClient.disableHedgedRequests();
+            httpClient.enableCircuitBreaker(1, 1, TimeUnit.HOURS, 10);
+            final long nbSamples = latencyHistogram.getNbSamples();
+            slowNextRequest.set(true);
+            assertCallFails(httpClient, "/poll", TimeoutException.class);
+            Assert.assertEquals(latencyHistogram.getNbSamples(), nbSamples + 1);
+            Assert.assertEquals(httpClient.getCircuitBreakers().get(serverUrl).getState(), HttpCircuitBreaker.State.OPEN);
+            httpClient.disableCircuitBreaker();
+
+            httpClient.disableAdaptiveTimeouts();
+            Assert.assertTrue(httpClient.getLatencyHistograms().isEmpty());
+        }
+    }
+
+    @Test(groups = "fast")
+    public void testHedgedRequestOutlivesFailedAttempt() throws Exception {
+        try (final HttpClient httpClient = new HttpClient(serverUrl, null, null, null, null, true, 5000, 5000, new HttpClientPoolConfig())) {
+            httpClient.enableHedgedRequests(95);
+            for (int i = 0; i < 100; i++) {
+                Assert.assertEquals(doGet(httpClient, "/poll"), "OK");
+            }
+
+            // The first attempt fails while the hedged one is in flight: the latter decides
+            failNextRequestsSlowly.set(true);
+            Assert.assertEquals(doGet(httpClient, "/poll"), "OK");
+            Assert.assertEquals(httpClient.getNbHedgedRequests(), 1);
+            Assert.assertEquals(nbSlowlyFailedRequests.get(), 2);
+        }
+    }
+
+    // No body, and the connection isn't kept alive: otherwise the client may reuse it while the server closes it (Connection reset)
+    private static void sendServiceUnavailable(final HttpExchange exchange) throws IOException {
+        exchange.getResponseHeaders().set(HttpHeaders.CONNECTION, "close");
+        exchange.sendResponseHeaders(503, -1);
+        exchange.close();
+    }
+
+    private static void sleep(final long millis) {
+        try {
+            Thread.sleep(millis);
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private String doGet(final HttpClient httpClient, final String uri) throws Exception {
+        return httpClient.doCallAsync(HttpClient.GET, uri, null, ImmutableMap.<String, String>of(), ImmutableMap.<String, String>of(), String.class, ResponseFormat.TEXT).get(10, TimeUnit.SECONDS);
+    }
+
+    private void assertCallFails(final HttpClient httpClient, final String uri, final Class<? extends Throwable> exceptionClass) throws Exception {
+        try {
+            httpClient.doCallAsync(HttpClient.GET, uri, null, ImmutableMap.<String, String>of(), ImmutableMap.<String, String>of(), String.class, ResponseFormat.TEXT).get(10, TimeUnit.SECONDS);
+            Assert.fail();
+        } catch (final ExecutionException e) {
+            Assert.assertTrue(exceptionClass.isInstance(e.getCause()), e.getCause().toString());
+        }
+    }
+
+    @Test(groups = "fast")
+    public void testAsyncCalls() throws Exception {
+        try (final HttpClient httpClient = new HttpClient(serverUrl, null, null, null, null, true, 5000, 5000, new HttpClientPoolConfig())) {
+            final CompletableFuture<String> found = httpClient.doCallAsync(HttpClient.GET, "/found", null, ImmutableMap.<String, String>of(), ImmutableMap.<String, String>of(), String.class, ResponseFormat.TEXT);
+            final CompletableFuture<String> missing = httpClient.doCallAsync(HttpClient.GET, "/missing", null, ImmutableMap.<String, String>of(), ImmutableMap.<String, String>of(), String.class, ResponseFormat.TEXT);
+
+            Assert.assertEquals(found.get(10, TimeUnit.SECONDS), "OK");
+            try {
+                missing.get(10, TimeUnit.SECONDS);
+                Assert.fail();
+            } catch (final ExecutionException e) {
+                Assert.assertTrue(e.getCause() instanceof InvalidRequest);
+                Assert.assertEquals(((InvalidRequest) e.getCause()).getResponse().getStatusCode(), 404);
+            }
+        }
+    }
+}
@@ -0,0 +1,57 @@
+/*
+ * Copyright 2014 Groupon, Inc
+ * Copyright 2014 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.util.http;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+public class TestLatencyHistogram {
+
+    @Test(groups = "fast")
+    public void testPercentiles() throws Exception {
+        final LatencyHistogram latencyHistogram = new LatencyHistogram(1000);
+        Assert.assertEquals(latencyHistogram.getPercentileMs(95), -1);
+
+        for (int i = 1; i <= 100; i++) {
+            latencyHistogram.record(i);
+        }
+        Assert.assertEquals(latencyHistogram.getNbSamples(), 100);
+        // Within the 20% bucket precision
+        assertWithinPrecision(latencyHistogram.getPercentileMs(50), 50);
+        assertWithinPrecision(latencyHistogram.getPercentileMs(95), 95);
+        assertWithinPrecision(latencyHistogram.getPercentileMs(100), 100);
+    }
+
+    @Test(groups = "fast")
+    public void testWindows() throws Exception {
+        final LatencyHistogram latencyHistogram = new LatencyHistogram(10);
+        for (int i = 0; i < 10; i++) {
+            latencyHistogram.record(1000);
+        }
+        for (int i = 0; i < 20; i++) {
+            latencyHistogram.record(10);
+        }
+        // Old latencies are forgotten
+        Assert.assertEquals(latencyHistogram.getNbSamples(), 10);
+        assertWithinPrecision(latencyHistogram.getPercentileMs(100), 10);
+    }
+
+    private void assertWithinPrecision(final long actualMs, final long expectedMs) {
+        Assert.assertTrue(actualMs >= expectedMs && actualMs <= expectedMs * 1.2 + 1, actualMs + " vs " + expectedMs);
+    }
+}
@@ -26,9 +26,14 @@ CREATE TABLE `test_responses` (
   /* Primary key and unique constraints */
   INDEX(`kb_payment_transaction_id`),
   INDEX(`kb_payment_id`),
+  INDEX(`kb_tenant_id`, `kb_account_id`, `record_id`),
   PRIMARY KEY(`record_id`)
 ) /*! CHARACTER SET utf8 COLLATE utf8_bin */;
 
+DROP TABLE IF EXISTS `test_responses_archive`;
+
+CREATE TABLE `test_responses_archive` LIKE `test_responses`;
+
 /* ========================================================================== *
  * PAYMENT METHODS TABLE                                                      *
  * ========================================================================== */
@@ -75,6 +80,8 @@ CREATE TABLE `test_payment_methods` (
 
   /* Primary key and unique constraints */
   UNIQUE KEY(`kb_payment_method_id`),
+  INDEX(`kb_tenant_id`, `kb_account_id`, `record_id`),
+  INDEX(`kb_tenant_id`, `token`, `record_id`),
   PRIMARY KEY(`record_id`)
 
 ) /*! CHARACTER SET utf8 COLLATE utf8_bin */;